@@ -0,0 +1,64 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of choosing the ExitPoint link for a new tunnel, {@link ExitBalancer#select()} behind
+ * {@code EntryPoint.getNextExitPoint()}, with eight threads selecting at once from one balancer.
+ * The links are real loopback connections that carry no traffic, with the heartbeat switched off so
+ * every link stays healthy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@org.openjdk.jmh.annotations.Threads(8)
+@Fork(1)
+public class ExitSelectionBenchmark {
+    @Param({"round-robin", "least-outstanding", "ewma", "p2c"})
+    public String strategy;
+
+    @Param({"4", "32"})
+    public int links;
+
+    private final ExitBalancer balancer = new ExitBalancer();
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private ServerSocketChannel server;
+
+    @Setup
+    public void setUp() throws IOException {
+        TunnelLink.HEARTBEAT_INTERVAL_MILLIS = 0;
+        balancer.setStrategy(ExitBalancer.strategy(strategy));
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), links);
+        for (int i = 0; i < links; i++) {
+            SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+            channels.add(channel);
+            channels.add(server.accept());
+            balancer.add(new TunnelLink(channel, null));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    public TunnelLink select() {
+        return balancer.select();
+    }
+}
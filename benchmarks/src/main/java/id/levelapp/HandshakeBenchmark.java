@@ -0,0 +1,73 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of getting a CONNECT tunnel established.
+ * <p>
+ * {@link #parseConnect} measures the request parser alone on a typical browser CONNECT head.
+ * {@link #connect} measures what a client waits for: connecting to an in-process EntryPoint, sending
+ * CONNECT, and reading the 200, either with the EntryPoint connecting to the target itself ({@code links} = 0)
+ * or through an in-process ExitPoint with that many links. Latencies are sampled, so the output
+ * includes p50, p99 and p99.9.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+    private static final byte[] REQUEST = ("CONNECT www.example.com:443 HTTP/1.1\r\n"
+            + "Host: www.example.com:443\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * A parser and a buffer holding one request head, per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Head {
+        final RequestParser parser = new RequestParser();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(RequestParser.MAX_HEAD_SIZE);
+
+        @Setup
+        public void setUp() {
+            buffer.put(REQUEST).flip();
+        }
+    }
+
+    /**
+     * The in-process EntryPoint, ExitPoint and target.
+     */
+    @State(Scope.Benchmark)
+    public static class Proxy {
+        @Param({"nio", "blocking"})
+        public String engine;
+
+        @Param({"0", "2"})
+        public int links;
+
+        @Setup
+        public void setUp() throws IOException {
+            Loopback.start(engine, links);
+        }
+    }
+
+    @Benchmark
+    public String parseConnect(Head head) throws RequestParser.BadRequest {
+        head.parser.reset();
+        if (!head.parser.parse(head.buffer, 0, head.buffer.limit())) throw new IllegalStateException("Incomplete head");
+        return head.parser.authority();
+    }
+
+    @Benchmark
+    public void connect(Proxy proxy) throws IOException {
+        Loopback.connect().close();
+    }
+}
@@ -0,0 +1,100 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback runs warpdrive inside the benchmark JVM: an EntryPoint, optionally an ExitPoint with a number of
+ * tunnel links, and the {@link Bench} target, all on free loopback ports. Clients use the bench protocol,
+ * see {@link Bench#upload} and {@link Bench#download}.
+ */
+final class Loopback {
+    /** How long {@link #start(String, int)} waits for the first tunnel to get through. */
+    private static final long READY_TIMEOUT_MILLIS = 10000;
+    /** Read timeout of benchmark tunnels, so a stuck tunnel fails the run instead of hanging it. */
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private static volatile String target;
+
+    private Loopback() {}
+
+    /**
+     * Starts the target, the EntryPoint and, if links are requested, an ExitPoint. EntryPoint and ExitPoint
+     * keep their state in static fields, so this happens once per JVM; later calls return at once.
+     *
+     * @param engine The engine of both points: "blocking", "virtual" or "nio".
+     * @param links  The number of ExitPoint links, 0 to let the EntryPoint connect to targets directly.
+     * @throws IOException If a server cannot be started or no tunnel gets through in time.
+     */
+    static synchronized void start(String engine, int links) throws IOException {
+        if (target != null) return;
+        Config.update(Collections.singletonMap("logLevel", "warn"));
+        ServerSocketChannel server = Bench.listen(null);
+        Bench.serve(server);
+
+        TargetPool.ALLOW_LOOPBACK = true; // the target runs in this process
+        EntryPoint.PROXY_PORT = freePort();
+        EntryPoint.EXIT_SERVER_PORT = freePort();
+        EntryPoint.IS_FORWARD = links > 0;
+        EntryPoint.ENGINE = engine;
+        EntryPoint.start(new String[0]);
+
+        if (links > 0) {
+            ExitPoint.ENTRY_HOST = "127.0.0.1";
+            ExitPoint.ENTRY_PORT = EntryPoint.EXIT_SERVER_PORT;
+            ExitPoint.CONNECTION_COUNT = links;
+            ExitPoint.ENGINE = engine;
+            ExitPoint.start(new String[0]);
+        }
+        target = "127.0.0.1:" + server.socket().getLocalPort();
+        awaitReady(links);
+    }
+
+    /**
+     * Opens a tunnel to the target through the EntryPoint.
+     *
+     * @return The client side of the tunnel, after the EntryPoint answered 200.
+     * @throws IOException If the connection fails or the EntryPoint answers with another status.
+     */
+    static Socket connect() throws IOException {
+        return Bench.connect("127.0.0.1", EntryPoint.PROXY_PORT, target, TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @return A loopback port nobody listens on at the moment.
+     * @throws IOException If no port can be found.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocketChannel channel = Bench.listen(null)) {
+            return channel.socket().getLocalPort();
+        }
+    }
+
+    /**
+     * Waits until a tunnel gets through, then gives the remaining ExitPoint links a moment to finish their handshake.
+     */
+    private static void awaitReady(int links) throws IOException {
+        long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = connect()) {
+                Bench.upload(socket, 1, new byte[1]);
+                break;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw new IOException("Loopback setup did not come up: " + e.getMessage(), e);
+            }
+            sleep(50);
+        }
+        if (links > 1) sleep(500);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
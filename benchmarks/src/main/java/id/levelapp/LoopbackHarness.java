@@ -0,0 +1,105 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoopbackHarness pushes tunnels end to end through an in-process EntryPoint, an ExitPoint with N links
+ * and the {@link Bench} target, the way a client fleet would, and reports tunnels per second,
+ * throughput and latency percentiles. Unlike the JMH suites it exercises every layer at once,
+ * so it is the number to compare before and after a change to the tunnel path.
+ * <p>
+ * Every client thread repeatedly opens a tunnel, downloads and uploads the payload through it, and closes it.
+ * <pre>
+ * java -cp target/benchmarks.jar id.levelapp.LoopbackHarness [engine] [links] [clients] [seconds] [payloadBytes]
+ * </pre>
+ * Defaults are "nio", 4 links, 64 clients, 10 seconds and 65536 bytes; 0 links connects to the target directly.
+ */
+public final class LoopbackHarness {
+    private static final Metrics.Histogram openLatency = new Metrics.Histogram();
+    private static final Metrics.Histogram tunnelLatency = new Metrics.Histogram();
+    private static final LongAdder tunnels = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    private LoopbackHarness() {}
+
+    /**
+     * Runs a warm-up of a fifth of the duration, then the measured run, and prints the results.
+     *
+     * @param args Engine, links, clients, seconds and payload bytes, each optional.
+     * @throws Exception If the loopback setup cannot start.
+     */
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : "nio";
+        int links = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        long payload = args.length > 4 ? Long.parseLong(args[4]) : 65536;
+
+        Loopback.start(engine, links);
+        System.out.println("engine=" + engine + " links=" + links + " clients=" + clients + " seconds=" + seconds + " payloadBytes=" + payload);
+        run(clients, Math.max(1, seconds / 5), payload);
+        openLatency.reset();
+        tunnelLatency.reset();
+        tunnels.reset();
+        bytes.reset();
+        errors.clear();
+
+        long elapsed = run(clients, seconds, payload);
+        double elapsedSeconds = elapsed / 1e9;
+        System.out.printf("tunnels/s   %.0f%n", tunnels.sum() / elapsedSeconds);
+        System.out.printf("Gbit/s      %.3f%n", bytes.sum() * 8 / elapsedSeconds / 1e9);
+        print("open", openLatency);
+        print("tunnel", tunnelLatency);
+        errors.forEach((cause, count) -> System.out.println("error       " + cause + " " + count.sum()));
+        System.exit(0);
+    }
+
+    /**
+     * Runs the clients for a number of seconds.
+     *
+     * @return The elapsed time in nanoseconds.
+     */
+    private static long run(int clients, int seconds, long payload) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> client(deadline, payload), "loopback-client-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void client(long deadline, long payload) {
+        byte[] scratch = new byte[65536];
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            try (Socket socket = Loopback.connect()) {
+                openLatency.record(System.nanoTime() - start);
+                if (payload > 0) {
+                    Bench.download(socket, payload, scratch);
+                    Bench.upload(socket, payload, scratch);
+                    bytes.add(2 * payload);
+                }
+                tunnels.increment();
+                tunnelLatency.record(System.nanoTime() - start);
+            } catch (IOException e) {
+                errors.computeIfAbsent(String.valueOf(e.getMessage()), cause -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    private static void print(String name, Metrics.Histogram histogram) {
+        System.out.printf("%-11s p50=%dus p99=%dus p999=%dus mean=%.0fus%n", name,
+                histogram.quantile(0.5), histogram.quantile(0.99), histogram.quantile(0.999), histogram.mean());
+    }
+}
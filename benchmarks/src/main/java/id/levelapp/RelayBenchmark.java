@@ -0,0 +1,129 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of {@link Relay#transfer}, the copy loop behind every blocking tunnel direction, by relay buffer size.
+ * Each operation relays {@link #PAYLOAD} bytes, so bytes per second are the score times 8 MiB.
+ * <p>
+ * "memory" reads from an in-memory channel and isolates the loop itself; "loopback" reads from a TCP
+ * connection whose peer sends the payload, which adds the read system calls a larger buffer saves.
+ * Both write to a channel that discards the bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+    /** Bytes relayed per operation. */
+    static final int PAYLOAD = 8 << 20;
+
+    @Param({"4096", "16384", "32768", "65536", "262144"})
+    public int bufferSize;
+
+    @Param({"memory", "loopback"})
+    public String transport;
+
+    private BufferPool pool;
+    private ByteBuffer source;
+    private ServerSocketChannel server;
+    private final WritableByteChannel sink = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer buffer) {
+            int length = buffer.remaining();
+            buffer.position(buffer.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        pool = new BufferPool(4, 1, bufferSize);
+        source = ByteBuffer.allocateDirect(PAYLOAD);
+        if ("loopback".equals(transport)) {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread sender = new Thread(this::sendPayloads, "relay-benchmark-sender");
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (server != null) server.close();
+    }
+
+    @Benchmark
+    public long transfer() throws IOException {
+        if (server == null) return Relay.transfer(new MemoryChannel(source.duplicate()), sink, null, pool);
+        try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+            return Relay.transfer(channel, sink, null, pool);
+        }
+    }
+
+    /**
+     * Sends the payload to every connection and closes it.
+     */
+    private void sendPayloads() {
+        try {
+            while (true) {
+                try (SocketChannel channel = server.accept()) {
+                    ByteBuffer payload = source.duplicate();
+                    while (payload.hasRemaining()) {
+                        channel.write(payload);
+                    }
+                }
+            }
+        } catch (IOException ignored) {
+            // the server was closed at tear down
+        }
+    }
+
+    /**
+     * A channel that reads the remaining bytes of a buffer, then reports end of stream.
+     */
+    private static final class MemoryChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+
+        MemoryChannel(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
+            if (!data.hasRemaining()) return -1;
+            int length = Math.min(buffer.remaining(), data.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + length);
+            buffer.put(slice);
+            data.position(data.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
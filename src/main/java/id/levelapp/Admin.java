@@ -0,0 +1,130 @@
+package id.levelapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Admin serves the endpoints that change a running Entry or Exit point on {@code http://127.0.0.1:<PORT>}, apart
+ * from the read-only {@link Metrics} endpoint. Every request must be a {@code POST} carrying
+ * {@code Authorization: Bearer <TOKEN>}: binding to loopback alone is not enough, since a client of the proxy
+ * or a web page in a local browser can reach loopback ports too, and neither can send that header to it.
+ */
+final class Admin {
+    /** Local port of the admin endpoint, 0 to disable it. */
+    static int PORT = 0;
+    /** Shared secret the admin requests must present; the endpoint does not start without one. */
+    static String TOKEN = "";
+
+    private static volatile ServerSocket server;
+
+    private Admin() {}
+
+    /**
+     * Starts the endpoint on the loopback interface if {@link #PORT} is set.
+     */
+    static void start() {
+        if (PORT <= 0) return;
+        if (TOKEN.isEmpty()) {
+            Log.error("admin.start_failed", "error", "no token");
+            return;
+        }
+        try {
+            ServerSocket socket = new ServerSocket(PORT, 16, InetAddress.getLoopbackAddress());
+            server = socket;
+            TargetPool.listening(PORT);
+            Threads.start(() -> serve(socket));
+            Log.info("admin.listen", "url", "http://127.0.0.1:" + PORT + "/");
+        } catch (IOException e) {
+            Log.error("admin.start_failed", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the endpoint.
+     */
+    static void stop() {
+        ServerSocket socket = server;
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Answers admin requests one at a time.
+     * {@code POST /shaping?client=512k&target=0} changes the bandwidth limits, see {@link Shaper#configure(String)},
+     * {@code POST /reload} applies the changes of the config file at once, see {@link Config#reload()}, and
+     * {@code POST /drain} drains the application and exits, the same as a SIGTERM.
+     */
+    private static void serve(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try (Socket client = socket.accept()) {
+                client.setSoTimeout(5000);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+                String requestLine = reader.readLine();
+                String authorization = null;
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Authorization")) {
+                        authorization = line.substring(colon + 1).trim();
+                    }
+                }
+                String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+                String method = parts.length >= 2 ? parts[0] : "";
+                String target = parts.length >= 2 ? parts[1] : "";
+                int query = target.indexOf('?');
+                String path = query < 0 ? target : target.substring(0, query);
+                String status = "200 OK";
+                String text;
+                if (!isAuthorized(authorization)) {
+                    status = "401 Unauthorized";
+                    text = "Unauthorized\n";
+                    Log.warn("admin.unauthorized", "path", path);
+                } else if (!"POST".equals(method)) {
+                    status = "405 Method Not Allowed";
+                    text = "Use POST\n";
+                } else if (path.equals("/shaping")) {
+                    try {
+                        Shaper.configure(query < 0 ? "" : target.substring(query + 1));
+                        text = Shaper.describe() + "\n";
+                    } catch (IllegalArgumentException e) {
+                        status = "400 Bad Request";
+                        text = e.getMessage() + "\n";
+                    }
+                } else if (path.equals("/reload")) {
+                    try {
+                        text = "reloaded: " + Config.reload() + "\n";
+                    } catch (IllegalArgumentException | IOException e) {
+                        status = "400 Bad Request";
+                        text = e.getMessage() + "\n";
+                    }
+                } else if (path.equals("/drain")) {
+                    text = "draining\n";
+                    Thread exit = new Thread(() -> System.exit(0), "warpdrive-drain"); // the shutdown hook drains
+                    exit.start();
+                } else {
+                    status = "404 Not Found";
+                    text = "Not Found\n";
+                }
+                Metrics.respond(client, method, status, "text/plain", text);
+            } catch (IOException e) {
+                if (!socket.isClosed()) Log.warn("admin.error", "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Checks the bearer token of a request, taking the same time whatever the token is.
+     *
+     * @param authorization The value of the Authorization header, or null if there was none.
+     * @return True if it carries {@link #TOKEN}, never while no token is set.
+     */
+    static boolean isAuthorized(String authorization) {
+        if (TOKEN.isEmpty() || authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) return false;
+        byte[] presented = authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(presented, TOKEN.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,67 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission decides how the EntryPoint turns clients away when it is saturated, so a traffic spike is shed
+ * at the door rather than exhausting threads, descriptors or memory further in:
+ * <ul>
+ * <li>beyond {@link Config.Settings#maxTunnels} concurrent connections, a new client gets a 503 right after it
+ *     connects;</li>
+ * <li>a tunnel that finds no ExitPoint link waits up to {@link Config.Settings#exitWaitMillis} for one to connect, queued
+ *     with at most {@link Config.Settings#exitQueue} others, instead of failing at once; when the queue is full or the wait
+ *     is over, the client gets a 503 as well.</li>
+ * </ul>
+ * Every 503 carries a Retry-After of {@link Config.Settings#retryAfterSeconds}, so well-behaved clients back off.
+ */
+final class Admission {
+    /** How long a rejected connection stays open after its 503, so the client reads it before the close. */
+    private static final long REJECT_LINGER_MILLIS = 1000;
+
+    private Admission() {}
+
+    /**
+     * Thrown when a tunnel is refused because the EntryPoint is saturated, answered with a 503.
+     */
+    static final class Unavailable extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Unavailable(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param reason The reason sent in the response body.
+     * @return A complete 503 response with Retry-After.
+     */
+    static String response(String reason) {
+        byte[] body = reason.getBytes(StandardCharsets.UTF_8);
+        return "HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + Config.settings().retryAfterSeconds
+                + "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length
+                + "\r\nConnection: close\r\n\r\n" + reason;
+    }
+
+    /**
+     * Answers a connection that was just accepted with a 503 and closes it shortly after. The client's request
+     * is not read: the response fits the empty socket buffer, and the delayed close keeps unread request bytes
+     * from turning the close into a reset that would discard the response.
+     *
+     * @param channel The accepted client connection, blocking or not.
+     * @param reason  The reason sent in the response body.
+     */
+    static void reject(SocketChannel channel, String reason) {
+        try {
+            channel.write(ByteBuffer.wrap(response(reason).getBytes(StandardCharsets.UTF_8)));
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            NioEngine.closeQuietly(channel);
+            return;
+        }
+        Threads.timers().schedule(() -> NioEngine.closeQuietly(channel), REJECT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,11 +1,16 @@
 package id.levelapp;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
 /**
  * The Application class serves as the entry point for the Warpdrive application.
  * It operates in two modes: 'entry' and 'exit', facilitating HTTP proxy server operations
  * and request forwarding between client connections and target servers.
  */
 public class Application {
+    /** How long tasks may take to finish once the application has drained. */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
 
     /**
      * The main method processes command-line arguments to determine the mode of operation
@@ -19,20 +24,32 @@ public class Application {
      *                     <li>args[1] - Proxy port number (optional, default is EntryPoint.PROXY_PORT).</li>
      *                     <li>args[2] - Exit server port number (optional, default is EntryPoint.EXIT_SERVER_PORT).</li>
      *                     <li>args[3] - Forward mode (optional, true or false, default is EntryPoint.IS_FORWARD).</li>
+     *                     <li>args[4] - Engine (optional, 'blocking', 'virtual' or 'nio', default is EntryPoint.ENGINE).</li>
      *                 </ul>
      *             </li>
      *             <li>For 'exit' mode:
      *                 <ul>
      *                     <li>args[1] - Entry host (optional, default is ExitPoint.ENTRY_HOST).</li>
      *                     <li>args[2] - Entry port number (optional, default is ExitPoint.ENTRY_PORT).</li>
-     *                     <li>args[3] - Number of concurrent connections (optional, default is ExitPoint.CONNECTION_COUNT).</li>
+     *                     <li>args[3] - Number of tunnel links (optional, default is ExitPoint.CONNECTION_COUNT).</li>
+     *                     <li>args[4] - Engine (optional, 'blocking', 'virtual' or 'nio', default is ExitPoint.ENGINE).</li>
+     *                 </ul>
+     *             </li>
+     *             <li>For 'bench' mode, which loads a running EntryPoint with tunnels to a built-in target:
+     *                 <ul>
+     *                     <li>args[1] - Entry host (optional, default is Bench.ENTRY_HOST).</li>
+     *                     <li>args[2] - Entry proxy port number (optional, default is Bench.ENTRY_PORT).</li>
+     *                     <li>args[3] - Number of concurrent clients (optional, default is Bench.CLIENTS).</li>
+     *                     <li>args[4] - Duration in seconds (optional, default is Bench.SECONDS).</li>
      *                 </ul>
      *             </li>
      *             </ul>
+     *             Everything else is configured with <code>warpdrive.*</code> system properties, listed in the
+     *             "System Properties" table of the readme.
      */
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.err.println("This application can operate in two modes: 'entry' and 'exit'.");
+            System.err.println("This application can operate in two modes: 'entry' and 'exit', and load-test them in 'bench' mode.");
             System.err.println("In 'entry' mode, the application acts as an HTTP proxy server, listening for client connections and optionally forwarding requests to exit points.");
             System.err.println("In 'exit' mode, the application connects to an entry point and forwards requests to target servers.");
             System.err.println("Please specify 'entry' or 'exit' as the first argument to determine the mode of operation.");
@@ -40,31 +57,141 @@ public class Application {
             System.err.println("  - Second argument: Proxy port number (default is " + EntryPoint.PROXY_PORT + ").");
             System.err.println("  - Third argument: Exit server port number (default is " + EntryPoint.EXIT_SERVER_PORT + ").");
             System.err.println("  - Fourth argument: Forward mode (true or false, default is " + EntryPoint.IS_FORWARD + ").");
+            System.err.println("  - Fifth argument: Engine ('blocking', 'virtual' or 'nio', default is " + EntryPoint.ENGINE + ").");
             System.err.println("For 'exit' mode, you can optionally specify the following arguments:");
             System.err.println("  - Second argument: Entry host (default is " + ExitPoint.ENTRY_HOST + ").");
             System.err.println("  - Third argument: Entry port number (default is " + ExitPoint.ENTRY_PORT + ").");
-            System.err.println("  - Fourth argument: Number of concurrent connections (default is " + ExitPoint.CONNECTION_COUNT + ").");
+            System.err.println("  - Fourth argument: Number of tunnel links (default is " + ExitPoint.CONNECTION_COUNT + ").");
+            System.err.println("  - Fifth argument: Engine ('blocking', 'virtual' or 'nio', default is " + ExitPoint.ENGINE + ").");
+            System.err.println("For 'bench' mode, which opens tunnels through a running entry point to a built-in target, you can optionally specify:");
+            System.err.println("  - Second argument: Entry host (default is " + Bench.ENTRY_HOST + ").");
+            System.err.println("  - Third argument: Entry proxy port number (default is " + Bench.ENTRY_PORT + ").");
+            System.err.println("  - Fourth argument: Number of concurrent clients (default is " + Bench.CLIENTS + ").");
+            System.err.println("  - Fifth argument: Duration in seconds (default is " + Bench.SECONDS + ").");
+            System.err.println("Everything else is set with -Dwarpdrive.<name>=<value> system properties or a -Dwarpdrive.config=<file>;");
+            System.err.println("  see the \"System Properties\" table in readme.md for every name and its default.");
             return;
         }
 
         String mode = args[0].toLowerCase();
+        Config.FILE = System.getProperty("warpdrive.config", Config.FILE);
+        if (Config.FILE != null) {
+            try {
+                Config.load();
+            } catch (IOException e) {
+                System.err.println("Cannot read config file " + Config.FILE + ": " + e.getMessage());
+                return;
+            }
+        }
+        BufferPool.CAPACITY = Integer.getInteger("warpdrive.bufferPoolSize", BufferPool.CAPACITY);
+        BufferPool.BULK_CAPACITY = Integer.getInteger("warpdrive.bulkBufferPoolSize", BufferPool.BULK_CAPACITY);
+        Compression.LEVEL = Integer.getInteger("warpdrive.linkCompression", Compression.LEVEL);
+        if (Compression.LEVEL < 0 || Compression.LEVEL > 9) {
+            System.err.println("Invalid link compression level. Please specify 0 (off) to 9.");
+            return;
+        }
+        try {
+            SocketTuning.CLIENT = SocketTuning.parse(System.getProperty("warpdrive.clientSocket", ""), SocketTuning.CLIENT);
+            SocketTuning.LINK = SocketTuning.parse(System.getProperty("warpdrive.linkSocket", ""), SocketTuning.LINK);
+            SocketTuning.TARGET = SocketTuning.parse(System.getProperty("warpdrive.targetSocket", ""), SocketTuning.TARGET);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid socket options: " + e.getMessage());
+            return;
+        }
+        Resolver.TTL_SECONDS = Integer.getInteger("warpdrive.dnsTtl", Resolver.TTL_SECONDS);
+        Resolver.NEGATIVE_TTL_SECONDS = Integer.getInteger("warpdrive.dnsNegativeTtl", Resolver.NEGATIVE_TTL_SECONDS);
+        TargetPool.MAX_IDLE_PER_TARGET = Integer.getInteger("warpdrive.targetPoolSize", TargetPool.MAX_IDLE_PER_TARGET);
+        TargetPool.IDLE_TIMEOUT_SECONDS = Integer.getInteger("warpdrive.targetPoolIdle", TargetPool.IDLE_TIMEOUT_SECONDS);
+        TargetPool.ALLOW_LOOPBACK = Boolean.getBoolean("warpdrive.allowLoopbackTargets");
+        HttpProxy.MAX_IDLE_PER_TARGET = Integer.getInteger("warpdrive.httpKeepAlive", HttpProxy.MAX_IDLE_PER_TARGET);
+        TunnelLink.HEARTBEAT_INTERVAL_MILLIS = Long.getLong("warpdrive.heartbeatInterval", TunnelLink.HEARTBEAT_INTERVAL_MILLIS);
+        TunnelLink.HEARTBEAT_TIMEOUT_MILLIS = Long.getLong("warpdrive.heartbeatTimeout", TunnelLink.HEARTBEAT_TIMEOUT_MILLIS);
+        Metrics.PORT = Integer.getInteger("warpdrive.metricsPort", Metrics.PORT);
+        Admin.PORT = Integer.getInteger("warpdrive.adminPort", Admin.PORT);
+        Admin.TOKEN = System.getProperty("warpdrive.adminToken", Admin.TOKEN).trim();
+        if (Admin.PORT > 0 && Admin.TOKEN.isEmpty()) {
+            System.err.println("The admin port needs a token. Please set warpdrive.adminToken, preferably in the config file.");
+            return;
+        }
+        try {
+            Config.init("entry".equals(mode) || "exit".equals(mode) ? mode : null);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        Watchdog.CONNECT_TIMEOUT_MILLIS = Integer.getInteger("warpdrive.connectTimeout", Watchdog.CONNECT_TIMEOUT_MILLIS);
+        Watchdog.HANDSHAKE_TIMEOUT_MILLIS = Integer.getInteger("warpdrive.handshakeTimeout", Watchdog.HANDSHAKE_TIMEOUT_MILLIS);
         switch (mode) {
             case "entry":
                 EntryPoint.PROXY_PORT = args.length > 1 ? Integer.parseInt(args[1]) : EntryPoint.PROXY_PORT;
                 EntryPoint.EXIT_SERVER_PORT = args.length > 2 ? Integer.parseInt(args[2]) : EntryPoint.EXIT_SERVER_PORT;
                 EntryPoint.IS_FORWARD = args.length > 3 ? Boolean.parseBoolean(args[3]) : EntryPoint.IS_FORWARD;
+                EntryPoint.ENGINE = args.length > 4 ? args[4].toLowerCase() : EntryPoint.ENGINE;
+                EntryPoint.EVENT_LOOPS = Integer.getInteger("warpdrive.eventLoops", EntryPoint.EVENT_LOOPS);
+                if (!isValidEngine(EntryPoint.ENGINE)) return;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    EntryPoint.drain(TimeUnit.SECONDS.toMillis(Config.settings().drainSeconds));
+                    Threads.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+                    Log.flush(SHUTDOWN_TIMEOUT_MILLIS);
+                }));
                 EntryPoint.start(args);
+                Config.watch();
+                Threads.awaitShutdown();
                 break;
 
             case "exit":
                 ExitPoint.ENTRY_HOST = args.length > 1 ? args[1] : ExitPoint.ENTRY_HOST;
                 ExitPoint.ENTRY_PORT = args.length > 2 ? Integer.parseInt(args[2]) : ExitPoint.ENTRY_PORT;
                 ExitPoint.CONNECTION_COUNT = args.length > 3 ? Integer.parseInt(args[3]) : ExitPoint.CONNECTION_COUNT;
+                ExitPoint.ENGINE = args.length > 4 ? args[4].toLowerCase() : ExitPoint.ENGINE;
+                ExitPoint.EVENT_LOOPS = Integer.getInteger("warpdrive.eventLoops", ExitPoint.EVENT_LOOPS);
+                ExitPoint.MAX_LINKS = Integer.getInteger("warpdrive.maxLinks", ExitPoint.MAX_LINKS);
+                ExitPoint.LINK_IDLE_SECONDS = Integer.getInteger("warpdrive.linkIdle", ExitPoint.LINK_IDLE_SECONDS);
+                if (!isValidEngine(ExitPoint.ENGINE)) return;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    ExitPoint.drain(TimeUnit.SECONDS.toMillis(Config.settings().drainSeconds));
+                    Threads.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+                    Log.flush(SHUTDOWN_TIMEOUT_MILLIS);
+                }));
                 ExitPoint.start(args);
+                Config.watch();
+                Threads.awaitShutdown();
+                break;
+
+            case "bench":
+                Bench.ENTRY_HOST = args.length > 1 ? args[1] : Bench.ENTRY_HOST;
+                Bench.ENTRY_PORT = args.length > 2 ? Integer.parseInt(args[2]) : Bench.ENTRY_PORT;
+                Bench.CLIENTS = args.length > 3 ? Integer.parseInt(args[3]) : Bench.CLIENTS;
+                Bench.SECONDS = args.length > 4 ? Integer.parseInt(args[4]) : Bench.SECONDS;
+                Bench.PAYLOAD = Integer.getInteger("warpdrive.benchPayload", Bench.PAYLOAD);
+                Bench.EXCHANGES = Integer.getInteger("warpdrive.benchExchanges", Bench.EXCHANGES);
+                Bench.CHURN = Integer.getInteger("warpdrive.benchChurn", Bench.CHURN);
+                Bench.TARGET = System.getProperty("warpdrive.benchTarget", Bench.TARGET);
+                Bench.TIMEOUT_MILLIS = Integer.getInteger("warpdrive.benchTimeout", Bench.TIMEOUT_MILLIS);
+                Bench.SCRAPE = System.getProperty("warpdrive.benchScrape", Bench.SCRAPE);
+                try {
+                    Bench.run();
+                } catch (IOException e) {
+                    System.err.println("Bench failed: " + e.getMessage());
+                }
+                Threads.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+                Log.flush(SHUTDOWN_TIMEOUT_MILLIS);
                 break;
 
             default:
-                System.err.println("Invalid mode. Please specify 'entry' or 'exit'.");
+                System.err.println("Invalid mode. Please specify 'entry', 'exit' or 'bench'.");
         }
     }
+
+    /**
+     * Checks that the engine named on the command line exists.
+     *
+     * @param engine The engine name.
+     * @return True if the engine is supported, false after printing an error otherwise.
+     */
+    private static boolean isValidEngine(String engine) {
+        if ("blocking".equals(engine) || "virtual".equals(engine) || "nio".equals(engine)) return true;
+        System.err.println("Invalid engine. Please specify 'blocking', 'virtual' or 'nio'.");
+        return false;
+    }
 }
@@ -0,0 +1,442 @@
+package id.levelapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bench is a load generator for a running EntryPoint. Client threads open CONNECT tunnels through the Entry
+ * to a target served by the bench itself, push payloads through them and close them again, so a deployment
+ * can be capacity- and soak-tested on its own hardware through the same code paths real clients use.
+ * <p>
+ * The built-in target speaks a tiny protocol: the client sends a command byte and an 8-byte length.
+ * {@link #UPLOAD} makes the target read that many bytes and answer with one byte; {@link #DOWNLOAD}
+ * makes it send that many bytes. An exchange is one upload followed by one download of the payload.
+ * <p>
+ * At the end the bench reports tunnels per second, throughput, latency percentiles and errors by cause.
+ * Given the metrics ports of Entry and Exit Points on the same host, it also reports how many threads,
+ * file descriptors and tunnels they still hold once the load is gone, which should all return to where
+ * they started.
+ */
+final class Bench {
+    /** Command: the client sends the bytes, the target discards them and acknowledges with one byte. */
+    static final byte UPLOAD = 'U';
+    /** Command: the target sends the bytes. */
+    static final byte DOWNLOAD = 'D';
+
+    /** Host of the EntryPoint under test. */
+    static String ENTRY_HOST = "localhost";
+    /** Proxy port of the EntryPoint under test. */
+    static int ENTRY_PORT = 8010;
+    /** Number of concurrent clients, each holding one tunnel at a time. */
+    static int CLIENTS = 100;
+    /** Length of the run in seconds. */
+    static int SECONDS = 30;
+    /** Bytes sent each way per exchange. */
+    static int PAYLOAD = 16384;
+    /** Exchanges per tunnel before it is closed and a new one is opened. */
+    static int EXCHANGES = 1;
+    /** Maximum new tunnels per second over all clients, 0 for no limit. */
+    static int CHURN = 0;
+    /**
+     * Address the ExitPoint connects to for the built-in target, "host:port". The target listens on that port
+     * on every interface; null to listen on an ephemeral loopback port, for an ExitPoint on the same host.
+     */
+    static String TARGET = null;
+    /** How long a client waits for the Entry or the target before giving up on a tunnel. */
+    static int TIMEOUT_MILLIS = 10000;
+    /** Comma-separated local metrics ports of the Entry and Exit Points to check for leaks, null to skip. */
+    static String SCRAPE = null;
+
+    /** How long the Entry and Exit Points get to release tunnels after the load stops. */
+    private static final long SETTLE_MILLIS = 10000;
+    private static final int CHUNK = 65536;
+    private static final String[] LEAK_METRICS = {"warpdrive_tunnels_active", "warpdrive_threads", "process_open_fds"};
+
+    private static final Metrics.Histogram openLatency = new Metrics.Histogram();
+    private static final Metrics.Histogram exchangeLatency = new Metrics.Histogram();
+    private static final LongAdder tunnels = new LongAdder();
+    private static final LongAdder exchanges = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private static final AtomicLong nextOpen = new AtomicLong();
+
+    private Bench() {}
+
+    /**
+     * A CONNECT answered with a status other than 200.
+     */
+    static final class Refused extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /** The status code, e.g. "502". */
+        final String status;
+
+        Refused(String status) {
+            super("CONNECT answered " + status);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Runs the bench and prints its report.
+     *
+     * @throws IOException If the target cannot be started.
+     */
+    static void run() throws IOException {
+        long fdsBefore = Metrics.openFileDescriptors();
+        ServerSocketChannel server = listen(TARGET);
+        String target = TARGET != null ? TARGET : "127.0.0.1:" + server.socket().getLocalPort();
+        serve(server);
+        System.out.println("Bench: " + CLIENTS + " clients through " + ENTRY_HOST + ":" + ENTRY_PORT + " to " + target
+                + " for " + SECONDS + " s, " + PAYLOAD + " bytes x " + EXCHANGES + " exchanges per tunnel"
+                + (CHURN > 0 ? ", at most " + CHURN + " new tunnels/s" : ""));
+        Map<String, Long> before = scrape();
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        nextOpen.set(start);
+        CountDownLatch done = new CountDownLatch(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            Threads.start(() -> {
+                try {
+                    client(target, deadline);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long previous = 0;
+        try {
+            while (!done.await(1, TimeUnit.SECONDS)) {
+                long total = tunnels.sum();
+                System.out.println(String.format("%4d s  %7d tunnels/s  %6d errors", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                        total - previous, errorCount()));
+                previous = total;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.close();
+
+        System.out.println();
+        System.out.println(String.format("tunnels      %d (%.0f/s)", tunnels.sum(), tunnels.sum() / seconds));
+        System.out.println(String.format("exchanges    %d (%.0f/s)", exchanges.sum(), exchanges.sum() / seconds));
+        System.out.println(String.format("throughput   %.3f Gbit/s", bytes.sum() * 8 / seconds / 1e9));
+        print("open", openLatency);
+        print("exchange", exchangeLatency);
+        System.out.println("errors       " + (errors.isEmpty() ? "none" : ""));
+        new TreeMap<>(errors).forEach((cause, count) -> System.out.println("  " + cause + " " + count.sum()));
+        reportLeaks(before, fdsBefore);
+    }
+
+    /**
+     * Opens a tunnel to a target through the EntryPoint.
+     *
+     * @param proxyHost The EntryPoint host.
+     * @param proxyPort The EntryPoint proxy port.
+     * @param target    The target as "host:port".
+     * @param timeoutMillis The read timeout of the socket, 0 for none.
+     * @return The client side of the tunnel, after the EntryPoint answered 200.
+     * @throws IOException If the connection fails or the EntryPoint answers with another status.
+     */
+    static Socket connect(String proxyHost, int proxyPort, String target, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(new InetSocketAddress(proxyHost, proxyPort), timeoutMillis);
+            OutputStream output = socket.getOutputStream();
+            output.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            // The target sends nothing before a command, so after a 200 every byte read here belongs to the response head.
+            InputStream input = socket.getInputStream();
+            byte[] head = new byte[1024];
+            int length = 0;
+            while (!endsHead(head, length)) {
+                if (length == head.length) throw new ProtocolException("Response head too large");
+                int read = input.read(head, length, head.length - length);
+                if (read == -1) throw new EOFException("No response to CONNECT");
+                length += read;
+            }
+            String status = length >= 12 ? new String(head, 9, 3, StandardCharsets.US_ASCII) : "";
+            if (head[0] != 'H' || !"200".equals(status)) throw new Refused(status);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends bytes to the target and waits for its acknowledgement.
+     *
+     * @param socket  A tunnel from {@link #connect}.
+     * @param length  The number of bytes to send.
+     * @param scratch A buffer of any content to send from.
+     * @throws IOException If the tunnel fails.
+     */
+    static void upload(Socket socket, long length, byte[] scratch) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write(command(UPLOAD, length));
+        while (length > 0) {
+            int chunk = (int) Math.min(scratch.length, length);
+            output.write(scratch, 0, chunk);
+            length -= chunk;
+        }
+        output.flush();
+        if (socket.getInputStream().read() == -1) throw new EOFException("Tunnel closed before the upload was acknowledged");
+    }
+
+    /**
+     * Asks the target for bytes and reads them.
+     *
+     * @param socket  A tunnel from {@link #connect}.
+     * @param length  The number of bytes to receive.
+     * @param scratch A buffer to read into.
+     * @throws IOException If the tunnel fails.
+     */
+    static void download(Socket socket, long length, byte[] scratch) throws IOException {
+        socket.getOutputStream().write(command(DOWNLOAD, length));
+        InputStream input = socket.getInputStream();
+        while (length > 0) {
+            int read = input.read(scratch, 0, (int) Math.min(scratch.length, length));
+            if (read == -1) throw new EOFException("Tunnel closed with " + length + " bytes outstanding");
+            length -= read;
+        }
+    }
+
+    /**
+     * Opens the server socket of the built-in target.
+     *
+     * @param address "host:port" to listen on that port on every interface, or null for an ephemeral loopback port.
+     * @return The bound server channel.
+     * @throws IOException If the port cannot be bound.
+     */
+    static ServerSocketChannel listen(String address) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            if (address == null) {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+            } else {
+                server.bind(new InetSocketAddress(Integer.parseInt(address.substring(address.lastIndexOf(':') + 1))), 1024);
+            }
+            return server;
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Serves the built-in target on a server channel until it is closed, each connection on its own thread.
+     *
+     * @param server The channel from {@link #listen(String)}.
+     */
+    static void serve(ServerSocketChannel server) {
+        Threads.start(() -> {
+            try {
+                while (true) {
+                    SocketChannel channel = server.accept();
+                    Threads.start(() -> serveTarget(channel));
+                }
+            } catch (IOException ignored) {
+                // the server was closed
+            }
+        });
+    }
+
+    /**
+     * Runs one client until the deadline: opens a tunnel, does its exchanges, closes it, and again.
+     */
+    private static void client(String target, long deadline) {
+        byte[] scratch = new byte[CHUNK];
+        while (System.nanoTime() < deadline) {
+            awaitTurn();
+            long start = System.nanoTime();
+            try (Socket socket = connect(ENTRY_HOST, ENTRY_PORT, target, TIMEOUT_MILLIS)) {
+                openLatency.record(System.nanoTime() - start);
+                for (int i = 0; i < EXCHANGES && System.nanoTime() < deadline; i++) {
+                    long exchange = System.nanoTime();
+                    upload(socket, PAYLOAD, scratch);
+                    download(socket, PAYLOAD, scratch);
+                    exchangeLatency.record(System.nanoTime() - exchange);
+                    exchanges.increment();
+                    bytes.add(2L * PAYLOAD);
+                }
+                tunnels.increment();
+            } catch (IOException e) {
+                errors.computeIfAbsent(cause(e), cause -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next opening slot when the churn rate is limited. Slots left unused while clients were busy
+     * are not saved up, so a slow phase is not followed by a burst.
+     */
+    private static void awaitTurn() {
+        if (CHURN <= 0) return;
+        long interval = TimeUnit.SECONDS.toNanos(1) / CHURN;
+        long now = System.nanoTime();
+        long slot;
+        while (true) {
+            long next = nextOpen.get();
+            slot = Math.max(next, now);
+            if (nextOpen.compareAndSet(next, slot + interval)) break;
+        }
+        if (slot > now) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(slot - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Names the cause of a failed tunnel for the error breakdown.
+     */
+    private static String cause(IOException e) {
+        if (e instanceof Refused) return "status_" + ((Refused) e).status;
+        if (e instanceof ConnectException) return "entry_connect";
+        if (e instanceof SocketTimeoutException) return "timeout";
+        if (e instanceof EOFException) return "closed";
+        String message = String.valueOf(e.getMessage()).toLowerCase();
+        if (message.contains("reset")) return "reset";
+        if (message.contains("broken pipe")) return "broken_pipe";
+        return e.getClass().getSimpleName();
+    }
+
+    /**
+     * Serves the commands of one target connection until the client closes it.
+     */
+    private static void serveTarget(SocketChannel accepted) {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        ByteBuffer buffer = BufferPool.shared().acquire();
+        try (SocketChannel channel = accepted) {
+            channel.socket().setTcpNoDelay(true);
+            while (true) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header) == -1) return;
+                }
+                byte command = header.get(0);
+                long length = header.getLong(1);
+                if (command != UPLOAD && command != DOWNLOAD) return;
+                while (length > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length));
+                    if (command == UPLOAD) {
+                        if (channel.read(buffer) == -1) return;
+                        length -= buffer.position();
+                    } else {
+                        length -= buffer.remaining();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    }
+                }
+                if (command == UPLOAD) {
+                    buffer.clear();
+                    buffer.put(UPLOAD).flip();
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException ignored) {
+            // the client went away
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    /**
+     * @return True if the first bytes of a response include the blank line that ends its head.
+     */
+    private static boolean endsHead(byte[] head, int length) {
+        for (int i = 3; i < length; i++) {
+            if (head[i - 3] == '\r' && head[i - 2] == '\n' && head[i - 1] == '\r' && head[i] == '\n') return true;
+        }
+        return false;
+    }
+
+    private static byte[] command(byte command, long length) {
+        return ByteBuffer.allocate(9).put(command).putLong(length).array();
+    }
+
+    private static long errorCount() {
+        long total = 0;
+        for (LongAdder count : errors.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    private static void print(String name, Metrics.Histogram histogram) {
+        System.out.println(String.format("%-12s p50 %d us  p99 %d us  p99.9 %d us  mean %.0f us", name,
+                histogram.quantile(0.5), histogram.quantile(0.99), histogram.quantile(0.999), histogram.mean()));
+    }
+
+    /**
+     * Waits for the Entry and Exit Points to drop every tunnel, then prints what they hold compared to the start.
+     */
+    private static void reportLeaks(Map<String, Long> before, long fdsBefore) {
+        Map<String, Long> after = scrape();
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (after.entrySet().stream().anyMatch(e -> e.getKey().endsWith(LEAK_METRICS[0]) && e.getValue() > 0)
+                && System.currentTimeMillis() < deadline) {
+            sleep(500);
+            after = scrape();
+        }
+        System.out.println("leaks (idle pooled threads may linger for a minute)");
+        System.out.println("  bench process_open_fds " + (Metrics.openFileDescriptors() - fdsBefore));
+        for (Map.Entry<String, Long> entry : new TreeMap<>(after).entrySet()) {
+            Long start = before.get(entry.getKey());
+            if (start != null) System.out.println("  " + entry.getKey() + " " + (entry.getValue() - start));
+        }
+    }
+
+    /**
+     * Reads the leak metrics of every port in {@link #SCRAPE}.
+     *
+     * @return Values by "port metric"; ports that cannot be read are left out.
+     */
+    private static Map<String, Long> scrape() {
+        Map<String, Long> values = new TreeMap<>();
+        if (SCRAPE == null) return values;
+        for (String port : SCRAPE.split(",")) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(port.trim()))) {
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                socket.getOutputStream().write("GET /metrics HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    for (String name : LEAK_METRICS) {
+                        if (line.startsWith(name + " ")) values.put(port.trim() + " " + name, Long.parseLong(line.substring(name.length() + 1).trim()));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Could not read metrics on port " + port + ": " + e.getMessage());
+            }
+        }
+        return values;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
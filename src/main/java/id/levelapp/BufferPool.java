@@ -0,0 +1,144 @@
+package id.levelapp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool hands out direct (off-heap) relay buffers and takes them back for reuse.
+ * The free buffers are split over stripes, picked by thread id, to keep threads from contending on one queue.
+ * A thread takes from and returns to its own stripe first and only then tries the others, so free buffers
+ * never sit idle in one stripe while another thread allocates. The pool is bounded: once {@link #CAPACITY}
+ * direct buffers exist and none is free, further requests get short-lived heap buffers instead.
+ * A second, smaller pool of large buffers ({@link #bulk()}) serves relays that have turned out to carry bulk data.
+ */
+final class BufferPool {
+    /** Size of every relay buffer of the shared pool. */
+    static final int BUFFER_SIZE = 32768;
+    /** Maximum number of direct buffers the pool allocates. Must be set before the pool is first used. */
+    static int CAPACITY = 1024;
+    /** Size of every buffer of the bulk pool. */
+    static final int BULK_BUFFER_SIZE = 262144;
+    /** Maximum number of direct buffers the bulk pool allocates. Must be set before the pool is first used. */
+    static int BULK_CAPACITY = 64;
+
+    private static volatile BufferPool shared;
+    private static volatile BufferPool bulk;
+
+    private final ArrayBlockingQueue<ByteBuffer>[] stripes;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final int capacity;
+    private final int bufferSize;
+
+    /**
+     * Constructs a BufferPool of {@link #BUFFER_SIZE} buffers.
+     *
+     * @param capacity The maximum number of direct buffers to allocate.
+     * @param stripeCount The number of independent free lists.
+     */
+    BufferPool(int capacity, int stripeCount) {
+        this(capacity, stripeCount, BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a BufferPool, e.g. to compare relay buffer sizes in benchmarks.
+     *
+     * @param capacity The maximum number of direct buffers to allocate.
+     * @param stripeCount The number of independent free lists.
+     * @param bufferSize The size of every buffer in bytes.
+     */
+    @SuppressWarnings("unchecked")
+    BufferPool(int capacity, int stripeCount, int bufferSize) {
+        this.capacity = capacity;
+        this.bufferSize = bufferSize;
+        this.stripes = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[Math.max(1, stripeCount)];
+        int perStripe = Math.max(1, (capacity + stripes.length - 1) / stripes.length); // room for every buffer allocated
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ArrayBlockingQueue<>(perStripe);
+        }
+    }
+
+    /**
+     * @return The pool shared by every relay, with one stripe per available processor.
+     */
+    static BufferPool shared() {
+        BufferPool pool = shared;
+        if (pool == null) {
+            synchronized (BufferPool.class) {
+                pool = shared;
+                if (pool == null) {
+                    pool = new BufferPool(CAPACITY, Runtime.getRuntime().availableProcessors());
+                    shared = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return The pool of large buffers for bulk transfers, with one stripe per available processor.
+     */
+    static BufferPool bulk() {
+        BufferPool pool = bulk;
+        if (pool == null) {
+            synchronized (BufferPool.class) {
+                pool = bulk;
+                if (pool == null) {
+                    pool = new BufferPool(BULK_CAPACITY, Runtime.getRuntime().availableProcessors(), BULK_BUFFER_SIZE);
+                    bulk = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Takes a cleared direct buffer from the pool, allocating one if the pool is empty, unless the pool is exhausted.
+     *
+     * @return A direct buffer of the pool's buffer size, or null if the pool is exhausted.
+     */
+    ByteBuffer tryAcquire() {
+        int home = home();
+        for (int i = 0; i < stripes.length; i++) {
+            ByteBuffer buffer = stripes[(home + i) % stripes.length].poll();
+            if (buffer != null) return buffer;
+        }
+        if (allocated.incrementAndGet() <= capacity) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        allocated.decrementAndGet();
+        return null;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one if the pool is empty.
+     *
+     * @return A buffer of the pool's buffer size, direct unless the pool is exhausted.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = tryAcquire();
+        return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool. Heap buffers handed out while the pool was exhausted are simply dropped.
+     *
+     * @param buffer The buffer to return, may be null.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        buffer.clear();
+        int home = home();
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[(home + i) % stripes.length].offer(buffer)) return;
+        }
+        allocated.decrementAndGet(); // every stripe full, let the buffer be collected
+    }
+
+    /**
+     * @return The index of the calling thread's own stripe.
+     */
+    private int home() {
+        return (int) (Thread.currentThread().getId() % stripes.length);
+    }
+}
@@ -0,0 +1,176 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ChannelRelay copies bytes in both directions between two non-blocking channels on one {@link EventLoop}.
+ * A direction stops reading while its peer cannot accept more data or while its bandwidth limit
+ * is exceeded, and an end of stream on one side is passed on as a half-close of the other.
+ * The relay is closed once it has read nothing for {@link Watchdog#IDLE_TIMEOUT_SECONDS}.
+ */
+final class ChannelRelay {
+    private final Side client;
+    private final Side server;
+    private EventLoop loop;
+    private Runnable onClose;
+    private Watchdog.Watch idle;
+    private boolean closed;
+
+    /**
+     * Constructs a ChannelRelay.
+     *
+     * @param client          The client-facing channel.
+     * @param server          The server-facing channel.
+     * @param pendingToServer Bytes already read from the client that must reach the server first, may be null.
+     * @param pendingToClient Bytes that must reach the client before anything read from the server, may be null.
+     */
+    ChannelRelay(SocketChannel client, SocketChannel server, ByteBuffer pendingToServer, ByteBuffer pendingToClient) {
+        this.client = new Side(client, pendingToServer, Metrics.UPSTREAM_BYTES);
+        this.server = new Side(server, pendingToClient, Metrics.DOWNSTREAM_BYTES);
+        this.client.peer = this.server;
+        this.server.peer = this.client;
+    }
+
+    /**
+     * Registers both channels with the loop and starts relaying. Must be called on the loop thread.
+     *
+     * @param loop The loop owning both channels.
+     */
+    void start(EventLoop loop) {
+        this.loop = loop;
+        this.idle = Watchdog.idle(() -> loop.execute(this::close));
+        try {
+            client.key = loop.register(client.channel, 0, client);
+            server.key = loop.register(server.channel, 0, server);
+            client.flush();
+            server.flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Charges the bytes read from the client to the upstream direction of a flow, and those read from
+     * the server to its downstream direction. Must be called before {@link #start(EventLoop)}.
+     *
+     * @param flow The tunnel's flow.
+     */
+    void shape(Shaper.Flow flow) {
+        client.shaping = flow.upstream;
+        server.shaping = flow.downstream;
+    }
+
+    /**
+     * Registers a task to run once the relay is closed. Must be called before {@link #start(EventLoop)}.
+     *
+     * @param onClose The task to run.
+     */
+    void onClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * Closes both channels.
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        if (idle != null) idle.cancel();
+        NioEngine.closeQuietly(client.channel);
+        NioEngine.closeQuietly(server.channel);
+        BufferPool.shared().release(client.buffer);
+        BufferPool.shared().release(server.buffer);
+        if (onClose != null) onClose.run();
+    }
+
+    /**
+     * One end of the relay. Its buffer holds bytes read from its channel that are waiting to be written to the peer.
+     */
+    private final class Side implements EventLoop.Handler {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = BufferPool.shared().acquire();
+        private final LongAdder relayed;
+        private Shaper.Direction shaping;
+        private Side peer;
+        private SelectionKey key;
+        private boolean throttled;
+        private boolean inputDone;
+        private boolean outputDone;
+
+        Side(SocketChannel channel, ByteBuffer pending, LongAdder relayed) {
+            this.channel = channel;
+            this.relayed = relayed;
+            if (pending != null) buffer.put(pending);
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                idle.touch();
+                int read = channel.read(buffer);
+                if (read == -1) inputDone = true;
+                if (read > 0 && shaping != null) throttle(shaping.charge(read));
+                flush();
+            }
+            if (key.isValid() && key.isWritable()) {
+                peer.flush();
+            }
+        }
+
+        /**
+         * Writes buffered bytes to the peer, then updates the interest operations of both sides.
+         *
+         * @throws IOException If the peer channel fails.
+         */
+        void flush() throws IOException {
+            buffer.flip();
+            if (buffer.hasRemaining()) relayed.add(peer.channel.write(buffer));
+            buffer.compact();
+
+            if (inputDone && buffer.position() == 0 && !peer.outputDone) {
+                peer.outputDone = true;
+                peer.channel.shutdownOutput();
+            }
+            if (inputDone && outputDone && peer.inputDone && peer.outputDone) {
+                close();
+                return;
+            }
+            updateInterest();
+            peer.updateInterest();
+        }
+
+        /**
+         * Stops reading for a while, if the bandwidth limit asks for it.
+         *
+         * @param delayNanos How long to stop reading, 0 to go on.
+         */
+        private void throttle(long delayNanos) {
+            if (delayNanos <= 0) return;
+            throttled = true;
+            loop.schedule(() -> {
+                throttled = false;
+                updateInterest();
+            }, (delayNanos + 999_999) / 1_000_000);
+        }
+
+        /**
+         * Reads while there is room in the buffer and no bandwidth limit is exceeded,
+         * and waits for writability while the peer has bytes pending.
+         */
+        private void updateInterest() {
+            if (!key.isValid()) return;
+            int ops = 0;
+            if (!inputDone && !throttled && buffer.hasRemaining()) ops |= SelectionKey.OP_READ;
+            if (peer.buffer.position() > 0) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        @Override
+        public void close() {
+            ChannelRelay.this.close();
+        }
+    }
+}
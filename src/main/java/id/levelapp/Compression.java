@@ -0,0 +1,179 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression deflates DATA frames on Entry/Exit links, for ExitPoints behind slow uplinks that carry
+ * compressible traffic such as plain HTTP and JSON. An ExitPoint with a {@link #LEVEL} above 0 proposes
+ * it when its link connects; the EntryPoint agrees if its own level is above 0 too, and from then on both
+ * sides may deflate what they send. The client and target hops are never touched.
+ * <p>
+ * Each direction of a link is one deflate stream: frames are deflated in the order they are written and
+ * inflated in the order they are read, each ending with a sync flush, so a frame can be inflated as soon as
+ * it arrives while later frames still profit from the history of earlier ones, across all streams of the link.
+ * Compressed frames carry {@link TunnelLink#FLAG_DEFLATE}; any frame may also be sent as is.
+ * <p>
+ * Whether a stream's frames are worth deflating is decided per stream direction by a {@link Probe}: streams
+ * starting like TLS or an already compressed format are never deflated, and streams that shrink by less than
+ * a tenth are passed through for a while before being tried again.
+ */
+final class Compression {
+    /** Deflate level of the frames this side sends, 1 (fastest) to 9 (smallest), 0 to disable compression. */
+    static int LEVEL = 0;
+
+    /** Payloads smaller than this are sent as is; the sync flush alone costs several bytes. */
+    static final int MIN_SIZE = 128;
+    /** How many bytes larger than its payload a deflated frame may get, e.g. for data that does not compress. */
+    static final int MAX_EXPANSION = 1024;
+    /** Bytes a probe deflates before judging whether it is worth it. */
+    static final int SAMPLE_BYTES = 65536;
+    /** Deflated size, in percent of the original, above which a probe stops deflating. */
+    static final int MAX_RATIO_PERCENT = 90;
+    /** Bytes a probe passes through before trying to deflate again. */
+    static final int BYPASS_BYTES = 1 << 20;
+
+    private Compression() {}
+
+    /**
+     * Decides whether the frames of one stream direction are deflated. Used only by the writer holding
+     * the link's write lock.
+     */
+    static final class Probe {
+        private boolean started;
+        private boolean never;
+        private long bypassed;
+        private long sampled;
+        private long deflated;
+
+        /**
+         * @param payload The payload of the next frame; only its first bytes are looked at.
+         * @return True if the frame should be deflated.
+         */
+        boolean shouldDeflate(ByteBuffer payload) {
+            if (!started) {
+                started = true;
+                never = isIncompressible(payload);
+            }
+            if (never) return false;
+            if (bypassed > 0) {
+                bypassed -= payload.remaining();
+                return false;
+            }
+            return payload.remaining() >= MIN_SIZE;
+        }
+
+        /**
+         * Records the outcome of deflating a frame, starting a bypass if the last sample did not shrink enough.
+         *
+         * @param original The payload size.
+         * @param compressed The deflated size.
+         */
+        void record(int original, int compressed) {
+            sampled += original;
+            deflated += compressed;
+            if (sampled < SAMPLE_BYTES) return;
+            if (deflated * 100 > sampled * MAX_RATIO_PERCENT) bypassed = BYPASS_BYTES;
+            sampled = 0;
+            deflated = 0;
+        }
+
+        /**
+         * @return True if the data starts like a TLS record or a compressed file format.
+         */
+        private static boolean isIncompressible(ByteBuffer payload) {
+            int position = payload.position();
+            if (payload.remaining() < 3) return false;
+            int first = payload.get(position) & 0xFF;
+            int second = payload.get(position + 1) & 0xFF;
+            int third = payload.get(position + 2) & 0xFF;
+            return (first >= 0x14 && first <= 0x17 && second == 0x03) // TLS record
+                    || (first == 0x1F && second == 0x8B) // gzip
+                    || (first == 0x28 && second == 0xB5 && third == 0x2F) // zstd
+                    || (first == 'P' && second == 'K' && third == 3) // zip
+                    || (first == 0xFF && second == 0xD8 && third == 0xFF) // JPEG
+                    || (first == 0x89 && second == 'P' && third == 'N'); // PNG
+        }
+    }
+
+    /**
+     * The sending half of a link's compression. Used only by the writer holding the link's write lock.
+     */
+    static final class Deflating {
+        private final Deflater deflater = new Deflater(LEVEL, true);
+        private final byte[] input = new byte[TunnelLink.MAX_FRAME_SIZE];
+        /** One output buffer per frame of the largest write, since the frames go out together. */
+        private final byte[][] outputs = new byte[TunnelLink.MAX_WRITE_SIZE / TunnelLink.MAX_FRAME_SIZE][];
+
+        /**
+         * Deflates a payload and flushes it, so the peer can inflate it on its own.
+         *
+         * @param payload The payload, at most {@link TunnelLink#MAX_FRAME_SIZE} bytes; it is consumed.
+         * @param slot    The frame's index in the write, so frames of one write keep separate output.
+         * @return The deflated frame, valid until the slot is used again.
+         * @throws IOException If the deflated frame exceeds {@link #MAX_EXPANSION}.
+         */
+        ByteBuffer deflate(ByteBuffer payload, int slot) throws IOException {
+            int length = payload.remaining();
+            payload.get(input, 0, length);
+            byte[] output = outputs[slot];
+            if (output == null) {
+                output = new byte[TunnelLink.MAX_FRAME_SIZE + MAX_EXPANSION];
+                outputs[slot] = output;
+            }
+            deflater.setInput(input, 0, length);
+            int size = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+            if (size == output.length) throw new IOException("Deflated frame too large");
+            return ByteBuffer.wrap(output, 0, size);
+        }
+
+        /**
+         * Frees the native memory of the deflater.
+         */
+        void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The receiving half of a link's compression. Used only by the link's reader thread.
+     */
+    static final class Inflating {
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] output = new byte[TunnelLink.MAX_FRAME_SIZE];
+
+        /**
+         * Inflates a frame deflated by the peer's {@link Deflating}.
+         *
+         * @param payload The deflated frame.
+         * @return The original payload.
+         * @throws IOException If the frame is corrupt or inflates to more than {@link TunnelLink#MAX_FRAME_SIZE}.
+         */
+        byte[] inflate(byte[] payload) throws IOException {
+            inflater.setInput(payload);
+            int size = 0;
+            try {
+                while (!inflater.needsInput()) {
+                    if (size == output.length) throw new IOException("Inflated frame too large");
+                    int n = inflater.inflate(output, size, output.length - size);
+                    if (n == 0 && !inflater.needsInput()) throw new IOException("Corrupt deflated frame");
+                    size += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflated frame: " + e.getMessage(), e);
+            }
+            return Arrays.copyOf(output, size);
+        }
+
+        /**
+         * Frees the native memory of the inflater.
+         */
+        void end() {
+            inflater.end();
+        }
+    }
+}
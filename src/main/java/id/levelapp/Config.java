@@ -0,0 +1,368 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Config reads settings from the properties file named by {@code -Dwarpdrive.config=<file>} and applies
+ * changes to it while the application runs. Keys are the system property names without their "warpdrive."
+ * prefix, for example
+ * <pre>
+ *   logLevel=debug
+ *   shapeClient=2m
+ *   exitWeights=10.0.0.5=3,10.0.0.6=0
+ * </pre>
+ * At start, the file fills in every system property not given on the command line, so any setting can live
+ * there. The file is then checked every {@link #POLL_SECONDS} and on {@code POST /reload} on the {@link Admin} port;
+ * entries whose value changed are applied at once if they are in {@link #RELOADABLE}, the others are logged as
+ * needing a restart, and entries removed from the file keep their current value. A file with an invalid value
+ * is rejected as a whole, keeping the settings as they were. The reloadable settings live in one immutable
+ * {@link Settings} snapshot, so a reload changes all of them at once or none.
+ */
+final class Config {
+    /** Path of the config file, null if there is none. */
+    static String FILE = null;
+    /** How often the file is checked for changes. */
+    static final long POLL_SECONDS = 5;
+    /** Keys that take effect without a restart. */
+    static final String RELOADABLE = "logLevel, logRate, shapeGlobal, shapeClient, shapeTarget, shapeInteractive, balancer, exitWeights, drainTimeout,"
+            + " maxTunnels, exitWait, exitQueue, retryAfter, idleTimeout";
+    /** Reloadable keys that only concern an EntryPoint; an ExitPoint ignores them in the file. */
+    static final String ENTRY_ONLY = "shapeGlobal, shapeClient, shapeTarget, shapeInteractive, balancer, exitWeights, exitWait, exitQueue, retryAfter";
+    private static final Set<String> RELOADABLE_KEYS = new LinkedHashSet<>(Arrays.asList(RELOADABLE.split(",\\s*")));
+    private static final Set<String> ENTRY_ONLY_KEYS = new HashSet<>(Arrays.asList(ENTRY_ONLY.split(",\\s*")));
+
+    /** The role of the process, "entry" or "exit", set by {@link #init(String)}; null outside of either. */
+    static String ROLE = null;
+
+    private static volatile Settings settings = Settings.DEFAULTS;
+    /** The entries last applied. */
+    private static Properties current = new Properties();
+    private static long modified;
+
+    private Config() {}
+
+    /**
+     * Reads the file and sets every entry as a system property unless the command line already set it.
+     * Called before the settings are read from the system properties.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    static synchronized void load() throws IOException {
+        Path path = Paths.get(FILE);
+        modified = Files.getLastModifiedTime(path).toMillis();
+        current = read(path);
+        for (String key : current.stringPropertyNames()) {
+            if (System.getProperty("warpdrive." + key) == null) {
+                System.setProperty("warpdrive." + key, current.getProperty(key).trim());
+            }
+        }
+    }
+
+    /**
+     * Starts checking the file for changes if there is one.
+     */
+    static void watch() {
+        if (FILE == null) return;
+        Log.info("config.watch", "file", FILE, "pollSeconds", POLL_SECONDS);
+        Threads.housekeeping().scheduleWithFixedDelay(Config::poll, POLL_SECONDS, POLL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reloads the file if it was modified since it was last read.
+     */
+    private static void poll() {
+        try {
+            if (Files.getLastModifiedTime(Paths.get(FILE)).toMillis() == modified) return;
+            reload();
+        } catch (IOException e) {
+            Log.warn("config.read_failed", "file", FILE, "error", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            Log.warn("config.rejected", "file", FILE, "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the file and applies the entries that changed since the last time.
+     *
+     * @return The keys applied, e.g. "logLevel shapeClient", empty if nothing changed.
+     * @throws IOException              If the file cannot be read.
+     * @throws IllegalArgumentException If an entry is invalid; nothing is changed then.
+     */
+    static synchronized String reload() throws IOException {
+        if (FILE == null) throw new IllegalArgumentException("No config file, start with -Dwarpdrive.config=<file>.");
+        Path path = Paths.get(FILE);
+        modified = Files.getLastModifiedTime(path).toMillis();
+        Properties next = read(path);
+        Map<String, String> changed = new TreeMap<>();
+        for (String key : next.stringPropertyNames()) {
+            String value = next.getProperty(key).trim();
+            String previous = current.getProperty(key);
+            if (previous == null || !previous.trim().equals(value)) changed.put(key, value);
+        }
+        apply(changed);
+        current = next;
+        return String.join(" ", changed.keySet());
+    }
+
+    private static Properties read(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(path)) {
+            properties.load(input);
+        }
+        return properties;
+    }
+
+    /**
+     * Validates every changed entry, then applies the reloadable ones. Entries that only concern the other role,
+     * such as the balancer on an ExitPoint, are ignored, so both roles can share one file.
+     *
+     * @param changed The changed entries by key.
+     * @throws IllegalArgumentException If an entry is invalid; nothing is changed then.
+     */
+    private static void apply(Map<String, String> changed) {
+        Map<String, String> reloadable = new TreeMap<>();
+        List<String> ignored = new ArrayList<>();
+        List<String> restart = new ArrayList<>();
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
+            String key = entry.getKey();
+            if (!RELOADABLE_KEYS.contains(key)) {
+                restart.add(key);
+            } else if ("exit".equals(ROLE) && ENTRY_ONLY_KEYS.contains(key)) {
+                ignored.add(key);
+            } else {
+                reloadable.put(key, entry.getValue());
+            }
+        }
+        update(reloadable);
+        if (!reloadable.isEmpty()) Log.info("config.reload", "file", FILE, "changed", String.join(" ", reloadable.keySet()));
+        if (!ignored.isEmpty()) Log.info("config.ignored", "keys", String.join(" ", ignored), "role", ROLE);
+        if (!restart.isEmpty()) Log.warn("config.restart_required", "keys", String.join(" ", restart));
+    }
+
+    /**
+     * Reads the reloadable settings from the system properties, once at start and before any thread reads them.
+     *
+     * @param role "entry" or "exit", or null outside of either role, e.g. in bench mode.
+     * @throws IllegalArgumentException If a setting is invalid, or one that only concerns the other role is given.
+     */
+    static synchronized void init(String role) {
+        ROLE = role;
+        Map<String, String> given = new TreeMap<>();
+        List<String> ignored = new ArrayList<>();
+        for (String key : RELOADABLE_KEYS) {
+            String value = System.getProperty("warpdrive." + key);
+            if (value == null) continue;
+            if ("exit".equals(role) && ENTRY_ONLY_KEYS.contains(key)) {
+                if (current.getProperty(key) == null) throw new IllegalArgumentException("Setting " + key + " only applies to an EntryPoint.");
+                ignored.add(key); // from a config file shared with the EntryPoint
+                continue;
+            }
+            given.put(key, value.trim());
+        }
+        settings = new Settings(Settings.DEFAULTS, given);
+        if (!ignored.isEmpty()) Log.info("config.ignored", "keys", String.join(" ", ignored), "role", role);
+    }
+
+    /**
+     * Validates changed settings and swaps them in as a new snapshot, all at once.
+     *
+     * @param changed The changed reloadable settings by key, e.g. "shapeClient" to "2m".
+     * @throws IllegalArgumentException If a setting is invalid; nothing is changed then.
+     */
+    static synchronized void update(Map<String, String> changed) {
+        if (changed.isEmpty()) return;
+        Settings next = new Settings(settings, changed);
+        settings = next;
+        if (changed.containsKey("balancer") || changed.containsKey("exitWeights")) EntryPoint.applyBalancer(next);
+    }
+
+    /**
+     * @return The reloadable settings in effect; read it once per decision, so the decision sees one snapshot.
+     */
+    static Settings settings() {
+        return settings;
+    }
+
+    private static int count(String key, String value) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count >= 0) return count;
+        } catch (NumberFormatException ignored) {}
+        throw new IllegalArgumentException("Invalid " + key + " '" + value + "', use a whole number of at least 0.");
+    }
+
+    private static long rate(String key, String value) {
+        long rate;
+        try {
+            rate = Shaper.parseRate(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + " '" + value + "', use bytes per second, optionally with a 'k', 'm' or 'g' suffix.");
+        }
+        if (rate < 0) throw new IllegalArgumentException("Invalid " + key + " '" + value + "', must not be negative.");
+        return rate;
+    }
+
+    /**
+     * An immutable snapshot of the settings that can change while the application runs. A reload builds a new
+     * snapshot and replaces the old one with a single volatile write, so a reader never sees half a reload.
+     * The other settings are plain static fields of the classes using them: they are set once in
+     * {@link Application#main(String[])} before any thread that reads them is started.
+     */
+    static final class Settings {
+        /** The settings of a process started without any of them. */
+        static final Settings DEFAULTS = new Settings();
+
+        /** Least severe log level that is written, see {@link Log}. */
+        final int logLevel;
+        /** Maximum log lines per second for each event name, 0 for no limit. */
+        final int logRate;
+        /** How long a drain waits for running tunnels to finish before closing them. */
+        final int drainSeconds;
+        /** Maximum number of concurrent tunnels, 0 for no limit; see {@link Admission}. */
+        final int maxTunnels;
+        /** How long a tunnel waits for an ExitPoint link when none is available, 0 to answer 503 at once. */
+        final int exitWaitMillis;
+        /** How many tunnels may wait for an ExitPoint link at the same time. */
+        final int exitQueue;
+        /** The Retry-After of a 503, in seconds. */
+        final int retryAfterSeconds;
+        /** How long a tunnel may relay nothing in either direction before it is closed, 0 to keep idle tunnels open. */
+        final int idleTimeoutSeconds;
+        /** How new tunnels are spread over ExitPoints: "round-robin", "least-outstanding", "ewma" or "p2c". */
+        final String balancer;
+        /** Weights of ExitPoint hosts by IP address, see {@link ExitBalancer#parseWeights(String)}; hosts left out weigh 1. */
+        final Map<String, Integer> exitWeights;
+        /** Bytes per second per direction for all tunnels together, 0 for no limit; see {@link Shaper}. */
+        final long shapeGlobal;
+        /** Bytes per second per direction for the tunnels of one client IP, 0 for no limit. */
+        final long shapeClient;
+        /** Bytes per second per direction for the tunnels to one target host, 0 for no limit. */
+        final long shapeTarget;
+        /** Bytes a direction may relay after a pause before it can be delayed. */
+        final int shapeInteractive;
+
+        private Settings() {
+            logLevel = Log.INFO;
+            logRate = 100;
+            drainSeconds = 20;
+            maxTunnels = 0;
+            exitWaitMillis = 2000;
+            exitQueue = 256;
+            retryAfterSeconds = 1;
+            idleTimeoutSeconds = 300;
+            balancer = "p2c";
+            exitWeights = Collections.emptyMap();
+            shapeGlobal = 0;
+            shapeClient = 0;
+            shapeTarget = 0;
+            shapeInteractive = 8192;
+        }
+
+        /**
+         * Constructs the settings that result from changing some of a snapshot's.
+         *
+         * @param base    The settings to start from.
+         * @param changed The changed settings by key; keys that are not reloadable are ignored.
+         * @throws IllegalArgumentException If a value is invalid.
+         */
+        Settings(Settings base, Map<String, String> changed) {
+            int logLevel = base.logLevel;
+            int logRate = base.logRate;
+            int drainSeconds = base.drainSeconds;
+            int maxTunnels = base.maxTunnels;
+            int exitWaitMillis = base.exitWaitMillis;
+            int exitQueue = base.exitQueue;
+            int retryAfterSeconds = base.retryAfterSeconds;
+            int idleTimeoutSeconds = base.idleTimeoutSeconds;
+            String balancer = base.balancer;
+            Map<String, Integer> exitWeights = base.exitWeights;
+            long shapeGlobal = base.shapeGlobal;
+            long shapeClient = base.shapeClient;
+            long shapeTarget = base.shapeTarget;
+            int shapeInteractive = base.shapeInteractive;
+            for (Map.Entry<String, String> entry : changed.entrySet()) {
+                String key = entry.getKey();
+                String value = entry.getValue().trim();
+                switch (key) {
+                    case "logLevel":
+                        logLevel = Log.level(value);
+                        if (logLevel < 0) throw new IllegalArgumentException("Invalid logLevel '" + value + "', use 'debug', 'info', 'warn' or 'error'.");
+                        break;
+                    case "logRate":
+                        logRate = count(key, value);
+                        break;
+                    case "drainTimeout":
+                        drainSeconds = count(key, value);
+                        break;
+                    case "maxTunnels":
+                        maxTunnels = count(key, value);
+                        break;
+                    case "exitWait":
+                        exitWaitMillis = count(key, value);
+                        break;
+                    case "exitQueue":
+                        exitQueue = count(key, value);
+                        break;
+                    case "retryAfter":
+                        retryAfterSeconds = count(key, value);
+                        break;
+                    case "idleTimeout":
+                        idleTimeoutSeconds = count(key, value); // applies to tunnels opened from now on
+                        break;
+                    case "balancer":
+                        balancer = value.toLowerCase();
+                        if (ExitBalancer.strategy(balancer) == null) {
+                            throw new IllegalArgumentException("Invalid balancer '" + value + "', use 'round-robin', 'least-outstanding', 'ewma' or 'p2c'.");
+                        }
+                        break;
+                    case "exitWeights":
+                        exitWeights = ExitBalancer.parseWeights(value);
+                        break;
+                    case "shapeGlobal":
+                        shapeGlobal = rate(key, value);
+                        break;
+                    case "shapeClient":
+                        shapeClient = rate(key, value);
+                        break;
+                    case "shapeTarget":
+                        shapeTarget = rate(key, value);
+                        break;
+                    case "shapeInteractive":
+                        shapeInteractive = count(key, value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            this.logLevel = logLevel;
+            this.logRate = logRate;
+            this.drainSeconds = drainSeconds;
+            this.maxTunnels = maxTunnels;
+            this.exitWaitMillis = exitWaitMillis;
+            this.exitQueue = exitQueue;
+            this.retryAfterSeconds = retryAfterSeconds;
+            this.idleTimeoutSeconds = idleTimeoutSeconds;
+            this.balancer = balancer;
+            this.exitWeights = exitWeights;
+            this.shapeGlobal = shapeGlobal;
+            this.shapeClient = shapeClient;
+            this.shapeTarget = shapeTarget;
+            this.shapeInteractive = shapeInteractive;
+        }
+    }
+}
@@ -2,7 +2,14 @@ package id.levelapp;
 
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * EntryPoint class acts as the entry point for the HTTP proxy server.
@@ -15,9 +22,24 @@ public class EntryPoint {
     public static int EXIT_SERVER_PORT = 1080;
     /** Forward mode: true if requests should be forwarded to ExitPoints, false for direct connection. */
     public static boolean IS_FORWARD = true;
+    /**
+     * Connection engine: "blocking" for a platform thread per connection, "virtual" for a virtual thread
+     * per connection, "nio" for non-blocking event loops. The event loops only carry CONNECT tunnels, see
+     * {@link NioEngine}; plain HTTP requests and ExitPoint links keep a thread each.
+     */
+    public static String ENGINE = "blocking";
+    /** Number of event loops used by the "nio" engine. */
+    public static int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+    /** How many ExitPoints a tunnel is offered to when links close before answering its OPEN. */
+    static final int MAX_OPEN_ATTEMPTS = 3;
 
-    private static final ConcurrentLinkedQueue<Socket> exitPoints = new ConcurrentLinkedQueue<>();
-    private static int roundRobinIndex = 0;
+    private static final ExitBalancer exitPoints = new ExitBalancer();
+    private static final AtomicInteger admitted = new AtomicInteger();
+    private static volatile boolean running = true;
+    private static final AtomicBoolean draining = new AtomicBoolean();
+    private static volatile ServerSocketChannel proxyServerChannel;
+    private static volatile ServerSocketChannel exitServerChannel;
+    private static volatile NioEngine nioEngine;
 
     /**
      * Starts the HTTP proxy server.
@@ -25,103 +47,372 @@ public class EntryPoint {
      * @param args Command-line arguments.
      */
     public static void start(String[] args) {
-        System.out.println("Starting HTTP Proxy on port " + PROXY_PORT);
+        Log.info("entry.start", "port", PROXY_PORT);
+        applyBalancer(Config.settings());
+        Metrics.gauge("warpdrive_links", "ExitPoint links connected.", () -> exitPoints.links().length);
+        Metrics.gauge("warpdrive_exit_waiters", "Tunnels waiting for an ExitPoint link.", exitPoints::waiting);
+        Metrics.start();
+        Admin.start();
+
+        if ("virtual".equals(ENGINE) && !Threads.useVirtualThreads()) {
+            Log.warn("threads.virtual_unavailable", "fallback", "platform");
+        }
 
         if (IS_FORWARD) {
-            new Thread(EntryPoint::listenForExitPoints).start(); // Listen for ExitPoints
+            Threads.start(EntryPoint::listenForExitPoints); // Listen for ExitPoints
+        }
+
+        if ("nio".equals(ENGINE)) {
+            listenForClientsNio();
+        } else {
+            Threads.start(EntryPoint::listenForClients); // Listen for Clients
+        }
+    }
+
+    /**
+     * Drains the EntryPoint before it stops: stops accepting clients and ExitPoints, sends every ExitPoint a
+     * GOAWAY so it connects a replacement link to the EntryPoint taking over, and waits for the tunnels in flight
+     * to finish. Whatever is still open after the timeout is closed by {@link #stop()}. Only the first call drains.
+     *
+     * @param timeoutMillis How long running tunnels may take to finish.
+     * @return True if every tunnel finished in time.
+     */
+    public static boolean drain(long timeoutMillis) {
+        if (!draining.compareAndSet(false, true)) return false;
+        running = false;
+        NioEngine.closeQuietly(proxyServerChannel);
+        NioEngine.closeQuietly(exitServerChannel);
+        Log.info("entry.drain", "tunnels", Metrics.ACTIVE_TUNNELS.get(), "timeoutMillis", timeoutMillis);
+        for (TunnelLink link : exitPoints.links()) {
+            link.goAway();
         }
+        boolean drained = Threads.await(() -> Metrics.ACTIVE_TUNNELS.get() == 0, timeoutMillis);
+        Log.info("entry.drained", "remaining", Metrics.ACTIVE_TUNNELS.get());
+        stop();
+        return drained;
+    }
 
-        new Thread(EntryPoint::listenForClients).start(); // Listen for Clients
+    /**
+     * Switches the strategy and weights that spread new tunnels over ExitPoints, at start and when the config is reloaded.
+     *
+     * @param settings The settings holding the balancer and the ExitPoint weights, already validated.
+     */
+    static void applyBalancer(Config.Settings settings) {
+        exitPoints.setStrategy(ExitBalancer.strategy(settings.balancer));
+        exitPoints.setWeights(settings.exitWeights);
+    }
+
+    /**
+     * Stops accepting clients and ExitPoints, closes every ExitPoint link, which resets the tunnels on it,
+     * and stops the event loops of the nio engine.
+     */
+    public static void stop() {
+        running = false;
+        NioEngine.closeQuietly(proxyServerChannel);
+        NioEngine.closeQuietly(exitServerChannel);
+        Metrics.stop();
+        Admin.stop();
+        for (TunnelLink link : exitPoints.links()) {
+            link.close();
+        }
+        NioEngine engine = nioEngine;
+        if (engine != null) engine.shutdown(NioEngine.SHUTDOWN_TIMEOUT_MILLIS);
     }
 
     /**
      * Listens for connections from ExitPoints.
      */
     private static void listenForExitPoints() {
-        try (ServerSocket serverSocket = new ServerSocket(EXIT_SERVER_PORT)) {
-            System.out.println("Listening for ExitPoints on port " + EXIT_SERVER_PORT);
-            while (true) {
-                Socket exitSocket = serverSocket.accept();
-                System.out.println("New ExitPoint connected: " + exitSocket.getRemoteSocketAddress());
-                exitPoints.add(exitSocket);
-                new Thread(() -> monitorExitPointConnection(exitSocket)).start();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            SocketTuning.LINK.applyToListener(serverChannel);
+            serverChannel.bind(new InetSocketAddress(EXIT_SERVER_PORT));
+            TargetPool.listening(EXIT_SERVER_PORT);
+            exitServerChannel = serverChannel;
+            Log.info("exit.listen", "port", EXIT_SERVER_PORT);
+            while (running) {
+                SocketChannel exitChannel = accept(serverChannel, "link");
+                SocketTuning.LINK.applyQuietly(exitChannel, "link");
+                Log.info("exit.connect", "exit", exitChannel.getRemoteAddress());
+                Threads.start(() -> monitorExitPointConnection(exitChannel));
             }
         } catch (IOException e) {
-            System.err.println("Error in ExitPoint connection: " + e.getMessage());
+            if (running) Log.error("exit.accept_error", "error", e.getMessage());
         }
     }
 
     /**
-     * Monitors the connection to an ExitPoint and removes it from the list when disconnected.
+     * Performs the tunnel handshake with an ExitPoint, makes its link available to clients and
+     * serves the link until it disconnects, then removes it from the list.
      * 
-     * @param socket The socket connection to the ExitPoint.
+     * @param channel The connection to the ExitPoint.
      */
-    private static void monitorExitPointConnection(Socket socket) {
+    private static void monitorExitPointConnection(SocketChannel channel) {
+        Watchdog.Watch handshake = Watchdog.handshake(() -> NioEngine.closeQuietly(channel));
+        TunnelLink link;
         try {
-            socket.getInputStream().read(); // Block until socket is closed
-        } catch (IOException ignored) {}
-        System.out.println("ExitPoint disconnected: " + socket.getRemoteSocketAddress());
-        exitPoints.remove(socket);
+            link = new TunnelLink(channel, null);
+            link.handshake();
+        } catch (IOException e) {
+            handshake.cancel();
+            Log.warn("exit.handshake_failed", "error", e.getMessage());
+            NioEngine.closeQuietly(channel);
+            return;
+        }
+        if (!handshake.cancel()) { // timed out, the channel is closed
+            link.close();
+            return;
+        }
+        link.onGoAway(() -> exitPoints.remove(link)); // the ExitPoint is draining
+        exitPoints.add(link);
+        if (!running) link.goAway(); // accepted while the EntryPoint started draining
+        link.run(); // Block until the link is closed
+        Log.info("exit.disconnect", "exit", link.getRemoteSocketAddress());
+        exitPoints.remove(link);
     }
 
     /**
      * Listens for client connections and handles them using ProxyHandler.
+     * Once maxTunnels clients are being served, new connections are answered with a 503.
      */
     private static void listenForClients() {
-        try (ServerSocket proxySocket = new ServerSocket(PROXY_PORT)) {
-            System.out.println("Listening for Clients on port " + PROXY_PORT);
-            while (true) {
-                Socket clientSocket = proxySocket.accept();
-                new Thread(new ProxyHandler(clientSocket)).start();
+        try (ServerSocketChannel proxyChannel = ServerSocketChannel.open()) {
+            SocketTuning.CLIENT.applyToListener(proxyChannel);
+            proxyChannel.bind(new InetSocketAddress(PROXY_PORT));
+            TargetPool.listening(PROXY_PORT);
+            proxyServerChannel = proxyChannel;
+            Log.info("client.listen", "port", PROXY_PORT);
+            while (running) {
+                SocketChannel clientChannel = accept(proxyChannel, "client");
+                if (!admitTunnel()) {
+                    Admission.reject(clientChannel, "Too many tunnels.");
+                    continue;
+                }
+                SocketTuning.CLIENT.applyQuietly(clientChannel, "client");
+                Threads.start(() -> {
+                    try {
+                        new ProxyHandler(clientChannel).run();
+                    } finally {
+                        releaseTunnel();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (running) Log.error("client.accept_error", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Accepts the next connection, riding out failures that do not concern the listening socket, such as
+     * running out of file descriptors, with a short pause instead of giving up on the listener.
+     *
+     * @param server The listening socket, in blocking mode.
+     * @param hop    The hop name for the log line.
+     * @return The accepted connection.
+     * @throws IOException If the listening socket is closed or the thread is interrupted.
+     */
+    private static SocketChannel accept(ServerSocketChannel server, String hop) throws IOException {
+        while (true) {
+            try {
+                return server.accept();
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                Metrics.error("accept");
+                Log.warn("accept.error", "hop", hop, "error", e.getMessage());
+            }
+            try {
+                Thread.sleep(NioEngine.ACCEPT_BACKOFF_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while accepting");
             }
+        }
+    }
+
+    /**
+     * Listens for client connections on the event loops of an NioEngine and handles them using NioProxyHandler.
+     * Once maxTunnels clients are being served, new connections are answered with a 503.
+     */
+    private static void listenForClientsNio() {
+        try {
+            NioEngine engine = new NioEngine(EVENT_LOOPS);
+            nioEngine = engine;
+            proxyServerChannel = engine.listen(PROXY_PORT, SocketTuning.CLIENT, (loop, channel) -> {
+                if (!admitTunnel()) {
+                    Admission.reject(channel, "Too many tunnels.");
+                    return;
+                }
+                AtomicBoolean released = new AtomicBoolean();
+                new NioProxyHandler(loop, channel, () -> {
+                    if (released.compareAndSet(false, true)) releaseTunnel();
+                }).start();
+            });
+            Log.info("client.listen", "port", PROXY_PORT, "eventLoops", EVENT_LOOPS);
         } catch (IOException e) {
-            System.err.println("Error listening for clients: " + e.getMessage());
+            Log.error("client.accept_error", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Admits a client connection that has just been accepted if fewer than {@link Config.Settings#maxTunnels} are being served.
+     *
+     * @return True if the connection was admitted and counted, false if it must be rejected.
+     */
+    private static boolean admitTunnel() {
+        int active = admitted.incrementAndGet();
+        int limit = Config.settings().maxTunnels;
+        if (limit > 0 && active > limit) {
+            admitted.decrementAndGet();
+            Metrics.error("tunnel_limit");
+            return false;
+        }
+        Metrics.TUNNELS.increment();
+        Metrics.ACTIVE_TUNNELS.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Uncounts an admitted client connection that has been closed.
+     */
+    private static void releaseTunnel() {
+        Metrics.ACTIVE_TUNNELS.decrementAndGet();
+        admitted.decrementAndGet();
+    }
+
+    /**
+     * Chooses the ExitPoint link for a new tunnel with the configured {@link ExitBalancer} strategy.
+     * 
+     * @return The chosen ExitPoint link, or null if none are available.
+     */
+    static TunnelLink getNextExitPoint() {
+        return exitPoints.select();
+    }
+
+    /**
+     * Chooses the ExitPoint link for a new tunnel, waiting until the deadline for one to connect if there is
+     * none, unless the EntryPoint is draining.
+     *
+     * @param deadline The end of the wait, in {@link System#nanoTime()}.
+     * @return The chosen ExitPoint link, or null if none connected in time.
+     * @throws Admission.Unavailable If too many tunnels are waiting already.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    private static TunnelLink awaitExitPoint(long deadline) throws IOException {
+        TunnelLink link = getNextExitPoint();
+        while (link == null && running) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            CountDownLatch joined = new CountDownLatch(1);
+            Runnable waiter = joined::countDown;
+            link = exitPoints.selectOrWait(waiter, Config.settings().exitQueue);
+            if (link != null) return link;
+            try {
+                joined.await(remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an ExitPoint");
+            } finally {
+                exitPoints.cancel(waiter);
+            }
+            link = getNextExitPoint();
         }
+        return link;
+    }
+
+    /**
+     * Opens a tunnel stream to a target through an ExitPoint and waits for it to be acknowledged.
+     * If the link closes before the ExitPoint answers, the stream is opened again through another link.
+     * While no ExitPoint is connected, the tunnel waits up to {@link Config.Settings#exitWaitMillis} for one.
+     *
+     * @param target The target server address in the format "host:port".
+     * @return The established stream.
+     * @throws Admission.Unavailable If no ExitPoint is available in time.
+     * @throws IOException If the ExitPoint could not reach the target.
+     */
+    static TunnelStream openTunnel(String target) throws IOException {
+        IOException failure = null;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.settings().exitWaitMillis);
+        for (int attempt = 0; attempt < MAX_OPEN_ATTEMPTS; attempt++) {
+            TunnelLink exitLink = awaitExitPoint(deadline);
+            if (exitLink == null) break;
+            Log.info("tunnel.forward", "exit", exitLink.getName(), "target", target);
+            TunnelStream stream;
+            try {
+                stream = exitLink.openStream(target, null);
+            } catch (IOException e) {
+                failure = e; // the link closed before the stream could be sent
+                continue;
+            }
+            try {
+                stream.awaitOpen();
+                return stream;
+            } catch (IOException e) {
+                if (!stream.isUnanswered()) throw e;
+                Log.warn("tunnel.retry", "exit", exitLink.getName(), "target", target);
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+        Metrics.error("no_exit");
+        throw new Admission.Unavailable("No ExitPoint available.");
     }
 
     /**
      * ProxyHandler class handles individual client connections.
+     * CONNECT tunnels are relayed over the blocking channels with pooled direct buffers;
+     * any other request is served by {@link HttpProxy}.
      */
     static class ProxyHandler implements Runnable {
-        private final Socket clientSocket;
+        private final SocketChannel clientChannel;
+        private final HttpReader clientReader;
+        private final RequestParser request = new RequestParser();
+        private Shaper.Flow flow;
+        private Watchdog.Watch idle;
 
         /**
-         * Constructs a ProxyHandler for a given client socket.
+         * Constructs a ProxyHandler for a given client channel.
          * 
-         * @param clientSocket The client socket.
+         * @param clientChannel The client channel, in blocking mode.
          */
-        public ProxyHandler(Socket clientSocket) {
-            this.clientSocket = clientSocket;
+        public ProxyHandler(SocketChannel clientChannel) {
+            this.clientChannel = clientChannel;
+            this.clientReader = new HttpReader(clientChannel);
         }
 
         @Override
         public void run() {
-            try (
-                InputStream clientInput = clientSocket.getInputStream();
-                OutputStream clientOutput = clientSocket.getOutputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(clientInput));
-            ) {
-                String requestLine = reader.readLine();
-                if (requestLine == null || requestLine.isEmpty()) return;
-
-                System.out.println("Request: " + requestLine);
-                String[] parts = requestLine.split(" ");
-                if ("CONNECT".equalsIgnoreCase(parts[0])) {
+            try {
+                Watchdog.Watch handshake = Watchdog.handshake(() -> NioEngine.closeQuietly(clientChannel));
+                try {
+                    if (!clientReader.readRequest(request)) return;
+                } finally {
+                    handshake.cancel();
+                }
+
+                if (request.isConnect()) {
+                    clientReader.skip(request.length()); // anything after the head belongs to the tunnel
+                    Log.info("client.request", "method", "CONNECT", "target", request.authority());
+                    flow = Shaper.flow(clientChannel.socket().getInetAddress(), request.host());
                     if (IS_FORWARD) {
-                        forwardToExitPoint(parts[1], clientInput, clientOutput);
+                        forwardToExitPoint(request.authority());
                     } else {
-                        connectDirectly(parts[1], clientInput, clientOutput);
+                        connectDirectly(request.host(), request.port());
                     }
                 } else {
-                    System.out.println("Unsupported HTTP method: " + parts[0]);
+                    new HttpProxy(clientChannel, clientReader, request).run();
                 }
+            } catch (RequestParser.BadRequest e) {
+                Log.info("client.rejected", "error", e.getMessage());
+                Metrics.error("bad_request");
+                writeError(e.status);
             } catch (IOException e) {
-                System.err.println("Error handling client: " + e.getMessage());
+                Log.warn("client.error", "error", e.getMessage());
             } finally {
+                clientReader.release();
                 try {
-                    clientSocket.close();
+                    clientChannel.close();
                 } catch (IOException e) {
-                    System.err.println("Error closing client socket: " + e.getMessage());
+                    Log.warn("client.close_error", "error", e.getMessage());
                 }
             }
         }
@@ -129,133 +420,418 @@ public class EntryPoint {
         /**
          * Connects directly to the target server and forwards data between the client and server.
          * 
-         * @param target The target server address in the format "host:port".
-         * @param clientInput The input stream from the client.
-         * @param clientOutput The output stream to the client.
+         * @param host The target host.
+         * @param port The target port.
          */
-        private void connectDirectly(String target, InputStream clientInput, OutputStream clientOutput) {
-            String[] hostPort = target.split(":");
-            String host = hostPort[0];
-            int port = Integer.parseInt(hostPort[1]);
-
-            System.out.println("Connecting directly to target: " + host + ":" + port);
+        private void connectDirectly(String host, int port) {
+            Log.debug("target.connect", "target", host + ":" + port);
 
-            try (Socket serverSocket = new Socket(host, port)) {
-                serverSocket.setTcpNoDelay(true);
-                clientOutput.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes());
-                clientOutput.flush();
-
-                Thread clientToServer = new Thread(() -> {
-                    try {
-                        forwardData(clientInput, serverSocket.getOutputStream(), "clientToServer");
-                    } catch (IOException e) {
-                        System.err.println("Error in clientToServer: " + e.getMessage());
-                    }
+            SocketChannel connected;
+            try {
+                connected = TargetPool.connect(host, port);
+            } catch (IOException e) {
+                Log.warn("target.connect_failed", "target", host + ":" + port, "error", e.getMessage());
+                writeBadGateway(e.getMessage());
+                return;
+            }
+            try (SocketChannel serverChannel = connected) {
+                idle = Watchdog.idle(() -> {
+                    NioEngine.closeQuietly(clientChannel);
+                    NioEngine.closeQuietly(serverChannel);
                 });
+                writeResponse("HTTP/1.1 200 Connection Established\r\n\r\n");
 
-                Thread serverToClient = new Thread(() -> {
+                Future<?> clientToServer = Threads.start(() -> {
                     try {
-                        forwardData(serverSocket.getInputStream(), clientOutput, "serverToClient");
+                        forwardData(clientReader, serverChannel, "clientToServer");
+                        serverChannel.shutdownOutput();
                     } catch (IOException e) {
-                        System.err.println("Error in serverToClient: " + e.getMessage());
+                        Metrics.error("relay");
+                        Log.warn("relay.error", "direction", "upstream", "error", e.getMessage());
                     }
                 });
 
-                clientToServer.start();
-                serverToClient.start();
-                clientToServer.join();
-                serverToClient.join();
+                // The return direction runs on this thread, so a tunnel costs one extra task rather than two.
+                try {
+                    forwardData(serverChannel, clientChannel, "serverToClient");
+                    clientChannel.shutdownOutput();
+                } catch (IOException e) {
+                    Metrics.error("relay");
+                    Log.warn("relay.error", "direction", "downstream", "error", e.getMessage());
+                }
+                clientToServer.get();
             } catch (Exception e) {
-                System.err.println("Error connecting directly to target: " + e.getMessage());
+                Log.warn("target.connect_failed", "target", host + ":" + port, "error", e.getMessage());
+            } finally {
+                if (idle != null) idle.cancel();
             }
         }
 
         /**
-         * Forwards the client request to an ExitPoint and relays data between the client and ExitPoint.
+         * Opens a tunnel stream to the target through an ExitPoint and relays data between the client and the stream.
          * 
          * @param target The target server address in the format "host:port".
-         * @param clientInput The input stream from the client.
-         * @param clientOutput The output stream to the client.
          */
-        private void forwardToExitPoint(String target, InputStream clientInput, OutputStream clientOutput) {
-            Socket exitSocket = getNextExitPoint();
-            if (exitSocket == null) {
-                System.err.println("No active ExitPoint connections.");
-                try {
-                    clientOutput.write("HTTP/1.1 502 Bad Gateway\r\n\r\nNo ExitPoint available.".getBytes());
-                    clientOutput.flush();
-                } catch (IOException ignored) {}
+        private void forwardToExitPoint(String target) {
+            TunnelStream stream;
+            try {
+                stream = openTunnel(target);
+            } catch (Admission.Unavailable e) {
+                Log.warn("tunnel.open_failed", "target", target, "error", e.getMessage());
+                writeUnavailable(e.getMessage());
+                return;
+            } catch (IOException e) {
+                Log.warn("tunnel.open_failed", "target", target, "error", e.getMessage());
+                writeBadGateway(e.getMessage());
                 return;
             }
 
-            System.out.println("Forwarding to ExitPoint: " + exitSocket.getRemoteSocketAddress());
+            idle = Watchdog.idle(() -> {
+                NioEngine.closeQuietly(clientChannel);
+                stream.reset("Idle timeout");
+            });
             try {
-                PrintWriter exitWriter = new PrintWriter(exitSocket.getOutputStream(), true);
-                exitWriter.println(target); // Send target to ExitPoint
+                writeResponse("HTTP/1.1 200 Connection Established\r\n\r\n");
 
-                Thread clientToExit = new Thread(() -> {
+                Future<?> clientToExit = Threads.start(() -> {
                     try {
-                        forwardData(clientInput, exitSocket.getOutputStream(), "Entry -> Exit Point");
+                        forwardData(clientReader, stream.getChannel(), "Entry -> Exit Point");
+                        stream.closeOutput();
                     } catch (IOException e) {
-                        System.err.println("Error in Entry -> Exit Point: " + e.getMessage());
+                        Metrics.error("relay");
+                        Log.warn("relay.error", "direction", "upstream", "error", e.getMessage());
+                        stream.reset("Client read failed");
                     }
                 });
 
-                Thread exitToClient = new Thread(() -> {
-                    try {
-                        forwardData(exitSocket.getInputStream(), clientOutput, "Exit -> Entry Point");
-                    } catch (IOException e) {
-                        System.err.println("Error in Exit -> Entry Point: " + e.getMessage());
-                    }
-                });
-
-                clientToExit.start();
-                exitToClient.start();
-                clientToExit.join();
-                exitToClient.join();
+                // The return direction runs on this thread, so a tunnel costs one extra task rather than two.
+                try {
+                    forwardData(stream.getChannel(), clientChannel, "Exit -> Entry Point");
+                    clientChannel.shutdownOutput();
+                } catch (IOException e) {
+                    Metrics.error("relay");
+                    Log.warn("relay.error", "direction", "downstream", "error", e.getMessage());
+                    stream.reset("Client write failed");
+                }
+                clientToExit.get();
             } catch (Exception e) {
-                System.err.println("Error forwarding to ExitPoint: " + e.getMessage());
+                Log.warn("tunnel.error", "error", e.getMessage());
+                stream.reset("Entry error");
+            } finally {
+                idle.cancel();
             }
         }
 
         /**
-         * Retrieves the next available ExitPoint using a round-robin strategy.
+         * Tells the client that the tunnel could not be established.
          * 
-         * @return The next available ExitPoint socket, or null if none are available.
+         * @param message The reason sent in the response body.
          */
-        private Socket getNextExitPoint() {
-            synchronized (exitPoints) {
-                if (exitPoints.isEmpty()) return null;
-
-                int size = exitPoints.size();
-                Socket[] exitArray = exitPoints.toArray(new Socket[0]);
-                Socket selected = exitArray[roundRobinIndex % size];
-                roundRobinIndex = (roundRobinIndex + 1) % size;
-
-                if (selected.isClosed()) {
-                    exitPoints.remove(selected);
-                    return getNextExitPoint();
-                }
-                return selected;
+        private void writeBadGateway(String message) {
+            try {
+                writeResponse("HTTP/1.1 502 Bad Gateway\r\n\r\n" + message);
+            } catch (IOException ignored) {}
+        }
+
+        /**
+         * Tells the client that the tunnel was refused because the EntryPoint is saturated.
+         *
+         * @param message The reason sent in the response body.
+         */
+        private void writeUnavailable(String message) {
+            try {
+                writeResponse(Admission.response(message));
+            } catch (IOException ignored) {}
+        }
+
+        /**
+         * Tells the client that its request was refused.
+         * 
+         * @param status The status line, e.g. "400 Bad Request".
+         */
+        private void writeError(String status) {
+            try {
+                writeResponse("HTTP/1.1 " + status + "\r\nConnection: close\r\n\r\n");
+            } catch (IOException ignored) {}
+        }
+
+        /**
+         * Writes a complete response to the client.
+         * 
+         * @param response The response to write.
+         * @throws IOException If an I/O error occurs.
+         */
+        private void writeResponse(String response) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                clientChannel.write(buffer);
+            }
+        }
+
+        /**
+         * Forwards data from one channel to another through a pooled direct buffer.
+         * Bytes written to the client count as downstream, any others as upstream, both for the metrics and for shaping.
+         * Every write keeps the tunnel's idle timeout from expiring.
+         * 
+         * @param input The channel to read data from.
+         * @param output The channel to write data to.
+         * @param direction A string indicating the direction of data flow for logging purposes.
+         * @throws IOException If an I/O error occurs.
+         */
+        private void forwardData(ReadableByteChannel input, WritableByteChannel output, String direction) throws IOException {
+            if (output == clientChannel) {
+                Relay.transfer(input, idle.touching(output), Metrics.DOWNSTREAM_BYTES, flow.downstream);
+            } else {
+                Relay.transfer(input, idle.touching(output), Metrics.UPSTREAM_BYTES, flow.upstream);
             }
+            Log.debug("relay.done", "direction", direction);
         }
 
         /**
-         * Forwards data from an input stream to an output stream.
+         * Forwards the rest of the client's data, starting with any bytes that arrived right after its request head.
          * 
-         * @param input The input stream to read data from.
-         * @param output The output stream to write data to.
+         * @param input The reader the request head was read with.
+         * @param output The channel to write data to.
          * @param direction A string indicating the direction of data flow for logging purposes.
          * @throws IOException If an I/O error occurs.
          */
-        private void forwardData(InputStream input, OutputStream output, String direction) throws IOException {
-            byte[] buffer = new byte[32768];
-            int bytesRead;
-            while ((bytesRead = input.read(buffer)) != -1) {
-                output.write(buffer, 0, bytesRead);
-                output.flush();
+        private void forwardData(HttpReader input, WritableByteChannel output, String direction) throws IOException {
+            input.copyToEnd(idle.touching(output), Metrics.UPSTREAM_BYTES, flow.upstream);
+            Log.debug("relay.done", "direction", direction);
+        }
+    }
+
+    /**
+     * NioProxyHandler reads the CONNECT request of a client on an event loop and hands the connection to a relay.
+     * Plain HTTP requests are handed to {@link HttpProxy} on the shared executor instead.
+     * A tunnel that finds no ExitPoint waits for one without holding the loop, see {@link #awaitExitPoint}.
+     */
+    static class NioProxyHandler implements EventLoop.Handler {
+        private final EventLoop loop;
+        private final SocketChannel clientChannel;
+        private final Runnable onClose;
+        private final RequestParser request = new RequestParser();
+        private ByteBuffer head = BufferPool.shared().acquire();
+        private Shaper.Flow flow;
+        private int openAttempts;
+        private Watchdog.Watch handshake;
+        private long exitDeadline;
+        private Runnable exitWaiter;
+        private EventLoop.Timer exitTimer;
+
+        /**
+         * Constructs an NioProxyHandler for a given client channel.
+         * 
+         * @param loop The event loop owning the client channel.
+         * @param clientChannel The client channel.
+         * @param onClose Runs once the client connection is finished, whether or not a tunnel was established.
+         */
+        public NioProxyHandler(EventLoop loop, SocketChannel clientChannel, Runnable onClose) {
+            this.loop = loop;
+            this.clientChannel = clientChannel;
+            this.onClose = onClose;
+        }
+
+        /**
+         * Starts reading the request. Must be called on the event loop.
+         */
+        void start() {
+            handshake = Watchdog.handshake(() -> loop.execute(this::close));
+            try {
+                loop.register(clientChannel, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                Log.warn("client.error", "error", e.getMessage());
+                close();
+            }
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (clientChannel.read(head) == -1) {
+                close();
+                return;
+            }
+            try {
+                if (!request.parse(head, 0, head.position())) return;
+            } catch (RequestParser.BadRequest e) {
+                Log.info("client.rejected", "error", e.getMessage());
+                Metrics.error("bad_request");
+                clientChannel.write(ByteBuffer.wrap(("HTTP/1.1 " + e.status + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+                close();
+                return;
+            }
+            if (!handshake.cancel()) return; // timed out, the close is on its way
+            key.interestOps(0);
+            head.flip();
+
+            if (!request.isConnect()) {
+                loop.deregister(key, () -> Threads.start(this::serveHttp));
+                return;
+            }
+            Log.info("client.request", "method", "CONNECT", "target", request.authority());
+            head.position(request.length()); // what is left is the start of the tunnel
+            flow = Shaper.flow(clientChannel.socket().getInetAddress(), request.host());
+            if (IS_FORWARD) {
+                forwardToExitPoint(request.authority(), head);
+            } else {
+                connectDirectly(request.host(), request.port(), head);
             }
-            System.out.println(direction + " completed.");
+        }
+
+        /**
+         * Returns the request buffer to the pool once its bytes have been handed on.
+         */
+        private void releaseHead() {
+            BufferPool.shared().release(head);
+            head = null;
+        }
+
+        /**
+         * Serves plain HTTP requests on the now blocking client channel, starting with the bytes read so far.
+         */
+        private void serveHttp() {
+            try {
+                clientChannel.configureBlocking(true);
+                HttpReader reader = new HttpReader(clientChannel, head);
+                releaseHead();
+                HttpProxy.serve(clientChannel, reader);
+            } catch (IOException e) {
+                Log.warn("client.error", "error", e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Connects to the target server without blocking and relays data between the client and server.
+         * 
+         * @param host The target host.
+         * @param port The target port.
+         * @param leftover Bytes the client sent after its request head.
+         */
+        private void connectDirectly(String host, int port, ByteBuffer leftover) {
+            Log.debug("target.connect", "target", host + ":" + port);
+
+            NioEngine.connect(loop, host, port, new NioEngine.ConnectCallback() {
+                @Override
+                public void connected(SocketChannel serverChannel) {
+                    ByteBuffer established = ByteBuffer.wrap("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    ChannelRelay relay = new ChannelRelay(clientChannel, serverChannel, leftover, established);
+                    releaseHead();
+                    relay.shape(flow);
+                    relay.onClose(onClose);
+                    relay.start(loop);
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    Log.warn("target.connect_failed", "target", host + ":" + port, "error", e.getMessage());
+                    writeBadGateway(e.getMessage());
+                }
+            });
+        }
+
+        /**
+         * Opens a tunnel stream to the target through an ExitPoint and relays data between the client and the stream.
+         * 
+         * @param target The target server address in the format "host:port".
+         * @param leftover Bytes the client sent after its request head.
+         */
+        private void forwardToExitPoint(String target, ByteBuffer leftover) {
+            StreamChannelRelay relay = new StreamChannelRelay(loop, clientChannel, leftover, true);
+            releaseHead();
+            relay.shape(flow);
+            relay.onClose(onClose);
+            relay.onUnanswered(() -> openStream(relay, target));
+            exitDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.settings().exitWaitMillis);
+            openStream(relay, target);
+        }
+
+        /**
+         * Opens the stream of a relay through the next ExitPoint, moving on to another one if the link
+         * turns out to be closed, up to {@link #MAX_OPEN_ATTEMPTS} in total. Runs on the loop thread.
+         *
+         * @param relay  The relay waiting for its stream.
+         * @param target The target server address in the format "host:port".
+         */
+        private void openStream(StreamChannelRelay relay, String target) {
+            String reason = "Link closed";
+            while (openAttempts < MAX_OPEN_ATTEMPTS) {
+                TunnelLink exitLink;
+                try {
+                    exitLink = awaitExitPoint(relay, target);
+                } catch (Admission.Unavailable e) {
+                    Log.warn("tunnel.open_failed", "target", target, "error", e.getMessage());
+                    relay.fail(Admission.response(e.getMessage()));
+                    return;
+                }
+                if (exitLink == null) return; // waiting, called again once a link connects or the wait is over
+                openAttempts++;
+                Log.info("tunnel.forward", "exit", exitLink.getName(), "target", target);
+                try {
+                    relay.attach(exitLink.openStream(target, relay));
+                    return;
+                } catch (IOException e) {
+                    reason = e.getMessage();
+                }
+            }
+            Log.warn("tunnel.open_failed", "target", target, "error", reason);
+            relay.fail("HTTP/1.1 502 Bad Gateway\r\n\r\n" + reason);
+        }
+
+        /**
+         * Chooses the ExitPoint link for the relay's stream. If there is none, queues the tunnel until one connects
+         * or {@link #exitDeadline} passes, whichever comes first, then calls {@link #openStream} again.
+         * Runs on the loop thread.
+         *
+         * @param relay  The relay waiting for its stream.
+         * @param target The target server address in the format "host:port".
+         * @return The chosen link, or null if the tunnel is now waiting for one.
+         * @throws Admission.Unavailable If the wait is over, the queue is full or the EntryPoint is draining.
+         */
+        private TunnelLink awaitExitPoint(StreamChannelRelay relay, String target) throws Admission.Unavailable {
+            long remaining = exitDeadline - System.nanoTime();
+            if (remaining <= 0 || !running) {
+                TunnelLink link = getNextExitPoint();
+                if (link != null) return link;
+                Metrics.error("no_exit");
+                throw new Admission.Unavailable("No ExitPoint available.");
+            }
+            Runnable resume = () -> {
+                if (exitWaiter == null) return; // already resumed by the other of link and timer
+                exitPoints.cancel(exitWaiter);
+                exitWaiter = null;
+                exitTimer.cancel();
+                exitTimer = null;
+                openStream(relay, target);
+            };
+            Runnable waiter = () -> loop.execute(resume);
+            TunnelLink link = exitPoints.selectOrWait(waiter, Config.settings().exitQueue);
+            if (link != null) return link;
+            exitWaiter = waiter;
+            exitTimer = loop.schedule(resume, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+            return null;
+        }
+
+        /**
+         * Tells the client that the tunnel could not be established, then closes the connection.
+         * The response is small enough to fit the socket buffer, so a single write is enough.
+         * 
+         * @param message The reason sent in the response body.
+         */
+        private void writeBadGateway(String message) {
+            try {
+                clientChannel.write(ByteBuffer.wrap(("HTTP/1.1 502 Bad Gateway\r\n\r\n" + message).getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException ignored) {}
+            close();
+        }
+
+        @Override
+        public void close() {
+            handshake.cancel();
+            NioEngine.closeQuietly(clientChannel);
+            if (head != null) releaseHead();
+            onClose.run();
         }
     }
 }
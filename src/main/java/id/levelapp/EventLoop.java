@@ -0,0 +1,245 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventLoop owns a Selector and the single thread that drives it.
+ * Every channel registered with a loop, and every task or timer submitted to it, runs on that thread,
+ * so handlers never need to synchronize with each other.
+ */
+final class EventLoop implements Runnable {
+
+    /**
+     * Handles readiness events for a registered channel.
+     */
+    interface Handler {
+        /**
+         * Called on the loop thread when the channel is ready for one of its interest operations.
+         *
+         * @param key The selection key of the ready channel.
+         * @throws IOException If the channel fails; the loop then calls {@link #close()}.
+         */
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Releases every resource held by the handler. Called by the loop after a failure.
+         */
+        void close();
+    }
+
+    /**
+     * A task scheduled to run on the loop after a delay.
+     */
+    static final class Timer {
+        private final long deadline; // System.nanoTime()
+        private final Runnable task;
+        private boolean cancelled;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /** Prevents the task from running. Must be called on the loop thread. */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Runnable> afterDeregister = new ArrayList<>();
+    private volatile boolean stopped;
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>((a, b) -> Long.compare(a.deadline - b.deadline, 0));
+
+    /**
+     * Constructs an EventLoop with its own Selector.
+     *
+     * @param name The name of the loop thread.
+     * @throws IOException If the Selector cannot be opened.
+     */
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    /**
+     * Starts the loop thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the loop thread. Every channel still registered is closed through its handler, then the Selector.
+     * Tasks and timers that have not run yet are dropped. Safe to call from any thread, and more than once.
+     */
+    void shutdown() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for the loop thread to finish after {@link #shutdown()}.
+     *
+     * @param timeoutMillis The maximum time to wait.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    void awaitTermination(long timeoutMillis) throws InterruptedException {
+        if (!inEventLoop()) thread.join(timeoutMillis);
+    }
+
+    /**
+     * @return True if the caller is running on this loop's thread.
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on the loop thread. Safe to call from any thread.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) selector.wakeup();
+    }
+
+    /**
+     * Registers a channel with this loop, or updates its registration. Must be called on the loop thread.
+     *
+     * @param channel The channel to register; it is switched to non-blocking mode.
+     * @param ops     The initial interest operations.
+     * @param handler The handler receiving the channel's readiness events.
+     * @return The selection key of the channel.
+     * @throws IOException If the channel cannot be registered.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Removes a channel from this loop and runs a task once the Selector has let go of it, at which point
+     * the channel can be switched back to blocking mode and handed to another thread. Must be called on the loop thread.
+     *
+     * @param key  The selection key of the channel.
+     * @param task The task to run, on the loop thread.
+     */
+    void deregister(SelectionKey key, Runnable task) {
+        key.cancel();
+        afterDeregister.add(task);
+    }
+
+    /**
+     * Schedules a task to run on the loop after a delay. Must be called on the loop thread.
+     *
+     * @param task        The task to run.
+     * @param delayMillis The delay in milliseconds.
+     * @return The timer, which can be cancelled before it fires.
+     */
+    Timer schedule(Runnable task, long delayMillis) {
+        Timer timer = new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task);
+        timers.add(timer);
+        return timer;
+    }
+
+    /**
+     * Selects ready channels and runs tasks and timers until {@link #shutdown()} is called.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                long timeout = runTimers();
+                if (tasks.isEmpty() && afterDeregister.isEmpty()) {
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
+                }
+                if (!afterDeregister.isEmpty()) { // cancelled keys are removed by the select above
+                    Runnable[] deregistered = afterDeregister.toArray(new Runnable[0]);
+                    afterDeregister.clear();
+                    for (Runnable task : deregistered) {
+                        task.run();
+                    }
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Handler handler = (Handler) key.attachment();
+                    if (!key.isValid() || handler == null) continue;
+                    try {
+                        handler.handle(key);
+                    } catch (IOException | RuntimeException e) {
+                        handler.close();
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.error("loop.task_error", "error", e);
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("loop.error", "error", e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * Closes every channel still registered, through its handler, and then the Selector.
+     */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Handler handler = (Handler) key.attachment();
+            if (handler != null) {
+                try {
+                    handler.close();
+                } catch (RuntimeException e) {
+                    Log.error("loop.close_error", "error", e);
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.error("loop.error", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Runs every timer whose deadline has passed.
+     *
+     * @return The milliseconds until the next timer is due, or 0 if there are none.
+     */
+    private long runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+            timers.poll();
+            if (timer.cancelled) continue;
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                Log.error("loop.timer_error", "error", e);
+            }
+        }
+        timer = timers.peek();
+        return timer == null ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(timer.deadline - now + 999_999));
+    }
+}
@@ -0,0 +1,327 @@
+package id.levelapp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ExitBalancer chooses the ExitPoint link that carries each new tunnel.
+ * <p>
+ * The connected links are kept in an array that is replaced whenever a link joins or leaves, so choosing
+ * a link takes no lock and allocates nothing. The choice is made by a {@link Strategy} from the live
+ * statistics of each link: its open streams and the moving average of its PING round-trip time.
+ * The time a link takes to acknowledge an OPEN is not used: it includes the ExitPoint's connect to the
+ * target, so a slow target would make a healthy link look slow. Suspended links, see {@link TunnelLink#isHealthy()}, only get new streams when no other link is left.
+ * <p>
+ * Each ExitPoint host can be given a weight, see {@link #parseWeights(String)}: the load-based strategies divide
+ * a link's load by it, so a link of weight 2 carries about twice the tunnels of one of weight 1, and a weight
+ * of 0 takes a host out of rotation, e.g. before its maintenance. Round-robin only honours a weight of 0.
+ * <p>
+ * A tunnel that finds no link at all can wait for the next one to connect, see {@link #selectOrWait(Runnable, int)}.
+ */
+final class ExitBalancer {
+    /**
+     * Chooses a link for a new stream.
+     */
+    interface Strategy {
+        /**
+         * @param links The connected links, never empty; must not be modified.
+         * @return A healthy link, or null if none of the links is healthy.
+         */
+        TunnelLink select(TunnelLink[] links);
+    }
+
+    /** Takes the healthy links in turn. */
+    static final Strategy ROUND_ROBIN = new Strategy() {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public TunnelLink select(TunnelLink[] links) {
+            int start = next.getAndIncrement() & Integer.MAX_VALUE;
+            for (int i = 0; i < links.length; i++) {
+                TunnelLink link = links[(start + i) % links.length];
+                if (isAvailable(link)) return link;
+            }
+            return null;
+        }
+    };
+
+    /** Takes the healthy link with the fewest open streams. */
+    static final Strategy LEAST_OUTSTANDING = links -> cheapest(links, false);
+
+    /** Takes the healthy link with the lowest open streams weighted by its PING round-trip time. */
+    static final Strategy EWMA = links -> cheapest(links, true);
+
+    /**
+     * Compares two healthy links picked at random and takes the one with the lower latency-weighted load.
+     * Cheaper than a full scan with many links, and it avoids sending every new stream to the same link
+     * while its statistics catch up.
+     */
+    static final Strategy POWER_OF_TWO = links -> {
+        if (links.length < 3) return cheapest(links, true);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(links.length);
+        int second = random.nextInt(links.length - 1);
+        if (second >= first) second++;
+        TunnelLink a = links[first];
+        TunnelLink b = links[second];
+        if (!isAvailable(a)) return isAvailable(b) ? b : cheapest(links, true);
+        if (!isAvailable(b)) return a;
+        return cost(b, true) < cost(a, true) ? b : a;
+    };
+
+    /** Latency assumed for a link that has not answered a PING yet, e.g. while heartbeats are off. */
+    private static final long UNKNOWN_LATENCY_NANOS = 1_000_000;
+    /** Largest weight of an ExitPoint host. */
+    static final int MAX_WEIGHT = 1000;
+    private static final TunnelLink[] NONE = new TunnelLink[0];
+
+    private volatile TunnelLink[] links = NONE;
+    private volatile Strategy strategy = POWER_OF_TWO;
+    private volatile Map<String, Integer> weights = Collections.emptyMap();
+    /** Tasks of tunnels waiting for a link, run when the next one is added. Guarded by this. */
+    private final ArrayDeque<Runnable> waiters = new ArrayDeque<>();
+
+    /**
+     * Looks up a strategy by the name used in the configuration.
+     *
+     * @param name "round-robin", "least-outstanding", "ewma" or "p2c".
+     * @return The strategy, or null if the name is unknown.
+     */
+    static Strategy strategy(String name) {
+        switch (name) {
+            case "round-robin":
+                return ROUND_ROBIN;
+            case "least-outstanding":
+                return LEAST_OUTSTANDING;
+            case "ewma":
+                return EWMA;
+            case "p2c":
+                return POWER_OF_TWO;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param strategy The strategy used for the following selections.
+     */
+    void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Parses the weights of ExitPoint hosts.
+     *
+     * @param spec Comma-separated "host=weight" pairs keyed by the ExitPoint's IP address, e.g. "10.0.0.5=3,10.0.0.6=0";
+     *             hosts left out have a weight of 1.
+     * @return The weights by host.
+     * @throws IllegalArgumentException If a pair is malformed or a weight is not between 0 and {@link #MAX_WEIGHT}.
+     */
+    static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String pair : spec.split(",")) {
+            String text = pair.trim();
+            if (text.isEmpty()) continue;
+            int equals = text.lastIndexOf('=');
+            if (equals <= 0) throw new IllegalArgumentException("Invalid exit weight '" + text + "', use host=weight.");
+            int weight;
+            try {
+                weight = Integer.parseInt(text.substring(equals + 1).trim());
+            } catch (NumberFormatException e) {
+                weight = -1;
+            }
+            if (weight < 0 || weight > MAX_WEIGHT) {
+                throw new IllegalArgumentException("Invalid exit weight '" + text + "', use 0 to " + MAX_WEIGHT + ".");
+            }
+            weights.put(text.substring(0, equals).trim(), weight);
+        }
+        return Collections.unmodifiableMap(weights);
+    }
+
+    /**
+     * Replaces the weights of ExitPoint hosts, for the links already connected as well as later ones.
+     * Tunnels waiting for a link try again, in case a host of weight 0 is back in rotation.
+     *
+     * @param weights The weights by host, see {@link #parseWeights(String)}.
+     */
+    void setWeights(Map<String, Integer> weights) {
+        ArrayList<Runnable> woken;
+        synchronized (this) {
+            this.weights = weights;
+            for (TunnelLink link : links) {
+                link.weight = weightOf(link);
+            }
+            woken = takeWaiters();
+        }
+        woken.forEach(Runnable::run); // a link may be back in rotation
+    }
+
+    private int weightOf(TunnelLink link) {
+        Integer weight = weights.get(link.getRemoteHost());
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * Makes a link available for new streams.
+     *
+     * @param link The link, after its handshake.
+     */
+    void add(TunnelLink link) {
+        ArrayList<Runnable> woken;
+        synchronized (this) {
+            link.selections = Metrics.EXIT_SELECTIONS.counter(link.getName());
+            link.weight = weightOf(link);
+            TunnelLink[] updated = Arrays.copyOf(links, links.length + 1);
+            updated[links.length] = link;
+            links = updated;
+            woken = takeWaiters();
+        }
+        woken.forEach(Runnable::run);
+    }
+
+    /**
+     * @return The tasks of the tunnels waiting for a link, removed from the queue. Must hold the lock.
+     */
+    private ArrayList<Runnable> takeWaiters() {
+        ArrayList<Runnable> woken = new ArrayList<>(waiters);
+        waiters.clear();
+        return woken;
+    }
+
+    /**
+     * Stops giving new streams to a link.
+     *
+     * @param link The link to remove.
+     */
+    synchronized void remove(TunnelLink link) {
+        TunnelLink[] current = links;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != link) continue;
+            TunnelLink[] updated = new TunnelLink[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, updated.length - i);
+            links = updated;
+            Metrics.EXIT_SELECTIONS.remove(link.getName());
+            return;
+        }
+    }
+
+    /**
+     * Chooses the link for a new stream.
+     *
+     * @return A healthy link of a weight above 0 if there is one, otherwise the least loaded link of a weight
+     *         above 0 that is still open and not going away, or null if there is none. A link of weight 0 never
+     *         gets new streams, not even when every other link is suspended.
+     */
+    TunnelLink select() {
+        TunnelLink[] current = links;
+        if (current.length == 0) return null;
+        TunnelLink link = strategy.select(current);
+        if (link == null) link = fallback(current);
+        if (link != null && link.selections != null) link.selections.increment();
+        return link;
+    }
+
+    /**
+     * Chooses the link for a new stream like {@link #select()}, or if there is none, queues a task to run
+     * once the next link is added. Checking and queueing are atomic, so a link added in between is not missed.
+     *
+     * @param waiter     Runs on the thread adding the link; it must return quickly, e.g. by handing off.
+     * @param maxWaiters How many tasks may be queued.
+     * @return The link, or null if the waiter was queued.
+     * @throws Admission.Unavailable If maxWaiters tasks are already queued.
+     */
+    TunnelLink selectOrWait(Runnable waiter, int maxWaiters) throws Admission.Unavailable {
+        TunnelLink link = select();
+        if (link != null) return link;
+        synchronized (this) {
+            link = select();
+            if (link != null) return link;
+            if (waiters.size() >= maxWaiters) {
+                Metrics.error("exit_queue_full");
+                throw new Admission.Unavailable("Too many tunnels waiting for an ExitPoint.");
+            }
+            waiters.add(waiter);
+            return null;
+        }
+    }
+
+    /**
+     * Removes a task queued by {@link #selectOrWait(Runnable, int)} that no longer waits, e.g. after its timeout.
+     *
+     * @param waiter The task.
+     */
+    synchronized void cancel(Runnable waiter) {
+        waiters.remove(waiter);
+    }
+
+    /**
+     * @return How many tunnels are waiting for a link.
+     */
+    synchronized int waiting() {
+        return waiters.size();
+    }
+
+    /**
+     * @return The least loaded link that is still open, not going away and of a weight above 0, or null if there is none.
+     */
+    private static TunnelLink fallback(TunnelLink[] current) {
+        TunnelLink fallback = null;
+        for (TunnelLink candidate : current) {
+            if (candidate.weight > 0 && !candidate.isClosed() && !candidate.isGoingAway() && (fallback == null || candidate.getActiveStreams() < fallback.getActiveStreams())) {
+                fallback = candidate;
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * @return The links currently available, as a snapshot that must not be modified.
+     */
+    TunnelLink[] links() {
+        return links;
+    }
+
+    /**
+     * Finds the healthy link with the lowest cost, starting the scan at a random link so ties are spread out.
+     */
+    private static TunnelLink cheapest(TunnelLink[] links, boolean weighted) {
+        int start = links.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(links.length);
+        TunnelLink best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < links.length; i++) {
+            TunnelLink link = links[(start + i) % links.length];
+            if (!isAvailable(link)) continue;
+            double cost = cost(link, weighted);
+            if (cost < bestCost) {
+                best = link;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return True if the link may be given new streams by a strategy: healthy and of a weight above 0.
+     */
+    private static boolean isAvailable(TunnelLink link) {
+        return link.weight > 0 && link.isHealthy();
+    }
+
+    /**
+     * The load of a link: its open streams plus the new one, multiplied by its PING round-trip time if weighted,
+     * divided by the link's weight. A link is weighted by {@link #UNKNOWN_LATENCY_NANOS} before its first PONG.
+     */
+    private static double cost(TunnelLink link, boolean weighted) {
+        double load = (link.getActiveStreams() + 1) / (double) Math.max(1, link.weight);
+        if (!weighted) return load;
+        long latency = link.getRoundTrip();
+        return load * (latency == 0 ? UNKNOWN_LATENCY_NANOS : latency);
+    }
+}
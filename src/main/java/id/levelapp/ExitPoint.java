@@ -2,6 +2,12 @@ package id.levelapp;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The ExitPoint class represents the exit point in the Warpdrive application.
@@ -12,8 +18,40 @@ public class ExitPoint {
     public static String ENTRY_HOST = "localhost"; // Replace with EntryPoint's IP
     /** The port number of the EntryPoint. */
     public static int ENTRY_PORT = 1080;
-    /** The number of concurrent connections to the EntryPoint. */
+    /**
+     * The number of multiplexed tunnel links to the EntryPoint; each link carries many concurrent tunnels.
+     * This is the minimum when the pool is elastic.
+     */
     public static int CONNECTION_COUNT = 10;
+    /** The maximum number of tunnel links the pool may grow to under load, 0 to keep exactly CONNECTION_COUNT. */
+    public static int MAX_LINKS = 0;
+    /** How long a link beyond CONNECTION_COUNT may carry no tunnels before it is closed. */
+    public static int LINK_IDLE_SECONDS = 60;
+    /**
+     * Connection engine: "blocking" for platform threads per tunnel, "virtual" for virtual threads
+     * per tunnel, "nio" for non-blocking event loops. The event loops only carry the connections to targets,
+     * see {@link NioEngine}; each link to the EntryPoint keeps a reader thread.
+     */
+    public static String ENGINE = "blocking";
+    /** Number of event loops used by the "nio" engine. */
+    public static int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+
+    /** A link counts as busy from this many concurrent tunnels; the pool grows once every link is busy. */
+    static final int BUSY_STREAMS = 32;
+    /** Delay before the first reconnect attempt after a failure; it doubles with each further failure. */
+    static final long RECONNECT_BASE_MILLIS = 250;
+    /** Upper bound of the reconnect delay. */
+    static final long RECONNECT_MAX_MILLIS = 30000;
+    /** A link closed sooner than this after connecting is treated as a failed attempt, not a clean close. */
+    static final long STABLE_LINK_MILLIS = 1000;
+
+    private static final Set<TunnelLink> links = ConcurrentHashMap.newKeySet();
+    private static final Set<ExitPointWorker> workers = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger workerIds = new AtomicInteger();
+    private static volatile NioEngine nioEngine;
+    private static final AtomicInteger admitted = new AtomicInteger();
+    private static volatile boolean running = true;
+    private static final AtomicBoolean draining = new AtomicBoolean();
 
     /**
      * Starts the ExitPoint with the specified number of connections.
@@ -21,20 +59,162 @@ public class ExitPoint {
      * @param args Command-line arguments.
      */
     public static void start(String[] args) {
-        System.out.println("Starting ExitPoint with " + CONNECTION_COUNT + " connections...");
+        Log.info("exit.start", "links", CONNECTION_COUNT);
+        Metrics.gauge("warpdrive_links", "Links to the EntryPoint connected.", links::size);
+        Metrics.start();
+        Admin.start();
+
+        if ("virtual".equals(ENGINE) && !Threads.useVirtualThreads()) {
+            Log.warn("threads.virtual_unavailable", "fallback", "platform");
+        }
+
+        if ("nio".equals(ENGINE)) {
+            try {
+                nioEngine = new NioEngine(EVENT_LOOPS);
+                Log.info("exit.event_loops", "count", EVENT_LOOPS);
+            } catch (IOException e) {
+                Log.error("exit.event_loops_failed", "error", e.getMessage());
+                return;
+            }
+        }
 
         for (int i = 0; i < CONNECTION_COUNT; i++) {
-            new Thread(new ExitPointWorker(ENTRY_HOST, ENTRY_PORT, i + 1)).start();
+            startWorker();
+        }
+        if (MAX_LINKS > CONNECTION_COUNT) {
+            Log.info("links.elastic", "min", CONNECTION_COUNT, "max", MAX_LINKS);
+            Threads.housekeeping().scheduleWithFixedDelay(ExitPoint::scaleLinks, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Starts one more worker, and with it one more tunnel link.
+     */
+    private static void startWorker() {
+        ExitPointWorker worker = new ExitPointWorker(ENTRY_HOST, ENTRY_PORT, workerIds.incrementAndGet());
+        workers.add(worker);
+        Threads.start(worker);
+    }
+
+    /**
+     * Runs every second while the pool is elastic. Adds a standby link when every connected link is busy,
+     * and retires one link beyond CONNECTION_COUNT that has carried no tunnels for LINK_IDLE_SECONDS.
+     * The pool changes by at most one link per run, so a short burst does not open a flood of sockets.
+     */
+    private static void scaleLinks() {
+        if (!running) return;
+        long now = System.currentTimeMillis();
+        int connected = 0;
+        int busy = 0;
+        ExitPointWorker idlest = null;
+        for (ExitPointWorker worker : workers) {
+            TunnelLink link = worker.link;
+            if (link == null || link.isClosed()) continue;
+            connected++;
+            int streams = link.getActiveStreams();
+            if (streams >= BUSY_STREAMS) busy++;
+            if (streams > 0) {
+                worker.idleSince = 0;
+            } else if (worker.idleSince == 0) {
+                worker.idleSince = now;
+            } else if (idlest == null || worker.idleSince < idlest.idleSince) {
+                idlest = worker;
+            }
+        }
+        if (connected > 0 && busy == connected && workers.size() < MAX_LINKS) {
+            Log.info("links.grow", "busy", connected);
+            startWorker();
+        } else if (idlest != null && workers.size() > CONNECTION_COUNT && now - idlest.idleSince >= LINK_IDLE_SECONDS * 1000L) {
+            Log.info("links.shrink", "worker", idlest.workerId, "idleSeconds", LINK_IDLE_SECONDS);
+            idlest.retire();
+        }
+    }
+
+    /**
+     * Admits a tunnel to a target if fewer than {@link Config.Settings#maxTunnels} are open.
+     *
+     * @return True if the tunnel was admitted and counted, false if it must be rejected.
+     */
+    private static boolean admitTunnel() {
+        int active = admitted.incrementAndGet();
+        int limit = Config.settings().maxTunnels;
+        if (limit > 0 && active > limit) {
+            admitted.decrementAndGet();
+            return false;
+        }
+        Metrics.TUNNELS.increment();
+        Metrics.ACTIVE_TUNNELS.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Uncounts a tunnel to a target that has been closed.
+     */
+    private static void releaseTunnel() {
+        Metrics.ACTIVE_TUNNELS.decrementAndGet();
+        admitted.decrementAndGet();
+    }
+
+    /**
+     * Computes the delay before the next reconnect attempt: exponential in the number of failures so far,
+     * capped at RECONNECT_MAX_MILLIS, with its upper half randomized so workers that lost the EntryPoint
+     * together do not all come back at the same moment.
+     *
+     * @param failures The number of consecutive failed attempts, at least 1.
+     * @return The delay in milliseconds.
+     */
+    static long reconnectDelay(int failures) {
+        long ceiling = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(failures - 1, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Drains the ExitPoint before it stops: sends a GOAWAY on every link, so the EntryPoint opens no new tunnels
+     * on them, and waits for the tunnels in flight to finish. Whatever is still open after the timeout is closed
+     * by {@link #stop()}. Only the first call drains.
+     *
+     * @param timeoutMillis How long running tunnels may take to finish.
+     * @return True if every tunnel finished in time.
+     */
+    public static boolean drain(long timeoutMillis) {
+        if (!draining.compareAndSet(false, true)) return false;
+        running = false;
+        Log.info("exit.drain", "tunnels", Metrics.ACTIVE_TUNNELS.get(), "timeoutMillis", timeoutMillis);
+        for (TunnelLink link : links) {
+            link.goAway();
         }
+        boolean drained = Threads.await(() -> Metrics.ACTIVE_TUNNELS.get() == 0, timeoutMillis);
+        Log.info("exit.drained", "remaining", Metrics.ACTIVE_TUNNELS.get());
+        stop();
+        return drained;
     }
 
     /**
-     * The ExitPointWorker class handles the connection to the EntryPoint and forwards requests to target servers.
+     * Stops the workers, closes their links to the EntryPoint, which resets the tunnels on them,
+     * and stops the event loops of the nio engine.
+     */
+    public static void stop() {
+        running = false;
+        Metrics.stop();
+        Admin.stop();
+        for (TunnelLink link : links) {
+            link.close();
+        }
+        NioEngine engine = nioEngine;
+        if (engine != null) engine.shutdown(NioEngine.SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * The ExitPointWorker class maintains one tunnel link to the EntryPoint and forwards the streams opened on it to target servers.
      */
     static class ExitPointWorker implements Runnable {
         private final String entryHost;
         private final int entryPort;
         private final int workerId;
+        private volatile TunnelLink link;
+        private volatile boolean retired;
+        /** When the scaler first saw the link without tunnels, 0 while it carries some; used by the scaler only. */
+        private long idleSince;
 
         /**
          * Constructs an ExitPointWorker with the specified parameters.
@@ -50,95 +230,222 @@ public class ExitPoint {
         }
 
         /**
-         * Runs the worker, establishing a connection to the EntryPoint and forwarding requests.
+         * Runs the worker, establishing a tunnel link to the EntryPoint and serving the streams opened on it.
+         * A link that closes after being up for a while is replaced right away; failed attempts are retried
+         * with a jittered exponential backoff.
          */
         @Override
         public void run() {
-            while (true) {
-                try (Socket entrySocket = new Socket(entryHost, entryPort);
-                     InputStream entryInput = entrySocket.getInputStream();
-                     OutputStream entryOutput = entrySocket.getOutputStream();
-                     BufferedReader entryReader = new BufferedReader(new InputStreamReader(entryInput))) {
-
-                    System.out.println("Worker " + workerId + " connected to Entry Point: " + entryHost + ":" + entryPort);
-
-                    String target;
-                    while ((target = entryReader.readLine()) != null && !target.isEmpty()) {
-                        System.out.println("Worker " + workerId + " forwarding to target: " + target);
-                        forwardToTarget(target, entryInput, entryOutput);
-                    }
-                } catch (IOException e) {
-                    System.err.println("Worker " + workerId + " disconnected due to IOException: " + e.getMessage());
-                    System.out.println("Worker " + workerId + " will retry connection in 5 seconds...");
+            int failures = 0;
+            while (running && !retired) {
+                TunnelLink link = null;
+                long connectedAt = 0;
+                try (SocketChannel entryChannel = SocketChannel.open()) {
+                    SocketTuning.LINK.apply(entryChannel);
+                    entryChannel.socket().connect(new InetSocketAddress(entryHost, entryPort), Watchdog.CONNECT_TIMEOUT_MILLIS);
+                    link = new TunnelLink(entryChannel, this::acceptStream);
+                    link.onGoAway(this::migrate);
+                    links.add(link);
+                    Watchdog.Watch handshake = Watchdog.handshake(() -> NioEngine.closeQuietly(entryChannel));
                     try {
-                        Thread.sleep(5000); // Retry after 5 seconds
-                    } catch (InterruptedException ignored) {
-                        System.out.println("Worker " + workerId + " sleep interrupted.");
+                        link.handshake();
+                        if (Compression.LEVEL > 0) link.negotiateCompression();
+                    } finally {
+                        handshake.cancel();
                     }
+                    connectedAt = System.currentTimeMillis();
+                    this.link = link;
+                    if (retired) link.close();
+
+                    Log.info("link.connect", "worker", workerId, "entry", entryHost + ":" + entryPort);
+
+                    link.run(); // Block until the link is closed
+                    Log.info("link.closed", "worker", workerId);
+                } catch (IOException e) {
+                    if (!running) break;
+                    Log.warn("link.error", "worker", workerId, "error", e.getMessage());
+                } finally {
+                    this.link = null;
+                    if (link != null) links.remove(link);
+                }
+                if (!running || retired) break;
+                if (connectedAt != 0 && System.currentTimeMillis() - connectedAt >= STABLE_LINK_MILLIS) {
+                    failures = 0;
+                    continue;
+                }
+                long delay = reconnectDelay(++failures);
+                Log.info("link.reconnect", "worker", workerId, "delayMillis", delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ignored) {
+                    Log.info("link.interrupted", "worker", workerId);
                 }
             }
+            workers.remove(this);
+        }
+
+        /**
+         * Closes the worker's link and ends the worker. Streams the EntryPoint opens on the link while it closes
+         * are never answered, so the EntryPoint sends them to another link.
+         */
+        void retire() {
+            retired = true;
+            workers.remove(this);
+            TunnelLink link = this.link;
+            if (link != null) link.close();
         }
 
         /**
-         * Forwards the request to the specified target server.
+         * Runs when the EntryPoint sends GOAWAY because it is draining. A new worker connects a replacement link,
+         * which reaches the EntryPoint taking over, while this worker serves the streams left on the old link
+         * until the link closes, and then ends.
+         */
+        private void migrate() {
+            if (!running || retired) return;
+            retired = true;
+            workers.remove(this);
+            Log.info("link.migrate", "worker", workerId);
+            startWorker();
+        }
+
+        /**
+         * Hands a stream opened by the EntryPoint off to the shared executor, or to an event loop in "nio" mode.
+         * Streams beyond maxTunnels are rejected, so the EntryPoint answers the client with 502.
          *
-         * @param target      The target server address in the format "host:port".
-         * @param entryInput  The input stream from the EntryPoint.
-         * @param entryOutput The output stream to the EntryPoint.
+         * @param stream The newly opened stream.
+         * @param target The target server address in the format "host:port".
          */
-        private void forwardToTarget(String target, InputStream entryInput, OutputStream entryOutput) {
-            String[] hostPort = target.split(":");
-            String host = hostPort[0];
-            int port = Integer.parseInt(hostPort[1]);
+        private void acceptStream(TunnelStream stream, String target) {
+            int colon = target.lastIndexOf(':'); // the host may be a bracketed IPv6 literal
+            int port;
+            try {
+                port = Integer.parseInt(target.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (colon <= 0 || port < 1 || port > 65535) {
+                stream.reset("Invalid target " + target);
+                return;
+            }
+            String host = target.substring(0, colon);
+            if (!admitTunnel()) {
+                Log.warn("tunnel.rejected", "worker", workerId, "target", target, "reason", "tunnel_limit");
+                Metrics.error("tunnel_limit");
+                stream.reset("ExitPoint at capacity");
+                return;
+            }
+            Log.info("tunnel.forward", "worker", workerId, "target", target);
+            int targetPort = port;
+            if (nioEngine != null) {
+                forwardToTargetNio(host, targetPort, stream);
+            } else {
+                Threads.start(() -> {
+                    try {
+                        forwardToTarget(host, targetPort, stream);
+                    } finally {
+                        releaseTunnel();
+                    }
+                });
+            }
+        }
 
-            System.out.println("Worker " + workerId + " connecting directly to target: " + host + ":" + port);
+        /**
+         * Connects to the target server without blocking and relays the stream on an event loop.
+         *
+         * @param host   The target host.
+         * @param port   The target port.
+         * @param stream The tunnel stream opened by the EntryPoint.
+         */
+        private void forwardToTargetNio(String host, int port, TunnelStream stream) {
+            String target = host + ":" + port;
 
-            try (Socket serverSocket = new Socket(host, port)) {
-                serverSocket.setTcpNoDelay(true);
-                entryOutput.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes());
-                entryOutput.flush();
+            Log.debug("target.connect", "worker", workerId, "target", host + ":" + port);
 
-                Thread clientToServer = new Thread(() -> {
+            EventLoop loop = nioEngine.next();
+            NioEngine.connect(loop, host, port, new NioEngine.ConnectCallback() {
+                @Override
+                public void connected(SocketChannel channel) {
+                    StreamChannelRelay relay = new StreamChannelRelay(loop, channel, null, false);
+                    relay.onClose(ExitPoint::releaseTunnel);
+                    relay.start(stream);
                     try {
-                        forwardData(entryInput, serverSocket.getOutputStream());
+                        stream.accept();
                     } catch (IOException e) {
-                        System.err.println("Worker " + workerId + " error in clientToServer: " + e.getMessage());
+                        Log.warn("tunnel.ack_failed", "worker", workerId, "error", e.getMessage());
                     }
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    Log.warn("target.connect_failed", "worker", workerId, "target", host + ":" + port, "error", e.getMessage());
+                    stream.reset("Failed to connect to " + target + ": " + e.getMessage());
+                    releaseTunnel();
+                }
+            });
+        }
+
+        /**
+         * Forwards the stream to the specified target server.
+         *
+         * @param host   The target host.
+         * @param port   The target port.
+         * @param stream The tunnel stream opened by the EntryPoint.
+         */
+        private void forwardToTarget(String host, int port, TunnelStream stream) {
+            String target = host + ":" + port;
+
+            Log.debug("target.connect", "worker", workerId, "target", host + ":" + port);
+
+            Watchdog.Watch idle = null;
+            try (SocketChannel serverChannel = TargetPool.connect(host, port)) {
+                stream.accept();
+                Watchdog.Watch watch = Watchdog.idle(() -> {
+                    NioEngine.closeQuietly(serverChannel);
+                    stream.reset("Idle timeout");
                 });
+                idle = watch;
 
-                Thread serverToClient = new Thread(() -> {
+                Future<?> clientToServer = Threads.start(() -> {
                     try {
-                        forwardData(serverSocket.getInputStream(), entryOutput);
+                        forwardData(stream.getChannel(), watch.touching(serverChannel), Metrics.UPSTREAM_BYTES);
+                        serverChannel.shutdownOutput();
                     } catch (IOException e) {
-                        System.err.println("Worker " + workerId + " error in serverToClient: " + e.getMessage());
+                        Metrics.error("relay");
+                        Log.warn("relay.error", "worker", workerId, "direction", "upstream", "error", e.getMessage());
+                        stream.reset("Target write failed");
                     }
                 });
 
-                clientToServer.start();
-                serverToClient.start();
-                clientToServer.join();
-                serverToClient.join();
+                // The return direction runs on this thread, so a tunnel costs one extra task rather than two.
+                try {
+                    forwardData(serverChannel, watch.touching(stream.getChannel()), Metrics.DOWNSTREAM_BYTES);
+                    stream.closeOutput();
+                } catch (IOException e) {
+                    Metrics.error("relay");
+                    Log.warn("relay.error", "worker", workerId, "direction", "downstream", "error", e.getMessage());
+                    stream.reset("Target read failed");
+                }
+                clientToServer.get();
 
-                System.out.println("Worker " + workerId + " finished forwarding data for target: " + target);
+                Log.debug("tunnel.done", "worker", workerId, "target", target);
             } catch (Exception e) {
-                System.err.println("Worker " + workerId + " failed to connect directly to target: " + e.getMessage());
+                Log.warn("target.connect_failed", "worker", workerId, "target", host + ":" + port, "error", e.getMessage());
+                stream.reset("Failed to connect to " + target + ": " + e.getMessage());
+            } finally {
+                if (idle != null) idle.cancel();
             }
         }
 
         /**
-         * Forwards data between input and output streams.
+         * Forwards data between two channels through a pooled direct buffer.
          *
-         * @param input  The input stream to read data from.
-         * @param output The output stream to write data to.
+         * @param input   The channel to read data from.
+         * @param output  The channel to write data to.
+         * @param relayed The direction's byte counter.
          * @throws IOException If an I/O error occurs.
          */
-        private void forwardData(InputStream input, OutputStream output) throws IOException {
-            byte[] buffer = new byte[32768]; // Larger buffer for better throughput
-            int bytesRead;
-            while ((bytesRead = input.read(buffer)) != -1) {
-                output.write(buffer, 0, bytesRead);
-                output.flush();
-            }
+        private void forwardData(ReadableByteChannel input, WritableByteChannel output, LongAdder relayed) throws IOException {
+            Relay.transfer(input, output, relayed);
         }
     }
 }
@@ -0,0 +1,199 @@
+package id.levelapp;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HttpHead is the start line and header fields of an HTTP/1.x request or response.
+ * Header fields keep their order and spelling so a proxied message only differs where it was rewritten.
+ */
+final class HttpHead {
+    private final String[] start;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+
+    private HttpHead(String[] start) {
+        this.start = start;
+    }
+
+    /**
+     * Parses a message head.
+     *
+     * @param text The head as read by {@link HttpReader#readHead()}, without the terminating empty line.
+     * @return The parsed head.
+     * @throws ProtocolException If the start line or a header field is malformed.
+     */
+    static HttpHead parse(String text) throws ProtocolException {
+        String[] lines = text.split("\r?\n");
+        String[] start = lines[0].split(" ", 3);
+        if (start.length < 2) throw new ProtocolException("Malformed start line: " + lines[0]);
+        HttpHead head = new HttpHead(start.length == 3 ? start : new String[] {start[0], start[1], ""});
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            if (colon <= 0 || Character.isWhitespace(line.charAt(0)) || Character.isWhitespace(line.charAt(colon - 1))) {
+                throw new ProtocolException("Malformed header field: " + line);
+            }
+            head.names.add(line.substring(0, colon));
+            head.values.add(line.substring(colon + 1).trim());
+        }
+        return head;
+    }
+
+    /**
+     * @return The request method, or the version of a response.
+     */
+    String method() {
+        return start[0];
+    }
+
+    /**
+     * @return The request target.
+     */
+    String target() {
+        return start[1];
+    }
+
+    /**
+     * Replaces the request target.
+     *
+     * @param target The new target.
+     */
+    void target(String target) {
+        start[1] = target;
+    }
+
+    /**
+     * @return The protocol version of a request, e.g. "HTTP/1.1".
+     */
+    String version() {
+        return start[2];
+    }
+
+    /**
+     * @return The status code of a response.
+     * @throws ProtocolException If the head is not a valid response head.
+     */
+    int status() throws ProtocolException {
+        if (!start[0].startsWith("HTTP/")) throw new ProtocolException("Malformed status line: " + String.join(" ", start));
+        try {
+            return Integer.parseInt(start[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Malformed status code: " + start[1]);
+        }
+    }
+
+    /**
+     * @param name The header name, case-insensitive.
+     * @return The value of the first header with that name, or null if there is none.
+     */
+    String header(String name) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) return values.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a comma-separated header, such as Connection or Transfer-Encoding, lists a token.
+     *
+     * @param name  The header name, case-insensitive.
+     * @param token The token, case-insensitive.
+     * @return True if any header with that name contains the token.
+     */
+    boolean hasToken(String name, String token) {
+        for (int i = 0; i < names.size(); i++) {
+            if (!names.get(i).equalsIgnoreCase(name)) continue;
+            for (String value : values.get(i).split(",")) {
+                if (value.trim().equalsIgnoreCase(token)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every header with the given name.
+     *
+     * @param name The header name, case-insensitive.
+     */
+    void remove(String name) {
+        for (int i = names.size() - 1; i >= 0; i--) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                names.remove(i);
+                values.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Replaces every header with the given name by a single one.
+     *
+     * @param name  The header name.
+     * @param value The header value.
+     */
+    void set(String name, String value) {
+        remove(name);
+        names.add(name);
+        values.add(value);
+    }
+
+    /**
+     * Removes the hop-by-hop headers, including those named by the Connection header, which apply
+     * to a single connection and must not be forwarded.
+     */
+    void removeHopByHop() {
+        for (int i = 0; i < names.size(); i++) {
+            if (!names.get(i).equalsIgnoreCase("Connection")) continue;
+            for (String token : values.get(i).split(",")) {
+                String listed = token.trim();
+                if (!listed.isEmpty() && !listed.equalsIgnoreCase("Connection")) remove(listed);
+            }
+        }
+        for (String name : new String[] {"Connection", "Keep-Alive", "Proxy-Connection", "Proxy-Authorization", "TE", "Upgrade"}) {
+            remove(name);
+        }
+    }
+
+    /**
+     * @return True if the body uses the chunked transfer coding.
+     */
+    boolean isChunked() {
+        return hasToken("Transfer-Encoding", "chunked");
+    }
+
+    /**
+     * @return The Content-Length of the body, or -1 if the header is absent.
+     * @throws ProtocolException If the header is invalid or repeated with different values.
+     */
+    long contentLength() throws ProtocolException {
+        long length = -1;
+        for (int i = 0; i < names.size(); i++) {
+            if (!names.get(i).equalsIgnoreCase("Content-Length")) continue;
+            long value;
+            try {
+                value = Long.parseLong(values.get(i));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + values.get(i));
+            }
+            if (value < 0 || (length >= 0 && value != length)) throw new ProtocolException("Invalid Content-Length: " + values.get(i));
+            length = value;
+        }
+        return length;
+    }
+
+    /**
+     * @return The head serialized for the wire, including the terminating empty line.
+     */
+    ByteBuffer toBuffer() {
+        StringBuilder builder = new StringBuilder(256);
+        builder.append(start[0]).append(' ').append(start[1]).append(' ').append(start[2]).append("\r\n");
+        for (int i = 0; i < names.size(); i++) {
+            builder.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+        }
+        builder.append("\r\n");
+        return ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,449 @@
+package id.levelapp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * HttpProxy serves plain (non-CONNECT) HTTP/1.1 requests with an absolute URI, as a forward proxy.
+ * Requests are rewritten to origin form and sent to the target over an upstream connection, which is
+ * a tunnel stream through an ExitPoint in forward mode, or a direct connection otherwise.
+ * <p>
+ * Both sides are kept alive: a client connection carries any number of requests, and upstream connections
+ * are reused for the next request to the same target, on this client connection or, once idle, on another.
+ * Pipelined requests are forwarded as soon as they arrive while a second task relays the responses in order.
+ */
+final class HttpProxy {
+    /** Maximum number of idle upstream connections kept per "host:port", 0 to close them after each client. */
+    static int MAX_IDLE_PER_TARGET = 8;
+    /** Maximum number of requests forwarded ahead of their responses on one client connection. */
+    private static final int MAX_PIPELINE = 16;
+
+    private static final ConcurrentHashMap<String, ConcurrentLinkedDeque<Upstream>> idleUpstreams = new ConcurrentHashMap<>();
+    private static final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final SocketChannel clientChannel;
+    private final HttpReader clientReader;
+    private final RequestParser parser;
+
+    /**
+     * Constructs an HttpProxy for a client connection.
+     *
+     * @param clientChannel The client channel, in blocking mode.
+     * @param clientReader  The reader the first request head was read with.
+     * @param parser        The parser that has validated the first request head, which is still buffered.
+     */
+    HttpProxy(SocketChannel clientChannel, HttpReader clientReader, RequestParser parser) {
+        this.clientChannel = clientChannel;
+        this.clientReader = clientReader;
+        this.parser = parser;
+    }
+
+    /**
+     * Serves requests, starting with the one the parser has validated, until the client closes the connection,
+     * asks for it to be closed, or an error occurs.
+     */
+    void run() {
+        Session session = null;
+        try {
+            do {
+                if (parser.isConnect()) {
+                    finish(session);
+                    session = null;
+                    writeError("400 Bad Request", "CONNECT must be the first request on a connection.");
+                    return;
+                }
+                HttpHead request = HttpHead.parse(clientReader.takeHead(parser));
+                URI uri = parseTarget(request);
+                if (uri == null) {
+                    finish(session);
+                    session = null;
+                    writeError("400 Bad Request", "Expected an absolute http:// URI, got " + request.target());
+                    return;
+                }
+                String host = uri.getHost();
+                int port = uri.getPort() > 0 ? uri.getPort() : 80;
+                String key = host + ":" + port;
+                if (session == null || !session.key.equals(key) || session.failed || !session.reusable) {
+                    finish(session);
+                    session = null;
+                    Upstream upstream;
+                    try {
+                        upstream = Upstream.acquire(host, port);
+                    } catch (IOException e) {
+                        Log.warn("target.connect_failed", "target", key, "error", e.getMessage());
+                        writeError("502 Bad Gateway", e.getMessage());
+                        return;
+                    }
+                    session = new Session(key, upstream);
+                }
+
+                boolean close = wantsClose(request);
+                String rawPath = uri.getRawPath();
+                String path = (rawPath == null || rawPath.isEmpty() ? "/" : rawPath) + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+                if (request.header("Host") == null) request.set("Host", uri.getRawAuthority());
+                request.target(path);
+                request.removeHopByHop();
+                Log.info("client.request", "method", request.method(), "target", key, "path", path);
+                if (!session.send(request, close)) return;
+                if (close) return;
+            } while (clientReader.readRequest(parser));
+        } catch (ProtocolException e) {
+            finish(session);
+            session = null;
+            Metrics.error("bad_request");
+            writeError(e instanceof RequestParser.BadRequest ? ((RequestParser.BadRequest) e).status : "400 Bad Request", e.getMessage());
+        } catch (IOException e) {
+            Log.warn("client.error", "protocol", "http", "error", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            finish(session);
+        }
+    }
+
+    /**
+     * Reads the client's first request head and serves the connection, taking ownership of the channel.
+     *
+     * @param clientChannel The client channel, in blocking mode.
+     * @param clientReader  The reader for the client channel.
+     */
+    static void serve(SocketChannel clientChannel, HttpReader clientReader) {
+        try {
+            RequestParser parser = new RequestParser();
+            if (clientReader.readRequest(parser)) new HttpProxy(clientChannel, clientReader, parser).run();
+        } catch (IOException e) {
+            Log.warn("client.error", "protocol", "http", "error", e.getMessage());
+        } finally {
+            clientReader.release();
+            NioEngine.closeQuietly(clientChannel);
+        }
+    }
+
+    /**
+     * Waits for the responses of a session and releases its upstream connection.
+     */
+    private void finish(Session session) {
+        if (session == null) return;
+        try {
+            session.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.upstream.abort();
+        }
+    }
+
+    /**
+     * @return The absolute http:// URI of the request, or null if the target is not one.
+     */
+    private static URI parseTarget(HttpHead request) {
+        try {
+            URI uri = new URI(request.target());
+            if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) return null;
+            return uri;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * HTTP/1.0 clients get one response per connection; HTTP/1.1 clients keep the connection unless they ask otherwise.
+     */
+    private static boolean wantsClose(HttpHead request) {
+        return !"HTTP/1.1".equalsIgnoreCase(request.version())
+                || request.hasToken("Connection", "close")
+                || request.hasToken("Proxy-Connection", "close");
+    }
+
+    /**
+     * Sends an error response and asks the client to close the connection.
+     */
+    private void writeError(String status, String message) {
+        byte[] body = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n";
+        try {
+            writeFully(clientChannel, ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+            writeFully(clientChannel, ByteBuffer.wrap(body));
+        } catch (IOException ignored) {}
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * The exchanges of one client connection with one upstream connection. Requests are written by the
+     * client's thread; responses are relayed back, in request order, by a task on the shared executor.
+     */
+    private final class Session implements Runnable {
+        private final String key;
+        private final Upstream upstream;
+        private final BlockingQueue<Exchange> pending = new ArrayBlockingQueue<>(MAX_PIPELINE);
+        private final Future<?> responses;
+        private volatile boolean failed;
+        private volatile boolean reusable = true;
+        private boolean responding;
+
+        Session(String key, Upstream upstream) {
+            this.key = key;
+            this.upstream = upstream;
+            this.responses = Threads.start(this);
+        }
+
+        /**
+         * Forwards a rewritten request and its body to the upstream connection.
+         *
+         * @return False if the session has failed and the client connection must be closed.
+         */
+        boolean send(HttpHead request, boolean close) throws IOException, InterruptedException {
+            boolean chunked = request.isChunked();
+            long length = request.contentLength();
+            if (request.header("Transfer-Encoding") != null && (!chunked || length >= 0)) {
+                throw new ProtocolException("Unsupported Transfer-Encoding: " + request.header("Transfer-Encoding"));
+            }
+            pending.put(new Exchange("HEAD".equalsIgnoreCase(request.method()), close));
+            try {
+                writeFully(upstream.channel, request.toBuffer());
+                if (chunked) {
+                    clientReader.copyChunked(upstream.channel);
+                } else if (length > 0) {
+                    clientReader.copy(length, upstream.channel);
+                }
+            } catch (IOException e) {
+                upstream.abort(); // the target would wait forever for the rest of the request
+                if (failed) return false; // the response task has already answered the client
+                throw e;
+            }
+            return !failed;
+        }
+
+        /**
+         * Waits until every forwarded request has been answered, then keeps or closes the upstream connection.
+         */
+        void finish() throws InterruptedException {
+            if (!failed) pending.put(Exchange.END);
+            try {
+                responses.get();
+            } catch (ExecutionException e) {
+                failed = true;
+            }
+            if (!failed && reusable) {
+                Upstream.release(upstream);
+            } else {
+                upstream.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Exchange exchange = pending.take();
+                    if (exchange == Exchange.END) return;
+                    responding = false;
+                    if (!reusable) throw new EOFException("Upstream closed the connection");
+                    if (!relayResponse(exchange)) return;
+                }
+            } catch (IOException e) {
+                Log.warn("relay.error", "target", key, "error", e.getMessage());
+                fail(responding ? null : e.getMessage());
+            } catch (InterruptedException e) {
+                fail(null);
+            }
+        }
+
+        /**
+         * Reads one response, skipping past interim 1xx responses, and relays it to the client.
+         *
+         * @return True if the client connection stays open for the next response.
+         */
+        private boolean relayResponse(Exchange exchange) throws IOException {
+            HttpHead response;
+            int status;
+            while (true) {
+                String text = upstream.reader.readHead();
+                if (text == null) throw new EOFException("Upstream closed the connection");
+                response = HttpHead.parse(text);
+                status = response.status();
+                if (status >= 200 || status == 101) break;
+                writeFully(clientChannel, response.toBuffer()); // 100 Continue and other interim responses
+            }
+
+            boolean noBody = exchange.head || status == 204 || status == 304 || status == 101;
+            boolean chunked = !noBody && response.isChunked();
+            long length = noBody || chunked ? -1 : response.contentLength();
+            boolean untilClose = !noBody && !chunked && length < 0;
+            if (untilClose || status == 101 || response.hasToken("Connection", "close")
+                    || (!response.method().equals("HTTP/1.1") && !response.hasToken("Connection", "keep-alive"))) {
+                reusable = false;
+            }
+            boolean closeClient = exchange.close || untilClose || status == 101;
+
+            response.removeHopByHop();
+            if (closeClient) response.set("Connection", "close");
+            responding = true;
+            writeFully(clientChannel, response.toBuffer());
+            if (chunked) {
+                upstream.reader.copyChunked(clientChannel);
+            } else if (length > 0) {
+                upstream.reader.copy(length, clientChannel);
+            } else if (untilClose) {
+                upstream.reader.copyToEnd(clientChannel);
+            }
+            if (closeClient) {
+                failed = true; // no further requests may be answered on this client connection
+                pending.clear();
+                NioEngine.closeQuietly(clientChannel);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Answers the client with 502 if a response was still owed, then closes both connections.
+         */
+        private void fail(String message) {
+            failed = true;
+            reusable = false;
+            pending.clear(); // unblocks the client thread if it is waiting to queue another request
+            if (message != null) writeError("502 Bad Gateway", message);
+            NioEngine.closeQuietly(clientChannel);
+            upstream.abort();
+        }
+    }
+
+    /**
+     * A request whose response is still to be relayed.
+     */
+    private static final class Exchange {
+        /** Marks the end of a session. */
+        static final Exchange END = new Exchange(false, false);
+
+        private final boolean head;
+        private final boolean close;
+
+        Exchange(boolean head, boolean close) {
+            this.head = head;
+            this.close = close;
+        }
+    }
+
+    /**
+     * A connection to a target that carries HTTP exchanges: a tunnel stream through an ExitPoint in
+     * forward mode, a direct connection otherwise. Its reader keeps any bytes read past a response.
+     */
+    static final class Upstream {
+        private final String key;
+        private final ByteChannel channel;
+        private final SocketChannel socket;
+        private final TunnelStream stream;
+        private final HttpReader reader;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private long idleSince;
+
+        private Upstream(String key, SocketChannel socket, TunnelStream stream) {
+            this.key = key;
+            this.socket = socket;
+            this.stream = stream;
+            this.channel = socket != null ? socket : stream.getChannel();
+            this.reader = new HttpReader(channel);
+        }
+
+        /**
+         * Takes an idle connection to the target, or opens a new one.
+         */
+        static Upstream acquire(String host, int port) throws IOException {
+            String key = host + ":" + port;
+            ConcurrentLinkedDeque<Upstream> idle = idleUpstreams.get(key);
+            Upstream upstream;
+            while (idle != null && (upstream = idle.pollFirst()) != null) {
+                if (upstream.isReusable(System.currentTimeMillis())) return upstream;
+                upstream.close();
+            }
+            if (!EntryPoint.IS_FORWARD) return new Upstream(key, TargetPool.connect(host, port), null);
+            return new Upstream(key, null, EntryPoint.openTunnel(key));
+        }
+
+        /**
+         * Keeps a connection whose exchanges are complete for the next request to the same target.
+         */
+        static void release(Upstream upstream) {
+            if (MAX_IDLE_PER_TARGET <= 0) {
+                upstream.close();
+                return;
+            }
+            ConcurrentLinkedDeque<Upstream> idle = idleUpstreams.computeIfAbsent(upstream.key, key -> new ConcurrentLinkedDeque<>());
+            if (idle.size() >= MAX_IDLE_PER_TARGET) {
+                upstream.close();
+                return;
+            }
+            upstream.idleSince = System.currentTimeMillis();
+            idle.addFirst(upstream);
+            if (evicting.compareAndSet(false, true)) {
+                long period = Math.max(1, TargetPool.IDLE_TIMEOUT_SECONDS / 2);
+                Threads.timers().scheduleWithFixedDelay(Upstream::evict, period, period, TimeUnit.SECONDS);
+            }
+        }
+
+        /**
+         * Closes idle connections that have timed out or were closed by the target.
+         */
+        static void evict() {
+            long now = System.currentTimeMillis();
+            for (ConcurrentLinkedDeque<Upstream> idle : idleUpstreams.values()) {
+                for (Upstream upstream : idle) {
+                    if (!upstream.isExpired(now) && (upstream.stream == null || upstream.stream.isIdle())) continue;
+                    if (idle.remove(upstream)) upstream.close();
+                }
+            }
+        }
+
+        private boolean isExpired(long now) {
+            return now - idleSince > TargetPool.IDLE_TIMEOUT_SECONDS * 1000L;
+        }
+
+        /**
+         * Checks that an idle connection has not timed out, and that the target has neither closed it nor sent anything on it.
+         */
+        private boolean isReusable(long now) {
+            if (isExpired(now) || reader.hasBuffered()) return false;
+            if (stream != null) return stream.isIdle();
+            if (!TargetPool.isAlive(socket)) return false;
+            try {
+                socket.configureBlocking(true);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Closes the connection, which makes a pending read on it fail, but keeps the reader's buffer.
+         */
+        void abort() {
+            if (stream != null) {
+                stream.reset("HTTP connection closed");
+            } else {
+                NioEngine.closeQuietly(socket);
+            }
+        }
+
+        /**
+         * Closes the connection and returns the reader's buffer. Must only be called once nothing reads from it.
+         */
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            abort();
+            reader.release();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package id.levelapp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HttpReader reads HTTP/1.x messages from a blocking channel, byte by byte as far as framing is concerned,
+ * so nothing the peer sent after a message head is lost. Bodies are streamed to another channel as they
+ * arrive, with chunked bodies passed on verbatim. Its buffer comes from the {@link BufferPool}, which also
+ * bounds the size of a message head.
+ */
+final class HttpReader {
+    /** Maximum length of a chunk-size or trailer line. */
+    private static final int MAX_LINE = 8192;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructs an HttpReader.
+     *
+     * @param channel The channel to read from, in blocking mode.
+     */
+    HttpReader(ReadableByteChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * Constructs an HttpReader for a channel some bytes have already been read from.
+     *
+     * @param channel The channel to read from, in blocking mode.
+     * @param initial The bytes already read, which are returned first, may be null.
+     */
+    HttpReader(ReadableByteChannel channel, ByteBuffer initial) {
+        this.channel = channel;
+        this.buffer = BufferPool.shared().acquire();
+        if (initial != null) buffer.put(initial);
+        buffer.flip();
+    }
+
+    /**
+     * Reads a message head, skipping empty lines before it.
+     *
+     * @return The head without its terminating empty line, or null if the channel ended before a message started.
+     * @throws IOException If the channel fails, ends within the head, or the head does not fit the buffer.
+     */
+    String readHead() throws IOException {
+        while (true) {
+            while (buffer.hasRemaining() && (buffer.get(buffer.position()) == '\r' || buffer.get(buffer.position()) == '\n')) {
+                buffer.get();
+            }
+            if (buffer.hasRemaining()) break;
+            if (!fill()) return null;
+        }
+        int scanned = buffer.position();
+        while (true) {
+            for (int i = scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) != '\n') continue;
+                if (i + 1 < buffer.limit() && buffer.get(i + 1) == '\n') return take(i - buffer.position(), i + 2 - buffer.position());
+                if (i + 2 < buffer.limit() && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                    return take(i - buffer.position() - (buffer.get(i - 1) == '\r' ? 1 : 0), i + 3 - buffer.position());
+                }
+            }
+            scanned = Math.max(buffer.position(), buffer.limit() - 2);
+            int offset = scanned - buffer.position();
+            if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) throw new ProtocolException("Message head too large");
+            if (!fill()) throw new EOFException("Connection closed within message head");
+            scanned = buffer.position() + offset;
+        }
+    }
+
+    /**
+     * Reads until the parser has seen a complete request head. The head stays in the buffer until it is
+     * consumed with {@link #skip(int)} or {@link #takeHead(RequestParser)}.
+     *
+     * @param parser The parser to use; it is reset first.
+     * @return False if the channel ended before a request started.
+     * @throws IOException If the channel fails or ends within the head, or the head is invalid.
+     */
+    boolean readRequest(RequestParser parser) throws IOException {
+        parser.reset();
+        while (!parser.parse(buffer, buffer.position(), buffer.limit())) {
+            if (!fill()) {
+                if (parser.isEmpty()) return false;
+                throw new EOFException("Connection closed within request head");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consumes bytes that have been examined in place, such as a request head.
+     *
+     * @param length The number of bytes to consume.
+     */
+    void skip(int length) {
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Consumes the request head the parser has just validated.
+     *
+     * @param parser The parser that read the head with {@link #readRequest(RequestParser)}.
+     * @return The head without empty lines before it or the empty line after it, ready for {@link HttpHead#parse(String)}.
+     */
+    String takeHead(RequestParser parser) {
+        buffer.position(buffer.position() + parser.headStart());
+        return take(parser.headEnd() - parser.headStart(), parser.length() - parser.headStart());
+    }
+
+    /**
+     * Copies a body of known length.
+     *
+     * @param length The number of bytes to copy.
+     * @param output The channel to write the body to.
+     * @throws IOException If either channel fails or the input ends early.
+     */
+    void copy(long length, WritableByteChannel output) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining() && !fill()) throw new EOFException("Connection closed within message body");
+            int n = (int) Math.min(length, buffer.remaining());
+            writeSlice(n, output);
+            length -= n;
+        }
+    }
+
+    /**
+     * Copies a chunked body verbatim, including its chunk framing and trailer section.
+     *
+     * @param output The channel to write the body to.
+     * @throws IOException If either channel fails or the chunk framing is malformed.
+     */
+    void copyChunked(WritableByteChannel output) throws IOException {
+        while (true) {
+            int lineLength = lineLength();
+            String line = new String(peek(lineLength), StandardCharsets.ISO_8859_1).trim();
+            writeSlice(lineLength, output);
+            int extension = line.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong(extension < 0 ? line : line.substring(0, extension).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Malformed chunk size: " + line);
+            }
+            if (size < 0) throw new ProtocolException("Malformed chunk size: " + line);
+            if (size == 0) break;
+            copy(size, output);
+            int crlf = lineLength();
+            if (crlf > 2) throw new ProtocolException("Missing CRLF after chunk data");
+            writeSlice(crlf, output);
+        }
+        while (true) { // trailer section, ended by an empty line
+            int lineLength = lineLength();
+            boolean last = lineLength <= 2;
+            writeSlice(lineLength, output);
+            if (last) return;
+        }
+    }
+
+    /**
+     * Copies everything up to the end of the input, starting with the bytes already buffered.
+     *
+     * @param output The channel to write to.
+     * @throws IOException If either channel fails.
+     */
+    void copyToEnd(WritableByteChannel output) throws IOException {
+        copyToEnd(output, null);
+    }
+
+    /**
+     * Copies everything up to the end of the input, starting with the bytes already buffered,
+     * adding them to a counter.
+     *
+     * @param output  The channel to write to.
+     * @param relayed The counter to add the copied bytes to, may be null.
+     * @throws IOException If either channel fails.
+     */
+    void copyToEnd(WritableByteChannel output, LongAdder relayed) throws IOException {
+        copyToEnd(output, relayed, null);
+    }
+
+    /**
+     * Copies everything up to the end of the input, starting with the bytes already buffered,
+     * adding them to a counter and charging them to the bandwidth limits of a tunnel direction.
+     *
+     * @param output  The channel to write to.
+     * @param relayed The counter to add the copied bytes to, may be null.
+     * @param shaping The direction to charge the copied bytes to, may be null.
+     * @throws IOException If either channel fails.
+     */
+    void copyToEnd(WritableByteChannel output, LongAdder relayed, Shaper.Direction shaping) throws IOException {
+        int buffered = buffer.remaining();
+        writeSlice(buffered, output);
+        if (relayed != null) relayed.add(buffered);
+        if (shaping != null) shaping.pace(buffered);
+        Relay.transfer(channel, output, relayed, shaping);
+    }
+
+    /**
+     * @return True if bytes have been read from the channel but not consumed yet.
+     */
+    boolean hasBuffered() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Returns the buffer to the pool. The reader must not be used afterwards.
+     */
+    void release() {
+        BufferPool.shared().release(buffer);
+    }
+
+    /**
+     * Reads until the buffer holds a complete line.
+     *
+     * @return The length of the line, including its line terminator.
+     */
+    private int lineLength() throws IOException {
+        int scanned = buffer.position();
+        while (true) {
+            for (int i = scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') return i + 1 - buffer.position();
+            }
+            if (buffer.remaining() >= MAX_LINE) throw new ProtocolException("Line too long");
+            int offset = buffer.remaining();
+            if (!fill()) throw new EOFException("Connection closed within message body");
+            scanned = buffer.position() + offset;
+        }
+    }
+
+    /**
+     * Compacts the buffer and reads more bytes into it.
+     *
+     * @return False if the channel has ended.
+     */
+    private boolean fill() throws IOException {
+        buffer.compact();
+        try {
+            return channel.read(buffer) != -1;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Consumes the head text and the empty line after it.
+     */
+    private String take(int length, int consumed) {
+        String head = new String(peek(length), StandardCharsets.ISO_8859_1);
+        buffer.position(buffer.position() + consumed);
+        return head;
+    }
+
+    /**
+     * Copies the next bytes of the buffer without consuming them.
+     */
+    private byte[] peek(int length) {
+        byte[] bytes = new byte[length];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the next bytes of the buffer to the output and consumes them.
+     */
+    private void writeSlice(int length, WritableByteChannel output) throws IOException {
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        try {
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package id.levelapp;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log writes structured events off the relay threads. Callers put an event into a bounded lock-free ring
+ * and return; a single background thread formats the events as {@code key=value} lines and writes them,
+ * so no relay thread ever waits on the console. When the ring is full, events are dropped and counted
+ * rather than blocking the caller.
+ * <p>
+ * Events below {@link Config.Settings#logLevel} are discarded before anything is queued, and each event name is
+ * limited to {@link Config.Settings#logRate} lines per second; the next line of a limited event reports how many were suppressed.
+ * Warnings and errors go to standard error, everything else to standard output.
+ */
+final class Log {
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR = 3;
+
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+    /** Number of events the ring holds, a power of two. */
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    /** The events; a slot is published to the writer by the volatile write of its sequence number. */
+    private static final Event[] slots = new Event[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final ConcurrentHashMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+    /** Next slot to read, advanced by the writer thread only. */
+    private static volatile long head;
+    private static volatile boolean writerParked;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::drain, "warpdrive-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {}
+
+    /**
+     * Looks up a level by the name used in the configuration.
+     *
+     * @param name "debug", "info", "warn" or "error", in any case.
+     * @return The level, or -1 if the name is unknown.
+     */
+    static int level(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param level The level.
+     * @return True if events of that level are written; lets callers skip preparing costly fields.
+     */
+    static boolean isEnabled(int level) {
+        return level >= Config.settings().logLevel;
+    }
+
+    /**
+     * Logs a debug event.
+     *
+     * @param event  The event name, e.g. "tunnel.open".
+     * @param fields Alternating keys and values.
+     */
+    static void debug(String event, Object... fields) {
+        log(DEBUG, event, fields);
+    }
+
+    /**
+     * Logs an informational event.
+     *
+     * @param event  The event name, e.g. "tunnel.open".
+     * @param fields Alternating keys and values.
+     */
+    static void info(String event, Object... fields) {
+        log(INFO, event, fields);
+    }
+
+    /**
+     * Logs a warning.
+     *
+     * @param event  The event name, e.g. "tunnel.open".
+     * @param fields Alternating keys and values.
+     */
+    static void warn(String event, Object... fields) {
+        log(WARN, event, fields);
+    }
+
+    /**
+     * Logs an error.
+     *
+     * @param event  The event name, e.g. "tunnel.open".
+     * @param fields Alternating keys and values.
+     */
+    static void error(String event, Object... fields) {
+        log(ERROR, event, fields);
+    }
+
+    /**
+     * Waits up to a timeout for the writer to write every queued event, e.g. before the JVM exits.
+     *
+     * @param timeoutMillis The maximum time to wait.
+     */
+    static void flush(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long target = tail.get();
+        LockSupport.unpark(writer);
+        while (head < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private static void log(int level, String event, Object[] fields) {
+        Config.Settings settings = Config.settings();
+        if (level < settings.logLevel) return;
+        long suppressed = 0;
+        if (settings.logRate > 0) {
+            Limiter limiter = limiters.computeIfAbsent(event, name -> new Limiter());
+            if (!limiter.allow(settings.logRate)) return;
+            suppressed = limiter.suppressed.get() > 0 ? limiter.suppressed.getAndSet(0) : 0;
+        }
+        if (!offer(new Event(System.currentTimeMillis(), level, event, fields, suppressed))) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (writerParked) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Claims the next slot of the ring and publishes the event in it.
+     *
+     * @return False if the ring is full.
+     */
+    private static boolean offer(Event event) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & MASK;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = event;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Takes the next published event off the ring and frees its slot. Called by the writer thread only, which
+     * advances {@link #head} once the event is written, so {@link #flush(long)} waits for the write itself.
+     *
+     * @return The event, or null if none is ready.
+     */
+    private static Event poll() {
+        int index = (int) head & MASK;
+        if (sequences.get(index) != head + 1) return null;
+        Event event = slots[index];
+        slots[index] = null;
+        sequences.set(index, head + CAPACITY);
+        return event;
+    }
+
+    /**
+     * The writer thread: writes events as they arrive and flushes the streams whenever the ring runs empty.
+     */
+    private static void drain() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            Event event = poll();
+            if (event != null) {
+                try {
+                    write(event, line);
+                } finally {
+                    head++;
+                }
+                continue;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) write(new Event(System.currentTimeMillis(), WARN, "log.dropped", new Object[] {"events", lost}, 0), line);
+            System.out.flush();
+            System.err.flush();
+            writerParked = true;
+            if (sequences.get((int) head & MASK) != head + 1) {
+                writerParked = false;
+                continue;
+            }
+            LockSupport.parkNanos(100_000_000);
+            writerParked = false;
+        }
+    }
+
+    private static void write(Event event, StringBuilder line) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(event.time)).append(' ').append(LEVEL_NAMES[event.level]).append(' ').append(event.name);
+        Object[] fields = event.fields;
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            appendValue(line, fields[i + 1]);
+        }
+        if (event.suppressed > 0) line.append(" suppressed=").append(event.suppressed);
+        PrintStream stream = event.level >= WARN ? System.err : System.out;
+        stream.println(line);
+    }
+
+    /**
+     * Appends a value, quoted if it is empty or contains spaces, quotes or equals signs.
+     */
+    private static void appendValue(StringBuilder line, Object value) {
+        String text = String.valueOf(value);
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') line.append('\\');
+            line.append(c == '\n' || c == '\r' ? ' ' : c);
+        }
+        line.append('"');
+    }
+
+    /**
+     * A queued event.
+     */
+    private static final class Event {
+        private final long time;
+        private final int level;
+        private final String name;
+        private final Object[] fields;
+        private final long suppressed;
+
+        Event(long time, int level, String name, Object[] fields, long suppressed) {
+            this.time = time;
+            this.level = level;
+            this.name = name;
+            this.fields = fields;
+            this.suppressed = suppressed;
+        }
+    }
+
+    /**
+     * Counts the lines of one event name in the current second.
+     */
+    private static final class Limiter {
+        private final AtomicLong second = new AtomicLong();
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong suppressed = new AtomicLong();
+
+        boolean allow(int rate) {
+            long now = System.currentTimeMillis() / 1000;
+            long current = second.get();
+            if (current != now && second.compareAndSet(current, now)) count.set(0);
+            if (count.incrementAndGet() <= rate) return true;
+            suppressed.incrementAndGet();
+            return false;
+        }
+    }
+}
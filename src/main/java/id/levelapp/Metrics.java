@@ -0,0 +1,406 @@
+package id.levelapp;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics holds the counters, gauges and latency histograms of the running Entry or Exit point and serves
+ * them in the Prometheus text format on {@code http://127.0.0.1:<PORT>/metrics}. Recording never takes a lock:
+ * counters are {@link LongAdder}s and histograms count into an {@link AtomicLongArray}, so instrumenting
+ * the relay paths costs a few uncontended atomic adds.
+ */
+final class Metrics {
+    /** Local port of the metrics endpoint, 0 to disable it. */
+    static int PORT = 0;
+
+    /** Tunnels and plain HTTP connections currently being served. */
+    static final AtomicInteger ACTIVE_TUNNELS = new AtomicInteger();
+    /** Tunnels and plain HTTP connections accepted since start. */
+    static final LongAdder TUNNELS = new LongAdder();
+    /** CONNECT tunnel bytes relayed from the client towards the target. */
+    static final LongAdder UPSTREAM_BYTES = new LongAdder();
+    /** CONNECT tunnel bytes relayed from the target back towards the client. */
+    static final LongAdder DOWNSTREAM_BYTES = new LongAdder();
+    /** Stream payload bytes sent on Entry/Exit links. */
+    static final LongAdder LINK_BYTES_SENT = new LongAdder();
+    /** Stream payload bytes received on Entry/Exit links. */
+    static final LongAdder LINK_BYTES_RECEIVED = new LongAdder();
+    /** DATA frame payload bytes sent on Entry/Exit links, after compression. */
+    static final LongAdder LINK_WIRE_BYTES_SENT = new LongAdder();
+    /** DATA frame payload bytes received on Entry/Exit links, before decompression. */
+    static final LongAdder LINK_WIRE_BYTES_RECEIVED = new LongAdder();
+    /** Nanoseconds tunnel directions were held back by the {@link Shaper}. */
+    static final LongAdder SHAPING_DELAY = new LongAdder();
+    /** Time to obtain a connection to a target, including the DNS lookup and warm socket pool. */
+    static final Histogram TARGET_CONNECT = new Histogram();
+    /** Time from sending an OPEN to the ExitPoint's acknowledgement, i.e. link latency plus target connect. */
+    static final Histogram TUNNEL_OPEN = new Histogram();
+    /** Round-trip time of PINGs on the links. */
+    static final Histogram LINK_RTT = new Histogram();
+    /** Errors by cause, e.g. "target_connect" or "heartbeat_timeout". */
+    static final Family ERRORS = new Family();
+    /** Tunnels given to each ExitPoint link by the balancer. */
+    static final Family EXIT_SELECTIONS = new Family();
+
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private static volatile ServerSocket server;
+
+    private Metrics() {}
+
+    /**
+     * Counts an error.
+     *
+     * @param cause A short snake_case name of the cause.
+     */
+    static void error(String cause) {
+        ERRORS.counter(cause).increment();
+    }
+
+    /**
+     * Registers a gauge read at every scrape, replacing any gauge of the same name.
+     *
+     * @param name  The metric name.
+     * @param help  The description shown in the scrape.
+     * @param value Supplies the current value.
+     */
+    static void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Starts the endpoint on the loopback interface if {@link #PORT} is set.
+     */
+    static void start() {
+        if (PORT <= 0) return;
+        try {
+            ServerSocket socket = new ServerSocket(PORT, 16, InetAddress.getLoopbackAddress());
+            server = socket;
+            TargetPool.listening(PORT);
+            Threads.start(() -> serve(socket));
+            Log.info("metrics.listen", "url", "http://127.0.0.1:" + PORT + "/metrics");
+        } catch (IOException e) {
+            Log.error("metrics.start_failed", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the endpoint.
+     */
+    static void stop() {
+        ServerSocket socket = server;
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Answers scrapes one at a time; they are rare, small and must not compete with tunnels for threads.
+     * Besides {@code GET /metrics}, {@code GET /shaping} shows the bandwidth limits. Changing them, reloading
+     * the config and draining are served by {@link Admin}, behind a token.
+     */
+    private static void serve(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try (Socket client = socket.accept()) {
+                client.setSoTimeout(5000);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+                String requestLine = reader.readLine();
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    // headers are not needed
+                }
+                String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+                String method = parts.length >= 2 ? parts[0] : "";
+                String target = parts.length >= 2 ? parts[1] : "";
+                int query = target.indexOf('?');
+                String path = query < 0 ? target : target.substring(0, query);
+                boolean read = "GET".equals(method) || "HEAD".equals(method);
+                String status = "200 OK";
+                String type = "text/plain";
+                String text;
+                if (read && path.equals("/metrics")) {
+                    type = "text/plain; version=0.0.4; charset=utf-8";
+                    text = scrape();
+                } else if (read && path.equals("/shaping")) {
+                    text = Shaper.describe() + "\n";
+                } else {
+                    status = "404 Not Found";
+                    text = "Not Found\n";
+                }
+                respond(client, method, status, type, text);
+            } catch (IOException e) {
+                if (!socket.isClosed()) Log.warn("metrics.error", "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes a complete response and asks the client to close the connection.
+     *
+     * @param client The client connection.
+     * @param method The request method; a HEAD response carries no body.
+     * @param status The status code and reason, e.g. "200 OK".
+     * @param type   The content type of the body.
+     * @param text   The body.
+     * @throws IOException If the response cannot be written.
+     */
+    static void respond(Socket client, String method, String status, String type, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + type + "\r\n"
+                + "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n";
+        OutputStream output = client.getOutputStream();
+        output.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        if (!"HEAD".equals(method)) output.write(body);
+        output.flush();
+    }
+
+    /**
+     * @return The number of file descriptors this process has open, or -1 where the JVM cannot tell.
+     */
+    static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    /**
+     * @return Every metric in the Prometheus text exposition format.
+     */
+    static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        gauge(out, "warpdrive_tunnels_active", "Tunnels and plain HTTP connections currently being served.", ACTIVE_TUNNELS.get());
+        counter(out, "warpdrive_tunnels_total", "Tunnels and plain HTTP connections accepted.", TUNNELS.sum());
+        type(out, "warpdrive_tunnel_bytes_total", "CONNECT tunnel bytes relayed, by direction.", "counter");
+        sample(out, "warpdrive_tunnel_bytes_total", "direction", "upstream", UPSTREAM_BYTES.sum());
+        sample(out, "warpdrive_tunnel_bytes_total", "direction", "downstream", DOWNSTREAM_BYTES.sum());
+        type(out, "warpdrive_link_bytes_total", "Stream payload bytes carried on Entry/Exit links, by direction.", "counter");
+        sample(out, "warpdrive_link_bytes_total", "direction", "sent", LINK_BYTES_SENT.sum());
+        sample(out, "warpdrive_link_bytes_total", "direction", "received", LINK_BYTES_RECEIVED.sum());
+        type(out, "warpdrive_link_wire_bytes_total", "Stream payload bytes as carried on Entry/Exit links after compression, by direction.", "counter");
+        sample(out, "warpdrive_link_wire_bytes_total", "direction", "sent", LINK_WIRE_BYTES_SENT.sum());
+        sample(out, "warpdrive_link_wire_bytes_total", "direction", "received", LINK_WIRE_BYTES_RECEIVED.sum());
+        type(out, "warpdrive_shaping_delay_seconds_total", "Time tunnel directions were held back by bandwidth limits.", "counter");
+        out.append("warpdrive_shaping_delay_seconds_total ").append(SHAPING_DELAY.sum() / 1e9).append('\n');
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            gauge(out, gauge.getKey(), gauge.getValue().help, gauge.getValue().value.getAsLong());
+        }
+        gauge(out, "warpdrive_threads", "Live threads in the JVM.", ManagementFactory.getThreadMXBean().getThreadCount());
+        long fds = openFileDescriptors();
+        if (fds >= 0) gauge(out, "process_open_fds", "Open file descriptors, including sockets.", fds);
+        TARGET_CONNECT.writeTo(out, "warpdrive_target_connect_seconds", "Time to obtain a connection to a target.");
+        TUNNEL_OPEN.writeTo(out, "warpdrive_tunnel_open_seconds", "Time for an ExitPoint to acknowledge a new tunnel.");
+        LINK_RTT.writeTo(out, "warpdrive_link_rtt_seconds", "Round-trip time of heartbeats on Entry/Exit links.");
+        ERRORS.writeTo(out, "warpdrive_errors_total", "Errors, by cause.", "cause");
+        EXIT_SELECTIONS.writeTo(out, "warpdrive_exit_selections_total", "Tunnels given to each ExitPoint link.", "exit");
+        return out.toString();
+    }
+
+    private static void type(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        type(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        type(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String labelValue, Object value) {
+        out.append(name).append('{').append(label).append("=\"");
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') out.append('\\');
+            out.append(c == '\n' ? ' ' : c);
+        }
+        out.append("\"} ").append(value).append('\n');
+    }
+
+    /**
+     * A gauge registered with {@link #gauge(String, String, LongSupplier)}.
+     */
+    private static final class Gauge {
+        private final String help;
+        private final LongSupplier value;
+
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Counters of one metric told apart by the value of a single label.
+     */
+    static final class Family {
+        private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+        /**
+         * @param label The label value.
+         * @return The counter for that value, created on first use.
+         */
+        LongAdder counter(String label) {
+            LongAdder counter = counters.get(label);
+            return counter != null ? counter : counters.computeIfAbsent(label, key -> new LongAdder());
+        }
+
+        /**
+         * Drops the counter for a label value that will not be seen again, such as a closed link.
+         *
+         * @param label The label value.
+         */
+        void remove(String label) {
+            counters.remove(label);
+        }
+
+        private void writeTo(StringBuilder out, String name, String help, String label) {
+            type(out, name, help, "counter");
+            for (Map.Entry<String, LongAdder> counter : new ConcurrentSkipListMap<>(counters).entrySet()) {
+                sample(out, name, label, counter.getKey(), counter.getValue().sum());
+            }
+        }
+    }
+
+    /**
+     * A latency histogram in the style of HdrHistogram: every power of two of microseconds is split into
+     * {@link #SUB_BUCKETS} linear buckets, so any recorded value is known to within 25% whatever its magnitude,
+     * with a fixed array of counters and no allocation per sample. Scrapes report the cumulative counts
+     * at every power of two, which is as fine as dashboards need; {@link #quantile(double)} uses the full resolution.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        /** Powers of two covered: 1 microsecond up to 2^33 microseconds, about 140 minutes; larger values land in the last bucket. */
+        private static final int OCTAVES = 32;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * OCTAVES);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+
+        /**
+         * Records one sample.
+         *
+         * @param nanos The measured time in nanoseconds.
+         */
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(index(micros));
+            count.increment();
+            sumMicros.add(micros);
+        }
+
+        /**
+         * @return The number of samples recorded.
+         */
+        long count() {
+            return count.sum();
+        }
+
+        /**
+         * @return The mean of the recorded samples in microseconds, 0 if there are none.
+         */
+        double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sumMicros.sum() / n;
+        }
+
+        /**
+         * @param quantile The quantile, between 0 and 1, e.g. 0.99.
+         * @return The upper bound of the bucket holding the quantile, in microseconds, 0 if there are no samples.
+         */
+        long quantile(double quantile) {
+            long[] snapshot = snapshot();
+            long total = 0;
+            for (long n : snapshot) {
+                total += n;
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(snapshot.length - 1);
+        }
+
+        /**
+         * Clears every sample, e.g. between benchmark phases. Samples recorded concurrently may be lost.
+         */
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            count.reset();
+            sumMicros.reset();
+        }
+
+        /**
+         * The bucket of a value: values below {@link #SUB_BUCKETS} get a bucket each, larger ones are placed
+         * by their highest set bit and the two bits after it.
+         */
+        private static int index(long micros) {
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int octave = 63 - Long.numberOfLeadingZeros(micros);
+            int index = SUB_BUCKETS * (octave - 1) + (int) (micros >>> (octave - 2)) - SUB_BUCKETS;
+            return Math.min(index, SUB_BUCKETS * OCTAVES - 1);
+        }
+
+        /**
+         * @return The smallest value, in microseconds, above every value counted in the bucket.
+         */
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) return index + 1;
+            int octave = index / SUB_BUCKETS + 1;
+            long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+            return (mantissa + 1) << (octave - 2);
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        /**
+         * Writes the histogram in the Prometheus text format, in seconds, with a bucket at every power of two microseconds.
+         */
+        void writeTo(StringBuilder out, String name, String help) {
+            type(out, name, help, "histogram");
+            long[] snapshot = snapshot();
+            long cumulative = 0;
+            int next = 0;
+            for (int octave = 0; octave <= OCTAVES; octave++) {
+                long bound = 1L << octave;
+                while (next < snapshot.length && upperBound(next) <= bound) {
+                    cumulative += snapshot[next++];
+                }
+                out.append(name).append("_bucket{le=\"").append(bound / 1e6).append("\"} ").append(cumulative).append('\n');
+            }
+            while (next < snapshot.length) {
+                cumulative += snapshot[next++];
+            }
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(sumMicros.sum() / 1e6).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+}
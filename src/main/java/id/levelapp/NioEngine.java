@@ -0,0 +1,320 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioEngine is the non-blocking alternative to the thread-per-connection engine.
+ * It runs a fixed group of {@link EventLoop}s, one per core by default, and spreads accepted
+ * and outgoing connections across them round-robin.
+ * <p>
+ * The engine only carries CONNECT tunnels: accepting clients, reading their CONNECT request, connecting
+ * to targets and relaying tunnel bytes. Plain HTTP requests are handed to a thread of {@link Threads}
+ * once their head is read, and the ExitPoint link listener and the {@link TunnelLink} readers stay
+ * thread-per-connection in every engine.
+ */
+final class NioEngine {
+    /** How long accepting pauses after a failure such as running out of file descriptors. */
+    static final long ACCEPT_BACKOFF_MILLIS = 100;
+    /** How long stopping waits for the loop threads to close their channels. */
+    static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+    /** Most threads resolving host names at the same time. */
+    static final int RESOLVER_THREADS = 8;
+    /** Most lookups waiting for a resolver thread; further connects fail at once, e.g. during a DNS outage. */
+    static final int RESOLVER_QUEUE = 1024;
+
+    /** Resolves uncached host names off the event loops, since InetAddress lookups always block. */
+    private static final ThreadPoolExecutor resolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(RESOLVER_QUEUE), task -> {
+                Thread thread = new Thread(task, "warpdrive-resolver");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        resolver.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Receives connections accepted by {@link #listen(int, Acceptor)}.
+     */
+    interface Acceptor {
+        /**
+         * Called on the loop that now owns the accepted channel.
+         *
+         * @param loop    The loop the channel must be registered with.
+         * @param channel The accepted channel, already in non-blocking mode.
+         */
+        void accept(EventLoop loop, SocketChannel channel);
+    }
+
+    /**
+     * Receives the outcome of {@link #connect(EventLoop, String, int, ConnectCallback)}.
+     */
+    interface ConnectCallback {
+        /**
+         * Called on the loop once the channel is connected.
+         *
+         * @param channel The connected channel.
+         */
+        void connected(SocketChannel channel);
+
+        /**
+         * Called on the loop if the host cannot be resolved or the connection fails.
+         *
+         * @param e The cause of the failure.
+         */
+        void failed(IOException e);
+    }
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Constructs and starts an NioEngine.
+     *
+     * @param loopCount The number of event loops to run.
+     * @throws IOException If a Selector cannot be opened.
+     */
+    NioEngine(int loopCount) throws IOException {
+        loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("warpdrive-loop-" + (i + 1));
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Stops every event loop, closing the channels still registered with them, and waits up to the timeout
+     * for the loop threads to finish.
+     *
+     * @param timeoutMillis The maximum time to wait for the loop threads.
+     */
+    void shutdown(long timeoutMillis) {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (EventLoop loop : loops) {
+                loop.awaitTermination(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The next event loop, round-robin.
+     */
+    EventLoop next() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Accepts connections on the given port and hands each one to the next event loop.
+     *
+     * @param port     The port to listen on.
+     * @param tuning   The options of the accepted sockets.
+     * @param acceptor Receives the accepted connections.
+     * @return The listening channel; closing it stops accepting.
+     * @throws IOException If the port cannot be bound.
+     */
+    ServerSocketChannel listen(int port, SocketTuning tuning, Acceptor acceptor) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        tuning.applyToListener(server);
+        server.bind(new InetSocketAddress(port));
+        TargetPool.listening(port);
+        EventLoop acceptLoop = loops[0];
+        acceptLoop.execute(() -> {
+            try {
+                acceptLoop.register(server, SelectionKey.OP_ACCEPT, new EventLoop.Handler() {
+                    @Override
+                    public void handle(SelectionKey key) throws IOException {
+                        SocketChannel channel;
+                        while ((channel = acceptOrPause(key)) != null) {
+                            try {
+                                channel.configureBlocking(false);
+                            } catch (IOException e) {
+                                closeQuietly(channel);
+                                continue;
+                            }
+                            tuning.applyQuietly(channel, "client");
+                            SocketChannel accepted = channel;
+                            EventLoop loop = next();
+                            loop.execute(() -> acceptor.accept(loop, accepted));
+                        }
+                    }
+
+                    /**
+                     * Accepts the next connection. A failure that does not concern the listening socket, such as
+                     * running out of file descriptors, pauses accepting for a moment rather than stopping it or
+                     * spinning on a key that stays ready.
+                     */
+                    private SocketChannel acceptOrPause(SelectionKey key) throws IOException {
+                        try {
+                            return server.accept();
+                        } catch (ClosedChannelException e) {
+                            throw e;
+                        } catch (IOException e) {
+                            Metrics.error("accept");
+                            Log.warn("accept.error", "port", port, "error", e.getMessage());
+                            key.interestOps(0);
+                            acceptLoop.schedule(() -> {
+                                if (key.isValid()) key.interestOps(SelectionKey.OP_ACCEPT);
+                            }, ACCEPT_BACKOFF_MILLIS);
+                            return null;
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                        if (server.isOpen()) Log.warn("accept.stopped", "port", port);
+                        closeQuietly(server);
+                    }
+                });
+            } catch (IOException e) {
+                Log.error("accept.error", "port", port, "error", e.getMessage());
+            }
+        });
+        return server;
+    }
+
+    /**
+     * Connects to a host without blocking the loop. A warm socket from the {@link TargetPool} is used
+     * when available, and the host is only resolved on the resolver threads when the {@link Resolver}
+     * cache misses. Targets refused by {@link TargetPool#checkTarget} fail like an unreachable host.
+     *
+     * @param loop     The loop that will own the connected channel.
+     * @param host     The host to connect to.
+     * @param port     The port to connect to.
+     * @param callback Receives the connected channel or the failure, on the loop thread.
+     */
+    static void connect(EventLoop loop, String host, int port, ConnectCallback callback) {
+        long started = System.nanoTime();
+        ConnectCallback timed = new ConnectCallback() {
+            @Override
+            public void connected(SocketChannel channel) {
+                Metrics.TARGET_CONNECT.record(System.nanoTime() - started);
+                callback.connected(channel);
+            }
+
+            @Override
+            public void failed(IOException e) {
+                Metrics.error("target_connect");
+                callback.failed(e);
+            }
+        };
+        SocketChannel warm = TargetPool.poll(host, port);
+        if (warm != null) {
+            loop.execute(() -> timed.connected(warm));
+            return;
+        }
+        InetAddress cached;
+        try {
+            cached = Resolver.cached(host);
+        } catch (UnknownHostException e) {
+            loop.execute(() -> timed.failed(e));
+            return;
+        }
+        if (cached != null) {
+            loop.execute(() -> connect(loop, new InetSocketAddress(cached, port), timed));
+            return;
+        }
+        try {
+            resolver.execute(() -> {
+                try {
+                    InetSocketAddress address = new InetSocketAddress(Resolver.resolve(host), port);
+                    loop.execute(() -> connect(loop, address, timed));
+                } catch (UnknownHostException e) {
+                    loop.execute(() -> timed.failed(e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loop.execute(() -> timed.failed(new UnknownHostException(host + ": too many lookups pending")));
+        }
+    }
+
+    /**
+     * Starts a non-blocking connect to a resolved address. Must be called on the loop thread.
+     */
+    private static void connect(EventLoop loop, InetSocketAddress address, ConnectCallback callback) {
+        SocketChannel channel = null;
+        try {
+            TargetPool.checkTarget(address.getAddress(), address.getPort());
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            SocketTuning.TARGET.apply(channel);
+            if (channel.connect(address)) {
+                callback.connected(channel);
+            } else {
+                loop.register(channel, SelectionKey.OP_CONNECT, new PendingConnect(loop, channel, callback));
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            callback.failed(e);
+        }
+    }
+
+    /**
+     * Closes a channel, ignoring any error.
+     *
+     * @param channel The channel to close, may be null.
+     */
+    static void closeQuietly(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Completes a non-blocking connect, or abandons it after {@link Watchdog#CONNECT_TIMEOUT_MILLIS}.
+     */
+    private static final class PendingConnect implements EventLoop.Handler {
+        private final SocketChannel channel;
+        private final ConnectCallback callback;
+        private final EventLoop.Timer timeout;
+        private boolean done;
+
+        PendingConnect(EventLoop loop, SocketChannel channel, ConnectCallback callback) {
+            this.channel = channel;
+            this.callback = callback;
+            this.timeout = loop.schedule(() -> fail(new SocketTimeoutException("Connect timed out")), Watchdog.CONNECT_TIMEOUT_MILLIS);
+        }
+
+        @Override
+        public void handle(SelectionKey key) {
+            try {
+                if (!channel.finishConnect()) return;
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            done = true;
+            timeout.cancel();
+            key.interestOps(0);
+            callback.connected(channel);
+        }
+
+        @Override
+        public void close() {
+            fail(new IOException("Connect failed"));
+        }
+
+        private void fail(IOException e) {
+            if (done) return;
+            done = true;
+            timeout.cancel();
+            closeQuietly(channel);
+            callback.failed(e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Relay copies one direction of a tunnel between blocking channels.
+ * It borrows a buffer from the shared {@link BufferPool}, so a socket-to-socket copy moves data
+ * through off-heap memory only and no per-tunnel buffers are left for the garbage collector.
+ * Java offers no socket-to-socket splice, so this is the closest the JDK gets to a kernel-side transfer.
+ * <p>
+ * Every read is written on at once, so interactive traffic is never held back. A direction whose reads keep
+ * filling the buffer is a bulk transfer and moves to a large buffer from {@link BufferPool#bulk()}, so it
+ * pays the read and write system calls once per {@link BufferPool#BULK_BUFFER_SIZE} rather than once per
+ * {@link BufferPool#BUFFER_SIZE}.
+ */
+final class Relay {
+    /** Consecutive full reads after which a direction moves to a bulk buffer. */
+    static final int BULK_READS = 4;
+
+    private Relay() {}
+
+    /**
+     * Copies bytes from the input to the output until the input reaches end of stream.
+     * Writes go straight to the channel, so there is nothing to flush.
+     *
+     * @param input  The channel to read data from.
+     * @param output The channel to write data to.
+     * @return The number of bytes copied.
+     * @throws IOException If an I/O error occurs.
+     */
+    static long transfer(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        return transfer(input, output, null);
+    }
+
+    /**
+     * Copies bytes from the input to the output until the input reaches end of stream,
+     * adding them to a counter as they are written.
+     *
+     * @param input   The channel to read data from.
+     * @param output  The channel to write data to.
+     * @param relayed The counter to add the copied bytes to, may be null.
+     * @return The number of bytes copied.
+     * @throws IOException If an I/O error occurs.
+     */
+    static long transfer(ReadableByteChannel input, WritableByteChannel output, LongAdder relayed) throws IOException {
+        return transfer(input, output, relayed, BufferPool.shared(), BufferPool.bulk(), null);
+    }
+
+    /**
+     * Copies bytes from the input to the output until the input reaches end of stream,
+     * through a buffer borrowed from the given pool and never moving to a bulk buffer.
+     *
+     * @param input   The channel to read data from.
+     * @param output  The channel to write data to.
+     * @param relayed The counter to add the copied bytes to, may be null.
+     * @param pool    The pool to borrow the buffer from.
+     * @return The number of bytes copied.
+     * @throws IOException If an I/O error occurs.
+     */
+    static long transfer(ReadableByteChannel input, WritableByteChannel output, LongAdder relayed, BufferPool pool) throws IOException {
+        return transfer(input, output, relayed, pool, null, null);
+    }
+
+    /**
+     * Copies bytes from the input to the output until the input reaches end of stream, holding back
+     * after each write for as long as the bandwidth limits of the direction require.
+     *
+     * @param input   The channel to read data from.
+     * @param output  The channel to write data to.
+     * @param relayed The counter to add the copied bytes to, may be null.
+     * @param shaping The direction to charge the copied bytes to, may be null.
+     * @return The number of bytes copied.
+     * @throws IOException If an I/O error occurs.
+     */
+    static long transfer(ReadableByteChannel input, WritableByteChannel output, LongAdder relayed, Shaper.Direction shaping) throws IOException {
+        return transfer(input, output, relayed, BufferPool.shared(), BufferPool.bulk(), shaping);
+    }
+
+    private static long transfer(ReadableByteChannel input, WritableByteChannel output, LongAdder relayed, BufferPool pool,
+            BufferPool bulk, Shaper.Direction shaping) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        boolean bulkBuffer = false;
+        int fullReads = 0;
+        long total = 0;
+        try {
+            while (input.read(buffer) != -1) {
+                if (bulk != null && !bulkBuffer) {
+                    fullReads = buffer.hasRemaining() ? 0 : fullReads + 1;
+                    if (fullReads >= BULK_READS) {
+                        ByteBuffer large = bulk.tryAcquire();
+                        if (large != null) {
+                            buffer.flip();
+                            large.put(buffer);
+                            pool.release(buffer);
+                            buffer = large;
+                            bulkBuffer = true;
+                        }
+                        fullReads = 0;
+                    }
+                }
+                buffer.flip();
+                int length = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                total += length;
+                if (relayed != null) relayed.add(length);
+                if (shaping != null) shaping.pace(length);
+                buffer.clear();
+            }
+        } finally {
+            (bulkBuffer ? bulk : pool).release(buffer);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,296 @@
+package id.levelapp;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RequestParser validates an HTTP/1.x request head directly in the buffer it was read into.
+ * It is incremental: each call resumes where the previous one stopped, so a head arriving in many
+ * small reads is scanned only once, and it never moves the buffer's position, so whatever the client sent
+ * after the head is still in the buffer for the tunnel. Apart from the host name of a CONNECT request,
+ * parsing allocates nothing, and one parser is reused for every request on a connection.
+ */
+final class RequestParser {
+    /** Maximum length of the request line. */
+    static final int MAX_REQUEST_LINE = 8192;
+    /** Maximum length of the whole request head. */
+    static final int MAX_HEAD_SIZE = 16384;
+    /** Maximum number of header fields. */
+    static final int MAX_HEADERS = 100;
+
+    /**
+     * A request the proxy refuses, with the status to answer it with.
+     */
+    static final class BadRequest extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        /** The status line, e.g. "400 Bad Request". */
+        final String status;
+
+        BadRequest(String status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private static final byte[] CONNECT = "CONNECT".getBytes(StandardCharsets.US_ASCII);
+    private static final boolean[] TOKEN = new boolean[256];
+    private static final boolean[] VISIBLE = new boolean[256];
+    private static final boolean[] FIELD_VALUE = new boolean[256];
+
+    static {
+        for (int c = 0x21; c < 0x7F; c++) {
+            VISIBLE[c] = true;
+            TOKEN[c] = Character.isLetterOrDigit(c) || "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
+            FIELD_VALUE[c] = true;
+        }
+        for (int c = 0x80; c < 0x100; c++) {
+            FIELD_VALUE[c] = true;
+        }
+        FIELD_VALUE[' '] = true;
+        FIELD_VALUE['\t'] = true;
+    }
+
+    private static final int START = 0;
+    private static final int METHOD = 1;
+    private static final int TARGET = 2;
+    private static final int VERSION = 3;
+    private static final int LINE_CR = 4;
+    private static final int FIELD_START = 5;
+    private static final int FIELD_NAME = 6;
+    private static final int FIELD_VALUE_STATE = 7;
+    private static final int END_CR = 8;
+    private static final int DONE = 9;
+
+    private int state;
+    private int scanned;
+    private int headStart;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int headers;
+    private int headEnd;
+    private int length;
+    private boolean connect;
+    private String host;
+    private int port;
+
+    /**
+     * Prepares the parser for the next request.
+     */
+    void reset() {
+        state = START;
+        scanned = 0;
+        headers = 0;
+        connect = false;
+        host = null;
+        port = 0;
+    }
+
+    /**
+     * Scans the bytes that arrived since the previous call.
+     * Offsets reported by the parser are relative to {@code start}, which must stay the first byte of the head.
+     *
+     * @param buffer The buffer holding the head; its position and limit are not used or changed.
+     * @param start  The index of the first byte of the head.
+     * @param end    The index after the last byte read so far.
+     * @return True once the head is complete.
+     * @throws BadRequest If the head is malformed or exceeds a size limit.
+     */
+    boolean parse(ByteBuffer buffer, int start, int end) throws BadRequest {
+        for (int i = start + scanned; i < end && state != DONE; i++) {
+            int b = buffer.get(i) & 0xFF;
+            int offset = i - start;
+            if (offset >= MAX_HEAD_SIZE) throw new BadRequest("431 Request Header Fields Too Large", "Request head too large");
+            switch (state) {
+                case START:
+                    if (b == '\r' || b == '\n') break; // empty lines before a request are ignored
+                    if (!TOKEN[b]) throw new BadRequest("400 Bad Request", "Malformed request method");
+                    headStart = offset;
+                    state = METHOD;
+                    break;
+                case METHOD:
+                    if (b == ' ') {
+                        methodEnd = offset;
+                        targetStart = offset + 1;
+                        state = TARGET;
+                    } else if (!TOKEN[b]) {
+                        throw new BadRequest("400 Bad Request", "Malformed request method");
+                    }
+                    break;
+                case TARGET:
+                    if (b == ' ' && offset > targetStart) {
+                        targetEnd = offset;
+                        versionStart = offset + 1;
+                        state = VERSION;
+                    } else if (!VISIBLE[b]) {
+                        throw new BadRequest("400 Bad Request", "Malformed request target");
+                    }
+                    break;
+                case VERSION:
+                    if (b == '\r' || b == '\n') {
+                        checkVersion(buffer, start + versionStart, offset - versionStart);
+                        state = b == '\r' ? LINE_CR : FIELD_START;
+                    } else if (offset - versionStart >= 8) {
+                        throw new BadRequest("400 Bad Request", "Malformed HTTP version");
+                    }
+                    break;
+                case LINE_CR:
+                    if (b != '\n') throw new BadRequest("400 Bad Request", "Malformed line ending");
+                    state = FIELD_START;
+                    break;
+                case FIELD_START:
+                    if (b == '\r') {
+                        headEnd = offset;
+                        state = END_CR;
+                    } else if (b == '\n') {
+                        headEnd = offset;
+                        complete(buffer, start, offset + 1);
+                    } else if (TOKEN[b]) {
+                        if (++headers > MAX_HEADERS) throw new BadRequest("431 Request Header Fields Too Large", "Too many header fields");
+                        state = FIELD_NAME;
+                    } else {
+                        throw new BadRequest("400 Bad Request", "Malformed header field");
+                    }
+                    break;
+                case FIELD_NAME:
+                    if (b == ':') {
+                        state = FIELD_VALUE_STATE;
+                    } else if (!TOKEN[b]) {
+                        throw new BadRequest("400 Bad Request", "Malformed header field name");
+                    }
+                    break;
+                case FIELD_VALUE_STATE:
+                    if (b == '\r') {
+                        state = LINE_CR;
+                    } else if (b == '\n') {
+                        state = FIELD_START;
+                    } else if (!FIELD_VALUE[b]) {
+                        throw new BadRequest("400 Bad Request", "Malformed header field value");
+                    }
+                    break;
+                case END_CR:
+                    if (b != '\n') throw new BadRequest("400 Bad Request", "Malformed line ending");
+                    complete(buffer, start, offset + 1);
+                    break;
+                default:
+                    break;
+            }
+            if (state <= VERSION && state != START && offset - headStart >= MAX_REQUEST_LINE) {
+                throw new BadRequest("414 URI Too Long", "Request line too long");
+            }
+        }
+        scanned = end - start;
+        return state == DONE;
+    }
+
+    /**
+     * @return True if nothing but empty lines has been scanned, i.e. no request has started.
+     */
+    boolean isEmpty() {
+        return state == START;
+    }
+
+    /**
+     * @return True if the request is a CONNECT request.
+     */
+    boolean isConnect() {
+        return connect;
+    }
+
+    /**
+     * @return The host of a CONNECT request.
+     */
+    String host() {
+        return host;
+    }
+
+    /**
+     * @return The port of a CONNECT request.
+     */
+    int port() {
+        return port;
+    }
+
+    /**
+     * @return The target of a CONNECT request in the format "host:port".
+     */
+    String authority() {
+        return host + ":" + port;
+    }
+
+    /**
+     * @return The offset of the request line, after any empty lines before it.
+     */
+    int headStart() {
+        return headStart;
+    }
+
+    /**
+     * @return The offset of the empty line that ends the head.
+     */
+    int headEnd() {
+        return headEnd;
+    }
+
+    /**
+     * @return The length of the head including the empty line that ends it; the tunnel data starts here.
+     */
+    int length() {
+        return length;
+    }
+
+    private static void checkVersion(ByteBuffer buffer, int index, int length) throws BadRequest {
+        if (length != 8 || buffer.get(index) != 'H' || buffer.get(index + 1) != 'T' || buffer.get(index + 2) != 'T'
+                || buffer.get(index + 3) != 'P' || buffer.get(index + 4) != '/' || buffer.get(index + 5) != '1'
+                || buffer.get(index + 6) != '.' || (buffer.get(index + 7) != '0' && buffer.get(index + 7) != '1')) {
+            throw new BadRequest("505 HTTP Version Not Supported", "Unsupported HTTP version");
+        }
+    }
+
+    /**
+     * Finishes the head and, for a CONNECT request, validates its authority-form target.
+     */
+    private void complete(ByteBuffer buffer, int start, int length) throws BadRequest {
+        this.state = DONE;
+        this.length = length;
+        int methodLength = methodEnd - headStart;
+        connect = methodLength == CONNECT.length;
+        for (int i = 0; connect && i < methodLength; i++) {
+            connect = (buffer.get(start + headStart + i) & 0xDF) == CONNECT[i];
+        }
+        if (!connect) return;
+
+        int from = start + targetStart;
+        int to = start + targetEnd;
+        int colon = -1;
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer.get(i) == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon <= from || colon == to - 1 || to - colon > 6) throw new BadRequest("400 Bad Request", "CONNECT target must be host:port");
+        int value = 0;
+        for (int i = colon + 1; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) throw new BadRequest("400 Bad Request", "Invalid CONNECT port");
+            value = value * 10 + digit;
+        }
+        if (value < 1 || value > 65535) throw new BadRequest("400 Bad Request", "Invalid CONNECT port");
+        boolean bracketed = buffer.get(from) == '[';
+        if (bracketed && buffer.get(colon - 1) != ']') throw new BadRequest("400 Bad Request", "Invalid CONNECT host");
+        byte[] name = new byte[colon - from];
+        for (int i = 0; i < name.length; i++) {
+            byte c = buffer.get(from + i);
+            boolean valid = Character.isLetterOrDigit(c) || c == '-' || c == '.' || c == '_'
+                    || (bracketed && (c == ':' || c == '[' || c == ']'));
+            if (!valid) throw new BadRequest("400 Bad Request", "Invalid CONNECT host");
+            name[i] = c;
+        }
+        host = new String(name, StandardCharsets.US_ASCII);
+        port = value;
+    }
+}
@@ -0,0 +1,92 @@
+package id.levelapp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolver caches host name lookups for target connections.
+ * Successful lookups are kept for {@link #TTL_SECONDS}, failed ones for {@link #NEGATIVE_TTL_SECONDS},
+ * so a burst of requests to the same few targets costs one blocking lookup instead of one per request.
+ */
+final class Resolver {
+    /** How long a resolved address is reused, 0 to disable caching. */
+    static int TTL_SECONDS = 60;
+    /** How long a failed lookup is remembered, 0 to retry every time. */
+    static int NEGATIVE_TTL_SECONDS = 10;
+    /** Number of cached hosts above which expired entries are purged. */
+    private static final int PURGE_THRESHOLD = 10000;
+
+    private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    private Resolver() {}
+
+    /**
+     * Resolves a host name, blocking on a cache miss.
+     *
+     * @param host The host name or literal address.
+     * @return The resolved address.
+     * @throws UnknownHostException If the host cannot be resolved, now or within the negative TTL.
+     */
+    static InetAddress resolve(String host) throws UnknownHostException {
+        InetAddress address = cached(host);
+        if (address != null) return address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            store(host, new Entry(null, e, NEGATIVE_TTL_SECONDS));
+            throw e;
+        }
+        store(host, new Entry(address, null, TTL_SECONDS));
+        return address;
+    }
+
+    /**
+     * Looks a host name up in the cache only, so event loops can skip the resolver thread on a hit.
+     *
+     * @param host The host name or literal address.
+     * @return The cached address, or null if the host is not cached or its entry has expired.
+     * @throws UnknownHostException If the host failed to resolve within the negative TTL.
+     */
+    static InetAddress cached(String host) throws UnknownHostException {
+        Entry entry = cache.get(host);
+        if (entry == null) return null;
+        if (entry.isExpired(System.currentTimeMillis())) {
+            cache.remove(host, entry);
+            return null;
+        }
+        if (entry.failure != null) throw new UnknownHostException(entry.failure.getMessage());
+        return entry.address;
+    }
+
+    /**
+     * Caches a lookup result, purging expired entries once the cache grows large.
+     */
+    private static void store(String host, Entry entry) {
+        if (entry.expiresAt <= System.currentTimeMillis()) return;
+        if (cache.size() >= PURGE_THRESHOLD) {
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(e -> e.isExpired(now));
+        }
+        cache.put(host, entry);
+    }
+
+    /**
+     * A cached lookup result: either an address or the failure.
+     */
+    private static final class Entry {
+        private final InetAddress address;
+        private final UnknownHostException failure;
+        private final long expiresAt;
+
+        Entry(InetAddress address, UnknownHostException failure, int ttlSeconds) {
+            this.address = address;
+            this.failure = failure;
+            this.expiresAt = System.currentTimeMillis() + ttlSeconds * 1000L;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+}
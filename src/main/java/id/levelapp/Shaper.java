@@ -0,0 +1,263 @@
+package id.levelapp;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shaper limits the bandwidth of CONNECT tunnels on the EntryPoint, where both the client and the target
+ * of a tunnel are known. Every direction of a tunnel is charged to three token buckets: one shared by all
+ * tunnels, one per client IP and one per target host, each limited to its own rate per direction.
+ * When one of them runs dry, the relay stops reading that direction until the bucket has refilled; on the
+ * ExitPoint side the stream's flow-control window then fills up, so a throttled tunnel no longer takes
+ * a share of the link.
+ * <p>
+ * Charging is a compare-and-set on the bucket's theoretical arrival time (GCRA), so there is nothing to
+ * lock and nothing to do until a bucket is actually exceeded. Bytes are charged after they were relayed,
+ * which lets a direction run into debt by at most one read. The first {@link Config.Settings#shapeInteractive} bytes a direction
+ * relays after a pause are charged but never held back, so small request/response exchanges keep their
+ * latency while bulk transfers share what is left. Limits are read from {@link Config#settings()} at every
+ * charge, so they can be changed at runtime; a tunnel opened while no rate was set stays unshaped.
+ */
+final class Shaper {
+    /** How far ahead of its rate a bucket may run: an idle bucket allows a burst of this much time's worth of bytes. */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** Buckets of clients and targets idle this long are dropped. */
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final int GLOBAL = 0;
+    private static final int CLIENT = 1;
+    private static final int TARGET = 2;
+
+    /** Shared buckets, upstream and downstream. */
+    private static final Bucket[] global = {new Bucket(GLOBAL), new Bucket(GLOBAL)};
+    private static final Map<String, Bucket[]> clients = new ConcurrentHashMap<>();
+    private static final Map<String, Bucket[]> targets = new ConcurrentHashMap<>();
+    private static final AtomicBoolean sweeping = new AtomicBoolean();
+    private static final Flow UNSHAPED = new Flow(null, null);
+
+    private Shaper() {}
+
+    /**
+     * @return True if any rate is set.
+     */
+    static boolean isEnabled() {
+        Config.Settings settings = Config.settings();
+        return settings.shapeGlobal > 0 || settings.shapeClient > 0 || settings.shapeTarget > 0;
+    }
+
+    /**
+     * Looks up the buckets of a new tunnel.
+     *
+     * @param client The client address, may be null.
+     * @param target The target host.
+     * @return The tunnel's flow; one that is never held back if no rate is set.
+     */
+    static Flow flow(InetAddress client, String target) {
+        if (!isEnabled()) return UNSHAPED;
+        if (sweeping.compareAndSet(false, true)) {
+            Threads.timers().scheduleWithFixedDelay(Shaper::sweep, 60, 60, TimeUnit.SECONDS);
+        }
+        Bucket[] byClient = clients.computeIfAbsent(client == null ? "" : client.getHostAddress(), key -> new Bucket[] {new Bucket(CLIENT), new Bucket(CLIENT)});
+        Bucket[] byTarget = targets.computeIfAbsent(target.toLowerCase(), key -> new Bucket[] {new Bucket(TARGET), new Bucket(TARGET)});
+        return new Flow(new Direction(global[0], byClient[0], byTarget[0]), new Direction(global[1], byClient[1], byTarget[1]));
+    }
+
+    /**
+     * Parses a rate such as "500000", "512k", "20M" or "1G" (bytes per second, powers of 1024).
+     *
+     * @param rate The rate as text.
+     * @return The rate in bytes per second.
+     * @throws NumberFormatException If the text is not a rate.
+     */
+    static long parseRate(String rate) {
+        String text = rate.trim();
+        long unit = 1;
+        switch (Character.toLowerCase(text.isEmpty() ? ' ' : text.charAt(text.length() - 1))) {
+            case 'k':
+                unit = 1L << 10;
+                break;
+            case 'm':
+                unit = 1L << 20;
+                break;
+            case 'g':
+                unit = 1L << 30;
+                break;
+            default:
+                return Long.parseLong(text);
+        }
+        return Long.parseLong(text.substring(0, text.length() - 1).trim()) * unit;
+    }
+
+    /**
+     * Changes limits at runtime through {@link Config#update(Map)}. Nothing is changed unless every parameter is valid.
+     *
+     * @param query Parameters such as "global=10m&amp;client=512k&amp;target=0&amp;interactive=16384".
+     * @throws IllegalArgumentException If a parameter is unknown or its value is not a rate, or on an ExitPoint.
+     */
+    static void configure(String query) {
+        if ("exit".equals(Config.ROLE)) throw new IllegalArgumentException("Shaping only applies to an EntryPoint.");
+        Map<String, String> changed = new TreeMap<>();
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty()) continue;
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            long value;
+            try {
+                value = parseRate(equals < 0 ? "" : parameter.substring(equals + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of " + name + ": bytes per second, optionally with a 'k', 'm' or 'g' suffix.");
+            }
+            if (value < 0) throw new IllegalArgumentException("Invalid value of " + name + ": must not be negative.");
+            switch (name) {
+                case "global":
+                    changed.put("shapeGlobal", Long.toString(value));
+                    break;
+                case "client":
+                    changed.put("shapeClient", Long.toString(value));
+                    break;
+                case "target":
+                    changed.put("shapeTarget", Long.toString(value));
+                    break;
+                case "interactive":
+                    if (value > Integer.MAX_VALUE) throw new IllegalArgumentException("Invalid value of interactive: too large.");
+                    changed.put("shapeInteractive", Long.toString(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter " + name + ": use 'global', 'client', 'target' or 'interactive'.");
+            }
+        }
+        Config.update(changed);
+        Config.Settings settings = Config.settings();
+        Log.info("shaping.update", "global", settings.shapeGlobal, "client", settings.shapeClient, "target", settings.shapeTarget,
+                "interactive", settings.shapeInteractive);
+    }
+
+    /**
+     * @return The current limits, e.g. "global=0 client=1048576 target=0 interactive=8192".
+     */
+    static String describe() {
+        Config.Settings settings = Config.settings();
+        return "global=" + settings.shapeGlobal + " client=" + settings.shapeClient + " target=" + settings.shapeTarget
+                + " interactive=" + settings.shapeInteractive;
+    }
+
+    /**
+     * Drops the buckets of clients and targets that have not been charged for a while.
+     */
+    private static void sweep() {
+        long now = System.nanoTime();
+        sweep(clients, now);
+        sweep(targets, now);
+    }
+
+    private static void sweep(Map<String, Bucket[]> buckets, long now) {
+        for (Iterator<Bucket[]> i = buckets.values().iterator(); i.hasNext(); ) {
+            Bucket[] pair = i.next();
+            if (pair[0].isIdle(now) && pair[1].isIdle(now)) i.remove();
+        }
+    }
+
+    /**
+     * Both directions of a tunnel.
+     */
+    static final class Flow {
+        /** Bytes from the client towards the target, null if unshaped. */
+        final Direction upstream;
+        /** Bytes from the target back to the client, null if unshaped. */
+        final Direction downstream;
+
+        Flow(Direction upstream, Direction downstream) {
+            this.upstream = upstream;
+            this.downstream = downstream;
+        }
+    }
+
+    /**
+     * One direction of a tunnel, charged to a global, a client and a target bucket.
+     * Only the thread relaying the direction charges it.
+     */
+    static final class Direction {
+        private final Bucket global;
+        private final Bucket client;
+        private final Bucket target;
+        private long lastCharge = System.nanoTime();
+        private long run;
+
+        Direction(Bucket global, Bucket client, Bucket target) {
+            this.global = global;
+            this.client = client;
+            this.target = target;
+        }
+
+        /**
+         * Charges relayed bytes to every bucket.
+         *
+         * @param bytes The number of bytes just relayed.
+         * @return How long to wait before relaying more, in nanoseconds, 0 to go on at once.
+         */
+        long charge(long bytes) {
+            if (bytes <= 0) return 0;
+            long now = System.nanoTime();
+            if (now - lastCharge > BURST_NANOS) run = 0; // a pause starts a new exchange
+            lastCharge = now;
+            run += bytes;
+            Config.Settings settings = Config.settings();
+            long wait = Math.max(global.charge(bytes, now, settings), Math.max(client.charge(bytes, now, settings), target.charge(bytes, now, settings)));
+            if (wait <= 0 || run <= settings.shapeInteractive) return 0;
+            Metrics.SHAPING_DELAY.add(wait);
+            return wait;
+        }
+
+        /**
+         * Charges relayed bytes and blocks the calling thread for as long as a bucket is exceeded.
+         *
+         * @param bytes The number of bytes just relayed.
+         */
+        void pace(long bytes) {
+            long wait = charge(bytes);
+            long deadline = System.nanoTime() + wait;
+            while (wait > 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(wait);
+                wait = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * A token bucket kept as the time at which it will be empty again (the theoretical arrival time of GCRA).
+     */
+    static final class Bucket {
+        private final int kind;
+        private final AtomicLong emptyAt = new AtomicLong(System.nanoTime());
+
+        Bucket(int kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * @param settings The settings holding the rate of the bucket.
+         * @return How far the bucket is beyond its burst after the charge, in nanoseconds; 0 or less if within.
+         */
+        long charge(long bytes, long now, Config.Settings settings) {
+            long rate = kind == GLOBAL ? settings.shapeGlobal : kind == CLIENT ? settings.shapeClient : settings.shapeTarget;
+            if (rate <= 0) return 0;
+            long cost = bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+            while (true) {
+                long current = emptyAt.get();
+                long next = Math.max(current, now) + cost;
+                if (emptyAt.compareAndSet(current, next)) return next - now - BURST_NANOS;
+            }
+        }
+
+        boolean isIdle(long now) {
+            return now - emptyAt.get() > IDLE_NANOS;
+        }
+    }
+}
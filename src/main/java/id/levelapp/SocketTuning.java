@@ -0,0 +1,165 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * SocketTuning holds the socket options of one hop of a tunnel: client to EntryPoint ({@link #CLIENT}),
+ * EntryPoint to ExitPoint ({@link #LINK}) and EntryPoint or ExitPoint to the target ({@link #TARGET}).
+ * Each profile is read from a system property such as
+ * <pre>
+ *   -Dwarpdrive.linkSocket=sndbuf=4m,rcvbuf=4m,nodelay=true,keepalive=true,linger=-1
+ * </pre>
+ * where sizes take a 'k' or 'm' suffix and options left out keep their defaults. Buffer sizes of 0 leave
+ * the choice to the operating system, which usually autotunes them; a large link receive buffer pays off
+ * on long fat links, where the default caps throughput at one window per round trip. A linger of 0 makes
+ * close reset the connection instead of waiting in TIME_WAIT, -1 keeps the normal close.
+ */
+final class SocketTuning {
+    /** Accepted client connections. */
+    static SocketTuning CLIENT = new SocketTuning(0, 0, true, true, -1);
+    /** Both ends of the Entry/Exit links, whose frames are small and latency-sensitive when interactive. */
+    static SocketTuning LINK = new SocketTuning(0, 0, true, true, -1);
+    /** Connections to targets. */
+    static SocketTuning TARGET = new SocketTuning(0, 0, true, true, -1);
+
+    /** SO_SNDBUF in bytes, 0 for the system default. */
+    final int sendBuffer;
+    /** SO_RCVBUF in bytes, 0 for the system default. */
+    final int receiveBuffer;
+    /** TCP_NODELAY: send small writes at once instead of waiting for outstanding ACKs. */
+    final boolean noDelay;
+    /** SO_KEEPALIVE: let the system probe idle connections and drop dead ones. */
+    final boolean keepAlive;
+    /** SO_LINGER in seconds, -1 to keep the normal close. */
+    final int linger;
+
+    /**
+     * Constructs a SocketTuning.
+     *
+     * @param sendBuffer    SO_SNDBUF in bytes, 0 for the system default.
+     * @param receiveBuffer SO_RCVBUF in bytes, 0 for the system default.
+     * @param noDelay       TCP_NODELAY.
+     * @param keepAlive     SO_KEEPALIVE.
+     * @param linger        SO_LINGER in seconds, -1 to keep the normal close.
+     */
+    SocketTuning(int sendBuffer, int receiveBuffer, boolean noDelay, boolean keepAlive, int linger) {
+        this.sendBuffer = sendBuffer;
+        this.receiveBuffer = receiveBuffer;
+        this.noDelay = noDelay;
+        this.keepAlive = keepAlive;
+        this.linger = linger;
+    }
+
+    /**
+     * Parses a profile, starting from the options of another one.
+     *
+     * @param spec     Comma-separated options, e.g. "sndbuf=256k,nodelay=false".
+     * @param defaults The profile to take options from that the spec leaves out.
+     * @return The profile.
+     * @throws IllegalArgumentException If an option is unknown or its value invalid.
+     */
+    static SocketTuning parse(String spec, SocketTuning defaults) {
+        int sendBuffer = defaults.sendBuffer;
+        int receiveBuffer = defaults.receiveBuffer;
+        boolean noDelay = defaults.noDelay;
+        boolean keepAlive = defaults.keepAlive;
+        int linger = defaults.linger;
+        for (String option : spec.split(",")) {
+            String text = option.trim();
+            if (text.isEmpty()) continue;
+            int equals = text.indexOf('=');
+            String name = (equals < 0 ? text : text.substring(0, equals)).trim().toLowerCase();
+            String value = equals < 0 ? "true" : text.substring(equals + 1).trim();
+            switch (name) {
+                case "sndbuf":
+                    sendBuffer = size(name, value);
+                    break;
+                case "rcvbuf":
+                    receiveBuffer = size(name, value);
+                    break;
+                case "nodelay":
+                    noDelay = flag(name, value);
+                    break;
+                case "keepalive":
+                    keepAlive = flag(name, value);
+                    break;
+                case "linger":
+                    try {
+                        linger = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid linger: " + value);
+                    }
+                    if (linger < -1) throw new IllegalArgumentException("Invalid linger: " + value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown socket option '" + name + "', use sndbuf, rcvbuf, nodelay, keepalive or linger.");
+            }
+        }
+        return new SocketTuning(sendBuffer, receiveBuffer, noDelay, keepAlive, linger);
+    }
+
+    private static int size(String name, String value) {
+        long bytes;
+        try {
+            bytes = Shaper.parseRate(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        if (bytes < 0 || bytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        return (int) bytes;
+    }
+
+    private static boolean flag(String name, String value) {
+        if ("true".equalsIgnoreCase(value)) return true;
+        if ("false".equalsIgnoreCase(value)) return false;
+        throw new IllegalArgumentException("Invalid " + name + ": " + value + ", use true or false.");
+    }
+
+    /**
+     * Sets the options on a socket before it connects. The receive buffer must be set this early to take
+     * part in the TCP window scale negotiation.
+     *
+     * @param channel The unconnected socket.
+     * @throws IOException If an option cannot be set.
+     */
+    void apply(SocketChannel channel) throws IOException {
+        if (sendBuffer > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+        if (receiveBuffer > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if (linger >= 0) channel.setOption(StandardSocketOptions.SO_LINGER, linger);
+    }
+
+    /**
+     * Sets the receive buffer on a listening socket before it binds, so the sockets it accepts negotiate
+     * their window scale with it. The other options are set per accepted socket with {@link #apply(SocketChannel)}.
+     *
+     * @param server The unbound listening socket.
+     * @throws IOException If the option cannot be set.
+     */
+    void applyToListener(NetworkChannel server) throws IOException {
+        if (receiveBuffer > 0) server.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+    }
+
+    /**
+     * Sets the options on a socket, logging instead of failing, for sockets that work without them.
+     *
+     * @param channel The socket.
+     * @param hop     The hop name for the log line.
+     */
+    void applyQuietly(SocketChannel channel, String hop) {
+        try {
+            apply(channel);
+        } catch (IOException e) {
+            Log.warn("socket.tuning_failed", "hop", hop, "error", e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "sndbuf=" + sendBuffer + ",rcvbuf=" + receiveBuffer + ",nodelay=" + noDelay + ",keepalive=" + keepAlive + ",linger=" + linger;
+    }
+}
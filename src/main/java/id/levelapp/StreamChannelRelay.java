@@ -0,0 +1,327 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * StreamChannelRelay copies bytes in both directions between a non-blocking channel and a {@link TunnelStream},
+ * entirely on one {@link EventLoop}. Reading from the channel pauses while the stream's send window is
+ * exhausted, and credit is only returned to the peer once its bytes have been written to the channel.
+ * A shaped relay also pauses reading, or writing and with it the credit, while its bandwidth limit is exceeded.
+ * Once established, the relay is closed after {@link Config.Settings#idleTimeoutSeconds} without bytes in either direction.
+ */
+final class StreamChannelRelay implements EventLoop.Handler, TunnelStream.Listener {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final boolean answerConnect;
+    private final ByteBuffer toStream = BufferPool.shared().acquire();
+    private final ArrayDeque<ByteBuffer> toChannel = new ArrayDeque<>();
+    private final LongAdder toStreamBytes;
+    private final LongAdder toChannelBytes;
+    private Shaper.Direction toStreamShaping;
+    private Shaper.Direction toChannelShaping;
+    private ByteBuffer answer;
+    private Runnable onClose;
+    private Runnable onUnanswered;
+    private TunnelStream stream;
+    private SelectionKey key;
+    private Watchdog.Watch idle;
+    private boolean established;
+    private boolean channelInputDone;
+    private boolean streamInputDone;
+    private boolean channelOutputDone;
+    private boolean streamOutputDone;
+    private boolean closeAfterFlush;
+    private boolean readThrottled;
+    private boolean writeThrottled;
+    private boolean closed;
+
+    /**
+     * Constructs a StreamChannelRelay.
+     *
+     * @param loop          The loop owning the channel.
+     * @param channel       The channel to relay.
+     * @param pending       Bytes already read from the channel that must be sent first, may be null.
+     * @param answerConnect True if the channel is a client waiting for the answer to its CONNECT request.
+     */
+    StreamChannelRelay(EventLoop loop, SocketChannel channel, ByteBuffer pending, boolean answerConnect) {
+        this.loop = loop;
+        this.channel = channel;
+        this.answerConnect = answerConnect;
+        // On the EntryPoint the channel is the client, on the ExitPoint it is the target.
+        this.toStreamBytes = answerConnect ? Metrics.UPSTREAM_BYTES : Metrics.DOWNSTREAM_BYTES;
+        this.toChannelBytes = answerConnect ? Metrics.DOWNSTREAM_BYTES : Metrics.UPSTREAM_BYTES;
+        if (pending != null) toStream.put(pending);
+    }
+
+    /**
+     * Starts relaying on an established stream. Must be called on the loop thread.
+     *
+     * @param stream The stream, already acknowledged.
+     */
+    void start(TunnelStream stream) {
+        this.stream = stream;
+        stream.setListener(this);
+        established();
+    }
+
+    /**
+     * Attaches a stream this side has opened; relaying starts once the peer acknowledges it.
+     * Must be called on the loop thread, right after the stream was opened with this relay as its listener.
+     *
+     * @param stream The stream waiting for acknowledgement.
+     */
+    void attach(TunnelStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Charges the bytes read from the client channel to the upstream direction of a flow, and those written
+     * to it to its downstream direction. Only for relays that answer a CONNECT; must be called before the relay starts.
+     *
+     * @param flow The tunnel's flow.
+     */
+    void shape(Shaper.Flow flow) {
+        toStreamShaping = flow.upstream;
+        toChannelShaping = flow.downstream;
+    }
+
+    /**
+     * Registers a task to run once the relay is closed. Must be called before the relay starts.
+     *
+     * @param onClose The task to run.
+     */
+    void onClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * Registers a task that opens a replacement stream, through {@link #attach(TunnelStream)}, when the link
+     * carrying the stream closes before the peer answered it. Without one, the client gets a 502.
+     * Must be called before the relay starts.
+     *
+     * @param onUnanswered The task to run on the loop thread.
+     */
+    void onUnanswered(Runnable onUnanswered) {
+        this.onUnanswered = onUnanswered;
+    }
+
+    @Override
+    public void onOpen() {
+        loop.execute(this::established);
+    }
+
+    @Override
+    public void onData(byte[] payload) {
+        loop.execute(() -> {
+            if (idle != null) idle.touch();
+            toChannel.add(ByteBuffer.wrap(payload));
+            flushToChannel();
+        });
+    }
+
+    @Override
+    public void onClose() {
+        loop.execute(() -> {
+            streamInputDone = true;
+            flushToChannel();
+        });
+    }
+
+    @Override
+    public void onReset(String reason) {
+        loop.execute(() -> {
+            if (!established && onUnanswered != null && !closed && stream != null && stream.isUnanswered()) {
+                onUnanswered.run();
+            } else if (!established && answerConnect) {
+                fail("HTTP/1.1 502 Bad Gateway\r\n\r\n" + reason);
+            } else {
+                close();
+            }
+        });
+    }
+
+    @Override
+    public void onWritable() {
+        loop.execute(this::flushToStream);
+    }
+
+    /**
+     * Answers the client if needed and starts reading from the channel.
+     */
+    private void established() {
+        if (closed || established) return;
+        established = true;
+        idle = Watchdog.idle(() -> loop.execute(this::close));
+        if (answerConnect) {
+            answer = ByteBuffer.wrap("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        try {
+            key = loop.register(channel, 0, this);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        flushToChannel();
+        flushToStream();
+    }
+
+    /**
+     * Tells the client why its tunnel could not be established, then closes the relay.
+     *
+     * @param response The HTTP response to send.
+     */
+    void fail(String response) {
+        if (closed) return;
+        toChannel.clear();
+        answer = ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8));
+        closeAfterFlush = true;
+        try {
+            key = loop.register(channel, 0, this);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        flushToChannel();
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            if (idle != null) idle.touch();
+            int read = channel.read(toStream);
+            if (read == -1) channelInputDone = true;
+            if (read > 0 && toStreamShaping != null) {
+                long delay = toStreamShaping.charge(read);
+                if (delay > 0) {
+                    readThrottled = true;
+                    loop.schedule(() -> {
+                        readThrottled = false;
+                        updateInterest();
+                    }, toMillis(delay));
+                }
+            }
+            flushToStream();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flushToChannel();
+        }
+    }
+
+    /**
+     * Sends buffered channel bytes to the stream as far as the send window allows.
+     */
+    private void flushToStream() {
+        if (closed || !established) return;
+        try {
+            toStream.flip();
+            while (toStream.hasRemaining()) {
+                int sent = stream.trySend(toStream);
+                if (sent == 0) break;
+                toStreamBytes.add(sent);
+            }
+            toStream.compact();
+            if (channelInputDone && toStream.position() == 0 && !streamOutputDone) {
+                streamOutputDone = true;
+                stream.closeOutput();
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        closeIfDoneOrUpdateInterest();
+    }
+
+    /**
+     * Writes the pending answer and the bytes received from the stream to the channel, and returns
+     * the credit for the stream bytes to the peer.
+     */
+    private void flushToChannel() {
+        if (closed || key == null || writeThrottled) return;
+        try {
+            if (answer != null) {
+                channel.write(answer);
+                if (answer.hasRemaining()) {
+                    updateInterest();
+                    return;
+                }
+                answer = null;
+            }
+            int written = 0;
+            while (!toChannel.isEmpty()) {
+                ByteBuffer head = toChannel.peek();
+                written += channel.write(head);
+                if (head.hasRemaining()) break;
+                toChannel.poll();
+            }
+            if (written > 0) toChannelBytes.add(written);
+            if (written > 0 && stream != null && established) stream.consumed(written);
+            if (written > 0 && toChannelShaping != null) {
+                long delay = toChannelShaping.charge(written);
+                if (delay > 0) {
+                    writeThrottled = true;
+                    loop.schedule(() -> {
+                        writeThrottled = false;
+                        flushToChannel();
+                    }, toMillis(delay));
+                }
+            }
+            if (toChannel.isEmpty() && closeAfterFlush) {
+                close();
+                return;
+            }
+            if (toChannel.isEmpty() && streamInputDone && !channelOutputDone) {
+                channelOutputDone = true;
+                channel.shutdownOutput();
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        closeIfDoneOrUpdateInterest();
+    }
+
+    /**
+     * Closes the relay once both directions are finished, otherwise refreshes the interest operations.
+     */
+    private void closeIfDoneOrUpdateInterest() {
+        if (channelInputDone && channelOutputDone && streamOutputDone) {
+            close();
+        } else {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Reads while there is room to buffer, and waits for writability while stream bytes are pending.
+     */
+    private void updateInterest() {
+        if (key == null || !key.isValid()) return;
+        int ops = 0;
+        if (established && !channelInputDone && !readThrottled && toStream.hasRemaining()) ops |= SelectionKey.OP_READ;
+        if (!writeThrottled && (answer != null || !toChannel.isEmpty())) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /**
+     * @return A delay in nanoseconds as timer milliseconds, rounded up.
+     */
+    private static long toMillis(long nanos) {
+        return (nanos + 999_999) / 1_000_000;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (idle != null) idle.cancel();
+        NioEngine.closeQuietly(channel);
+        BufferPool.shared().release(toStream);
+        if (stream != null && !(streamOutputDone && streamInputDone)) stream.reset("Relay closed");
+        if (onClose != null) onClose.run();
+    }
+}
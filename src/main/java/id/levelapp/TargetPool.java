@@ -0,0 +1,241 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * TargetPool keeps pre-connected sockets to recently used targets, so a tunnel can start without
+ * waiting for the TCP handshake. A tunnel consumes its socket for good, so the pool only holds fresh,
+ * never-used connections: every time one is taken, a background task tops the target up again.
+ * Idle sockets are closed after {@link #IDLE_TIMEOUT_SECONDS}, and a target that has not been used
+ * for that long is dropped from the pool entirely. The pool is disabled while {@link #MAX_IDLE_PER_TARGET} is 0.
+ * <p>
+ * Every connection to a target, pooled or not and in every engine, is checked by {@link #checkTarget}
+ * once its host is resolved, so clients cannot use the proxy to reach this host's own services.
+ */
+final class TargetPool {
+    /** Maximum number of warm sockets kept per "host:port", 0 to disable the pool. */
+    static int MAX_IDLE_PER_TARGET = 0;
+    /** How long a warm socket, or an unused target, is kept before it is evicted. */
+    static int IDLE_TIMEOUT_SECONDS = 30;
+    /** Allows targets on loopback and wildcard addresses, for benches and local testing. */
+    static boolean ALLOW_LOOPBACK = false;
+
+    private static final ConcurrentHashMap<String, Target> targets = new ConcurrentHashMap<>();
+    private static final AtomicBoolean evicting = new AtomicBoolean();
+    /** Ports this process listens on; a target at one of them on a local address would loop back into it. */
+    private static final Set<Integer> listeningPorts = ConcurrentHashMap.newKeySet();
+
+    private TargetPool() {}
+
+    /**
+     * Connects to a target, using a warm socket if one is available.
+     *
+     * @param host The target host.
+     * @param port The target port.
+     * @return A connected channel in blocking mode with TCP_NODELAY set.
+     * @throws IOException If the host cannot be resolved or the connection fails.
+     */
+    static SocketChannel connect(String host, int port) throws IOException {
+        long started = System.nanoTime();
+        SocketChannel channel = poll(host, port);
+        try {
+            if (channel != null) {
+                channel.configureBlocking(true);
+            } else {
+                channel = open(host, port);
+            }
+        } catch (IOException e) {
+            NioEngine.closeQuietly(channel);
+            Metrics.error("target_connect");
+            throw e;
+        }
+        Metrics.TARGET_CONNECT.record(System.nanoTime() - started);
+        return channel;
+    }
+
+    /**
+     * Takes a warm socket to a target without blocking, and schedules the target to be topped up.
+     *
+     * @param host The target host.
+     * @param port The target port.
+     * @return A connected channel in non-blocking mode, or null if none is available or the pool is disabled.
+     */
+    static SocketChannel poll(String host, int port) {
+        if (MAX_IDLE_PER_TARGET <= 0) return null;
+        Target target = targets.computeIfAbsent(host + ":" + port, key -> new Target(host, port));
+        if (evicting.compareAndSet(false, true)) {
+            long period = Math.max(1, IDLE_TIMEOUT_SECONDS / 2);
+            Threads.timers().scheduleWithFixedDelay(TargetPool::evict, period, period, TimeUnit.SECONDS);
+        }
+        target.lastUsed = System.currentTimeMillis();
+        SocketChannel channel = null;
+        Idle idle;
+        while ((idle = target.idle.poll()) != null) {
+            if (!idle.isExpired(System.currentTimeMillis()) && isAlive(idle.channel)) {
+                channel = idle.channel;
+                break;
+            }
+            NioEngine.closeQuietly(idle.channel);
+        }
+        target.refill();
+        return channel;
+    }
+
+    /**
+     * Opens a fresh blocking connection, resolving the host through the {@link Resolver} cache, and gives up
+     * after {@link Watchdog#CONNECT_TIMEOUT_MILLIS}.
+     */
+    private static SocketChannel open(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            SocketTuning.TARGET.apply(channel);
+            InetAddress address = Resolver.resolve(host);
+            checkTarget(address, port);
+            channel.socket().connect(new InetSocketAddress(address, port), Watchdog.CONNECT_TIMEOUT_MILLIS);
+            return channel;
+        } catch (IOException e) {
+            NioEngine.closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Records a port this process listens on, such as the proxy or metrics port, so it is never a target.
+     *
+     * @param port The listening port.
+     */
+    static void listening(int port) {
+        listeningPorts.add(port);
+    }
+
+    /**
+     * Refuses a target that would reach this host instead of a remote server: any port on a loopback or wildcard
+     * address unless {@link #ALLOW_LOOPBACK} is set, and the ports this process listens on at any of its addresses.
+     *
+     * @param address The resolved target address.
+     * @param port    The target port.
+     * @throws ConnectException If the target is refused.
+     */
+    static void checkTarget(InetAddress address, int port) throws ConnectException {
+        boolean loopback = address.isLoopbackAddress() || address.isAnyLocalAddress();
+        if (listeningPorts.contains(port) && (loopback || isLocal(address))) {
+            throw new ConnectException("Target " + address.getHostAddress() + ":" + port + " is this proxy");
+        }
+        if (loopback && !ALLOW_LOOPBACK) {
+            throw new ConnectException("Target " + address.getHostAddress() + " is a loopback address");
+        }
+    }
+
+    /**
+     * @return True if the address belongs to one of this host's network interfaces.
+     */
+    private static boolean isLocal(InetAddress address) {
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks without blocking that the peer has neither closed a warm socket nor sent anything on it.
+     * A server that speaks first (SSH, SMTP) fails this check, since its greeting cannot be handed on;
+     * those targets simply fall back to fresh connections. Leaves the channel in non-blocking mode.
+     */
+    static boolean isAlive(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            return channel.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes expired warm sockets, forgets targets that have not been used within the idle timeout,
+     * and tops up the remaining ones.
+     */
+    private static void evict() {
+        long now = System.currentTimeMillis();
+        for (Target target : targets.values()) {
+            target.idle.removeIf(idle -> {
+                if (!idle.isExpired(now)) return false;
+                NioEngine.closeQuietly(idle.channel);
+                return true;
+            });
+            if (now - target.lastUsed > IDLE_TIMEOUT_SECONDS * 1000L) {
+                targets.remove(target.key, target);
+                Idle idle;
+                while ((idle = target.idle.poll()) != null) {
+                    NioEngine.closeQuietly(idle.channel);
+                }
+            } else {
+                target.refill();
+            }
+        }
+    }
+
+    /**
+     * The warm sockets of one "host:port".
+     */
+    private static final class Target {
+        private final String key;
+        private final String host;
+        private final int port;
+        private final ConcurrentLinkedQueue<Idle> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private volatile long lastUsed;
+
+        Target(String host, int port) {
+            this.key = host + ":" + port;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Connects warm sockets in the background until the target holds {@link #MAX_IDLE_PER_TARGET}.
+         * Only one refill runs per target, and it stops at the first failed connection. Refills run on the shared
+         * executor rather than the timer threads, since each connect may block for {@link Watchdog#CONNECT_TIMEOUT_MILLIS}.
+         */
+        void refill() {
+            if (idle.size() >= MAX_IDLE_PER_TARGET || !refilling.compareAndSet(false, true)) return;
+            try {
+                Threads.start(() -> {
+                    try {
+                        while (idle.size() < MAX_IDLE_PER_TARGET && targets.get(key) == this) {
+                            idle.add(new Idle(open(host, port)));
+                        }
+                    } catch (IOException e) {
+                        Log.warn("pool.preconnect_failed", "target", key, "error", e.getMessage());
+                    } finally {
+                        refilling.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refilling.set(false); // shutting down
+            }
+        }
+    }
+
+    /**
+     * A warm socket and the time it was connected.
+     */
+    private static final class Idle {
+        private final SocketChannel channel;
+        private final long since = System.currentTimeMillis();
+
+        Idle(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isExpired(long now) {
+            return now - since > IDLE_TIMEOUT_SECONDS * 1000L;
+        }
+    }
+}
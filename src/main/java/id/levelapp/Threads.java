@@ -0,0 +1,133 @@
+package id.levelapp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Threads runs the per-connection work of the thread-based engines on one shared executor.
+ * By default the executor reuses pooled platform threads; the "virtual" engine switches it to
+ * one virtual thread per task, so an idle tunnel costs a few kilobytes of heap instead of a thread stack.
+ */
+final class Threads {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final CountDownLatch stopped = new CountDownLatch(1);
+    private static ScheduledExecutorService timers;
+    private static ScheduledExecutorService housekeeping;
+    private static volatile ExecutorService executor = Executors.newCachedThreadPool(
+            task -> new Thread(task, "warpdrive-" + threadCount.incrementAndGet()));
+
+    private Threads() {}
+
+    /**
+     * Switches the shared executor to virtual threads. Virtual threads require Java 21 or later;
+     * the executor is looked up reflectively so the application still runs on older runtimes.
+     *
+     * @return True if virtual threads are now in use, false if the runtime does not support them.
+     */
+    static boolean useVirtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService previous = executor;
+            executor = (ExecutorService) factory.invoke(null);
+            previous.shutdown();
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs a task on the shared executor.
+     *
+     * @param task The task to run.
+     * @return A future completing when the task has finished.
+     */
+    static Future<?> start(Runnable task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * @return The daemon threads running the application's short timers, such as the {@link Watchdog} tick,
+     *         evicting idle connections and closing rejected clients, started on first use. Tasks on it must
+     *         never block: with only two threads, a task stuck on the network would hold up every timer.
+     */
+    static synchronized ScheduledExecutorService timers() {
+        if (timers == null) timers = Executors.newScheduledThreadPool(2, daemon("warpdrive-timer"));
+        return timers;
+    }
+
+    /**
+     * @return The daemon thread running periodic housekeeping that may take a while, such as reloading the
+     *         config file and scaling the ExitPoint links, started on first use. Kept apart from {@link #timers()}
+     *         so a slow file system or a long reload never delays a timeout.
+     */
+    static synchronized ScheduledExecutorService housekeeping() {
+        if (housekeeping == null) housekeeping = Executors.newSingleThreadScheduledExecutor(daemon("warpdrive-housekeeping"));
+        return housekeeping;
+    }
+
+    /**
+     * @return A factory of daemon threads with the given name.
+     */
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Blocks the calling thread until {@link #shutdown(long)} is called. Virtual threads never keep
+     * the JVM alive on their own, so the main thread parks here instead of returning.
+     */
+    static void awaitShutdown() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until a condition holds, checking it every 100 milliseconds.
+     *
+     * @param condition     The condition, e.g. that no tunnels are left.
+     * @param timeoutMillis The maximum time to wait.
+     * @return True if the condition held in time.
+     */
+    static boolean await(BooleanSupplier condition, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!condition.getAsBoolean()) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            try {
+                Thread.sleep(Math.min(100, TimeUnit.NANOSECONDS.toMillis(left) + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return condition.getAsBoolean();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the shared executor, giving running tasks up to the timeout to finish before they are interrupted.
+     *
+     * @param timeoutMillis The maximum time to wait for running tasks.
+     * @return True if every task finished in time.
+     */
+    static boolean shutdown(long timeoutMillis) {
+        stopped.countDown();
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return false;
+    }
+}
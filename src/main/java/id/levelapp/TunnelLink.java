@@ -0,0 +1,769 @@
+package id.levelapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TunnelLink multiplexes many tunnel streams over a single persistent Entry/Exit socket.
+ * <p>
+ * Every message on the wire is a frame with a fixed 10 byte header followed by its payload:
+ * <pre>
+ *   type (1) | flags (1) | stream id (4) | payload length (4) | payload
+ * </pre>
+ * The EntryPoint opens streams with an {@link #OPEN} frame carrying the target "host:port";
+ * the ExitPoint answers with an {@link #OPEN} frame of its own once the target is connected,
+ * or a {@link #RST} frame carrying the failure reason. Data flows in {@link #DATA} frames,
+ * each side half-closes with {@link #CLOSE} and aborts with {@link #RST}. The receiver grants
+ * send credit to the peer with {@link #WINDOW} frames, so a slow stream never blocks the link.
+ * A large send is cut into several DATA frames that still go out with one gathering write.
+ * <p>
+ * An ExitPoint with compression enabled sends a {@link #SETTINGS} frame proposing "deflate" right after the
+ * preface, and the EntryPoint answers with "deflate" or "none". Once agreed, DATA frames may be deflated,
+ * marked with {@link #FLAG_DEFLATE}, see {@link Compression}.
+ * <p>
+ * A side that is draining sends {@link #GOAWAY}: it opens or accepts no new streams on the link, and the peer
+ * closes the link as soon as the streams still on it are finished. An ExitPoint that receives it connects a
+ * replacement link, so the streams in flight end normally while new ones already take the new link.
+ * <p>
+ * Both sides send a {@link #PING} on stream 0 every {@link #HEARTBEAT_INTERVAL_MILLIS}, which the peer echoes
+ * as a {@link #PONG}, giving the round-trip time of the link. Any frame counts as a sign of life: a link that
+ * stays silent for two intervals gets no new streams, and one silent for {@link #HEARTBEAT_TIMEOUT_MILLIS}
+ * is closed, without waiting for TCP to notice that the peer is gone.
+ */
+final class TunnelLink implements Runnable {
+    /** Opens a stream (Entry to Exit) or acknowledges an opened stream (Exit to Entry). */
+    static final byte OPEN = 1;
+    /** Carries stream payload. */
+    static final byte DATA = 2;
+    /** Half-closes a stream: the sender will not send any more data. */
+    static final byte CLOSE = 3;
+    /** Aborts a stream in both directions. */
+    static final byte RST = 4;
+    /** Grants the peer additional send credit for a stream. */
+    static final byte WINDOW = 5;
+    /** Asks the peer to echo the 8 byte payload in a {@link #PONG}. */
+    static final byte PING = 6;
+    /** Answers a {@link #PING}. */
+    static final byte PONG = 7;
+    /** Proposes (ExitPoint) or answers (EntryPoint) link options: "deflate" or "none". */
+    static final byte SETTINGS = 8;
+    /** Announces that the sender is draining: no new streams on this link, close it once its streams are done. */
+    static final byte GOAWAY = 9;
+
+    /** Flag of a DATA frame whose payload is deflated. */
+    static final byte FLAG_DEFLATE = 1;
+
+    /** How often each side pings the other, 0 to disable heartbeats. */
+    static long HEARTBEAT_INTERVAL_MILLIS = 2000;
+    /** How long a link may stay silent before it is closed. */
+    static long HEARTBEAT_TIMEOUT_MILLIS = 6000;
+
+    /** Size of the frame header in bytes. */
+    static final int HEADER_SIZE = 10;
+    /** Largest payload a single frame may carry. */
+    static final int MAX_FRAME_SIZE = 16384;
+    /** Most stream payload sent with one write, cut into frames of {@link #MAX_FRAME_SIZE}. */
+    static final int MAX_WRITE_SIZE = 16 * MAX_FRAME_SIZE;
+    /** Number of bytes each side may send on a stream before waiting for a window update. */
+    static final int INITIAL_WINDOW = 262144;
+
+    /** Consecutive unanswered OPENs after which the link is suspended from receiving new streams. */
+    static final int MAX_OPEN_FAILURES = 3;
+    /** How long a link is suspended before it is offered new streams again. */
+    static final long SUSPEND_MILLIS = 5000;
+
+    /** Sent by both sides right after connecting, to reject peers speaking another protocol. */
+    private static final byte[] PREFACE = "WARPDRIVE/1\n".getBytes(StandardCharsets.US_ASCII);
+    private static ScheduledExecutorService heartbeats;
+
+    /**
+     * Receives streams opened by the peer.
+     */
+    interface StreamAcceptor {
+        /**
+         * Called on the link's reader thread when the peer opens a new stream. Implementations
+         * must hand the stream off to another thread and return promptly.
+         *
+         * @param stream The newly opened stream.
+         * @param target The target server address in the format "host:port".
+         */
+        void accept(TunnelStream stream, String target);
+    }
+
+    private final SocketChannel channel;
+    private final DataInputStream input;
+    private final StreamAcceptor acceptor;
+    private final String name;
+    /** Serializes frame writes; a ReentrantLock so blocked virtual threads do not pin their carrier. */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /** Headers of the frames being written, guarded by the write lock. */
+    private final ByteBuffer[] headers = new ByteBuffer[MAX_WRITE_SIZE / MAX_FRAME_SIZE];
+    /** Headers and payloads of the gathering write in progress, guarded by the write lock. */
+    private final ByteBuffer[] frames = new ByteBuffer[2 * headers.length];
+    /** Encoded control frames waiting to be written, in the order they were sent; see {@link #writeLater}. */
+    private final ConcurrentLinkedQueue<ByteBuffer> controlFrames = new ConcurrentLinkedQueue<>();
+    /** True while a sender task is scheduled to write the queued control frames. */
+    private final AtomicBoolean controlSending = new AtomicBoolean();
+    private final ConcurrentHashMap<Integer, TunnelStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    private final AtomicInteger openFailures = new AtomicInteger();
+    /** Moving average of the PING round-trip time in nanoseconds, 0 before the first PONG. */
+    private final AtomicLong roundTrip = new AtomicLong();
+    private final AtomicBoolean pinging = new AtomicBoolean();
+    private volatile long lastReceived = System.nanoTime();
+    private volatile ScheduledFuture<?> heartbeat;
+    /** Counts the tunnels the balancer gives this link, set while the link is part of an {@link ExitBalancer}. */
+    volatile LongAdder selections;
+    /** Share of new tunnels relative to the other links, set by the {@link ExitBalancer}; 0 gives it none while others are left. */
+    volatile int weight = 1;
+    private volatile long suspendedUntil;
+    /** Deflates the DATA frames sent, once compression is agreed; guarded by the write lock. */
+    private volatile Compression.Deflating deflating;
+    /** Inflates deflated DATA frames received, created by the reader thread on the first one. */
+    private Compression.Inflating inflating;
+    /** True on the side that proposed compression, waiting for or having received the answer. */
+    private boolean proposed;
+    /** Runs on the reader thread when the peer sends {@link #GOAWAY}. */
+    private volatile Runnable goAwayListener;
+    /** True once the peer sent {@link #GOAWAY}. */
+    private volatile boolean goingAway;
+    /** True once this side sent {@link #GOAWAY}. */
+    private volatile boolean goAwaySent;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a TunnelLink over an already connected, blocking socket channel.
+     * Frames are written with a gathering write of header and payload, so payloads in direct
+     * buffers go to the socket without being copied through the heap.
+     *
+     * @param channel  The channel connecting the EntryPoint and the ExitPoint.
+     * @param acceptor Receives streams opened by the peer, or null if this side only opens streams.
+     * @throws IOException If the socket input stream cannot be obtained.
+     */
+    TunnelLink(SocketChannel channel, StreamAcceptor acceptor) throws IOException {
+        this.channel = channel;
+        this.input = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(), HEADER_SIZE + MAX_FRAME_SIZE));
+        this.acceptor = acceptor;
+        this.name = String.valueOf(channel.socket().getRemoteSocketAddress());
+        ByteBuffer block = ByteBuffer.allocateDirect(headers.length * HEADER_SIZE);
+        for (int i = 0; i < headers.length; i++) {
+            block.limit((i + 1) * HEADER_SIZE);
+            block.position(i * HEADER_SIZE);
+            headers[i] = block.slice();
+        }
+    }
+
+    /**
+     * Exchanges the protocol preface with the peer and starts the heartbeat. Must be called before {@link #run()}.
+     *
+     * @throws IOException If the peer does not speak the tunnel protocol.
+     */
+    void handshake() throws IOException {
+        writeLock.lock();
+        try {
+            ByteBuffer preface = ByteBuffer.wrap(PREFACE);
+            while (preface.hasRemaining()) {
+                channel.write(preface);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        byte[] peerPreface = new byte[PREFACE.length];
+        input.readFully(peerPreface);
+        if (!Arrays.equals(PREFACE, peerPreface)) {
+            close();
+            throw new IOException("Peer does not speak the tunnel protocol");
+        }
+        lastReceived = System.nanoTime();
+        if (HEARTBEAT_INTERVAL_MILLIS > 0) {
+            heartbeat = heartbeats().scheduleWithFixedDelay(this::checkHeartbeat,
+                    HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (closed) heartbeat.cancel(false);
+        }
+    }
+
+    /**
+     * Proposes compression to the peer and waits for its answer. Called by the ExitPoint after
+     * {@link #handshake()} when {@link Compression#LEVEL} is above 0; frames arriving before the answer
+     * are handled as usual.
+     *
+     * @return True if the peer agreed, so DATA frames sent from now on may be deflated.
+     * @throws IOException If the link fails, e.g. because the peer does not know SETTINGS frames.
+     */
+    boolean negotiateCompression() throws IOException {
+        proposed = true;
+        byte[] payload = "deflate".getBytes(StandardCharsets.US_ASCII);
+        writeFrame(SETTINGS, 0, payload, 0, payload.length);
+        try {
+            while (readFrame() != SETTINGS) {
+                // streams and pings are served while waiting
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        return deflating != null;
+    }
+
+    /**
+     * @return True if DATA frames sent on this link may be deflated.
+     */
+    boolean isCompressing() {
+        return deflating != null;
+    }
+
+    /**
+     * Opens a new stream to the given target and waits for the peer to acknowledge it.
+     *
+     * @param target The target server address in the format "host:port".
+     * @return The established stream.
+     * @throws IOException If the link is closed or the peer rejects the stream.
+     */
+    TunnelStream openStream(String target) throws IOException {
+        TunnelStream stream = openStream(target, null);
+        stream.awaitOpen();
+        return stream;
+    }
+
+    /**
+     * Opens a new stream to the given target without waiting for the peer to acknowledge it.
+     *
+     * @param target   The target server address in the format "host:port".
+     * @param listener Receives the acknowledgement and all further stream events, or null to use blocking streams.
+     * @return The stream, not yet acknowledged by the peer.
+     * @throws IOException If the link is closed.
+     */
+    TunnelStream openStream(String target, TunnelStream.Listener listener) throws IOException {
+        if (isGoingAway()) throw new IOException("Link is going away");
+        int streamId = nextStreamId.incrementAndGet();
+        TunnelStream stream = new TunnelStream(this, streamId, false);
+        if (listener != null) stream.setListener(listener);
+        streams.put(streamId, stream);
+        if (closed) {
+            streams.remove(streamId);
+            throw new IOException("Link is closed");
+        }
+        byte[] payload = target.getBytes(StandardCharsets.UTF_8);
+        writeFrame(OPEN, streamId, payload, 0, payload.length);
+        return stream;
+    }
+
+    /**
+     * Reads frames from the peer and dispatches them to their streams until the link closes.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                readFrame();
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            if (!closed) {
+                Metrics.error("link_error");
+                Log.warn("link.error", "link", getName(), "error", e.getMessage());
+            }
+        } finally {
+            close();
+            if (inflating != null) inflating.end();
+        }
+    }
+
+    /**
+     * Reads one frame, inflating its payload if it is deflated, and dispatches it.
+     *
+     * @return The frame type.
+     * @throws IOException If the link fails or the frame is invalid.
+     */
+    private byte readFrame() throws IOException {
+        byte type = input.readByte();
+        byte flags = input.readByte();
+        int streamId = input.readInt();
+        int length = input.readInt();
+        boolean deflated = type == DATA && (flags & FLAG_DEFLATE) != 0;
+        if (length < 0 || length > (deflated ? MAX_FRAME_SIZE + Compression.MAX_EXPANSION : MAX_FRAME_SIZE)) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        lastReceived = System.nanoTime();
+        if (type == DATA) Metrics.LINK_WIRE_BYTES_RECEIVED.add(length);
+        if (deflated) {
+            if (inflating == null) inflating = new Compression.Inflating();
+            payload = inflating.inflate(payload);
+        }
+        dispatch(type, streamId, payload);
+        return type;
+    }
+
+    /**
+     * Handles a single frame received from the peer.
+     *
+     * @param type     The frame type.
+     * @param streamId The stream the frame belongs to.
+     * @param payload  The frame payload.
+     * @throws IOException If the frame type is unknown.
+     */
+    private void dispatch(byte type, int streamId, byte[] payload) throws IOException {
+        TunnelStream stream = streams.get(streamId);
+        switch (type) {
+            case OPEN:
+                if (stream != null) {
+                    recordOpenLatency(System.nanoTime() - stream.getCreatedNanos());
+                    stream.onOpened();
+                } else if (acceptor != null) {
+                    stream = new TunnelStream(this, streamId, true);
+                    streams.put(streamId, stream);
+                    acceptor.accept(stream, new String(payload, StandardCharsets.UTF_8));
+                } else {
+                    sendReset(streamId, "Unexpected stream");
+                }
+                break;
+            case DATA:
+                Metrics.LINK_BYTES_RECEIVED.add(payload.length);
+                if (stream != null) stream.onData(payload);
+                break;
+            case CLOSE:
+                if (stream != null) stream.onRemoteClose();
+                break;
+            case RST:
+                if (stream != null) {
+                    if (!stream.isOpened()) {
+                        openFailures.set(0); // the peer answered, only the target failed
+                        Metrics.error("open_rejected");
+                    }
+                    stream.onReset(new String(payload, StandardCharsets.UTF_8));
+                }
+                break;
+            case WINDOW:
+                if (stream != null && payload.length == 4) {
+                    stream.onWindowUpdate(((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16)
+                            | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF));
+                }
+                break;
+            case PING:
+                writeLater(PONG, 0, payload);
+                break;
+            case PONG:
+                if (payload.length == 8) recordRoundTrip(System.nanoTime() - ByteBuffer.wrap(payload).getLong());
+                pinging.set(false);
+                break;
+            case GOAWAY:
+                goingAway = true;
+                Log.info("link.goaway", "link", getName(), "streams", streams.size());
+                Runnable listener = goAwayListener;
+                if (listener != null) listener.run();
+                if (streams.isEmpty()) close();
+                break;
+            case SETTINGS:
+                boolean deflate = "deflate".equals(new String(payload, StandardCharsets.US_ASCII));
+                if (proposed) {
+                    if (deflate) deflating = new Compression.Deflating();
+                } else {
+                    boolean agreed = deflate && Compression.LEVEL > 0;
+                    if (agreed) deflating = new Compression.Deflating();
+                    byte[] answer = (agreed ? "deflate" : "none").getBytes(StandardCharsets.US_ASCII);
+                    writeLater(SETTINGS, 0, answer);
+                }
+                Log.info("link.compression", "link", getName(), "deflate", deflating != null);
+                break;
+            default:
+                throw new IOException("Unknown frame type: " + type);
+        }
+    }
+
+    /**
+     * Writes a single frame to the peer.
+     *
+     * @param type     The frame type.
+     * @param streamId The stream the frame belongs to.
+     * @param payload  The buffer holding the payload.
+     * @param offset   The start of the payload in the buffer.
+     * @param length   The payload length.
+     * @throws IOException If the link is closed or the write fails.
+     */
+    void writeFrame(byte type, int streamId, byte[] payload, int offset, int length) throws IOException {
+        writeFrame(type, streamId, ByteBuffer.wrap(payload, offset, length));
+    }
+
+    /**
+     * Writes a single frame to the peer, consuming the remaining bytes of the payload buffer.
+     *
+     * @param type     The frame type.
+     * @param streamId The stream the frame belongs to.
+     * @param payload  The payload, at most {@link #MAX_FRAME_SIZE} bytes.
+     * @throws IOException If the link is closed or the write fails.
+     */
+    void writeFrame(byte type, int streamId, ByteBuffer payload) throws IOException {
+        if (closed) throw new IOException("Link is closed");
+        writeLock.lock();
+        try {
+            writeControlFrames();
+            int count = addFrame(0, type, (byte) 0, streamId, payload);
+            writeFrames(count);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            Arrays.fill(frames, null);
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends stream payload as DATA frames of at most {@link #MAX_FRAME_SIZE} bytes, written together with one
+     * gathering write, so a large send costs one system call rather than one per frame. Frames are deflated
+     * if the link compresses and the stream's probe finds it worthwhile.
+     *
+     * @param streamId The stream the payload belongs to.
+     * @param source   The payload; its position advances past the bytes sent.
+     * @param length   The number of bytes to send, at most {@link #MAX_WRITE_SIZE}.
+     * @param probe    Decides whether the stream's frames are deflated.
+     * @throws IOException If the link is closed or the write fails.
+     */
+    void writeData(int streamId, ByteBuffer source, int length, Compression.Probe probe) throws IOException {
+        if (closed) throw new IOException("Link is closed");
+        int limit = source.limit();
+        int end = source.position() + length;
+        writeLock.lock();
+        try {
+            if (closed) throw new IOException("Link is closed");
+            writeControlFrames();
+            Compression.Deflating deflating = this.deflating;
+            Metrics.LINK_BYTES_SENT.add(length);
+            int count = 0;
+            for (int start = source.position(); start < end; start += MAX_FRAME_SIZE) {
+                ByteBuffer payload = count == 0 ? source : source.duplicate();
+                payload.limit(Math.min(end, start + MAX_FRAME_SIZE));
+                payload.position(start);
+                byte flags = 0;
+                if (deflating != null && probe.shouldDeflate(payload)) {
+                    int original = payload.remaining();
+                    payload = deflating.deflate(payload, count / 2);
+                    probe.record(original, payload.remaining());
+                    flags = FLAG_DEFLATE;
+                }
+                Metrics.LINK_WIRE_BYTES_SENT.add(payload.remaining());
+                count = addFrame(count, DATA, flags, streamId, payload);
+            }
+            writeFrames(count);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            Arrays.fill(frames, null);
+            writeLock.unlock();
+            source.limit(limit);
+            source.position(end);
+        }
+    }
+
+    /**
+     * Adds a frame to the gathering write in progress. Must hold the write lock.
+     *
+     * @return The number of buffers of the write so far.
+     */
+    private int addFrame(int count, byte type, byte flags, int streamId, ByteBuffer payload) {
+        ByteBuffer header = headers[count / 2];
+        header.clear();
+        header.put(type).put(flags).putInt(streamId).putInt(payload.remaining());
+        header.flip();
+        frames[count] = header;
+        frames[count + 1] = payload;
+        return count + 2;
+    }
+
+    /**
+     * Writes the frames added so far. Must hold the write lock.
+     */
+    private void writeFrames(int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            channel.write(frames, offset, count - offset);
+            while (offset < count && !frames[offset].hasRemaining()) offset++;
+        }
+    }
+
+    /**
+     * Grants the peer additional send credit for a stream.
+     *
+     * @param streamId  The stream to grant credit for.
+     * @param increment The number of bytes the peer may additionally send.
+     * @throws IOException If the frame cannot be written.
+     */
+    void sendWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = {(byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8), (byte) increment};
+        writeFrame(WINDOW, streamId, payload, 0, payload.length);
+    }
+
+    /**
+     * Aborts a stream on the peer. The RST is written with {@link #writeLater}, since streams are also reset on
+     * the reader thread, e.g. when the acceptor turns a stream down.
+     *
+     * @param streamId The stream to abort.
+     * @param reason   A short description of why the stream was aborted.
+     */
+    void sendReset(int streamId, String reason) {
+        writeLater(RST, streamId, reason.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues a control frame, for frames sent from the reader thread. The reader must never wait for the write
+     * lock: a writer holding it can be stuck on a full socket until the peer reads, while the peer's reader waits
+     * for its own write lock in turn, and neither link would move until the heartbeat closed it. Queued frames
+     * are written in order by whichever writer next holds the lock, or else by one sender task per link.
+     *
+     * @param type     The frame type.
+     * @param streamId The stream the frame belongs to.
+     * @param payload  The payload.
+     */
+    private void writeLater(byte type, int streamId, byte[] payload) {
+        if (closed) return;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.put(type).put((byte) 0).putInt(streamId).putInt(payload.length).put(payload);
+        frame.flip();
+        controlFrames.add(frame);
+        scheduleControlSender();
+    }
+
+    /**
+     * Starts the sender task unless one is scheduled already.
+     */
+    private void scheduleControlSender() {
+        if (!controlSending.compareAndSet(false, true)) return;
+        try {
+            Threads.start(this::sendControlFrames);
+        } catch (RejectedExecutionException e) {
+            controlSending.set(false);
+            Log.debug("link.control_dropped", "link", getName(), "error", "shutting down");
+        }
+    }
+
+    /**
+     * Writes the queued control frames until none are left. Runs as the sender task.
+     */
+    private void sendControlFrames() {
+        do {
+            writeLock.lock();
+            try {
+                if (!closed) writeControlFrames();
+            } catch (IOException e) {
+                Log.debug("link.control_failed", "link", getName(), "error", e.getMessage());
+                close();
+            } finally {
+                writeLock.unlock();
+            }
+            controlSending.set(false);
+        } while (!closed && !controlFrames.isEmpty() && controlSending.compareAndSet(false, true));
+    }
+
+    /**
+     * Writes the queued control frames ahead of the caller's own. Must hold the write lock.
+     */
+    private void writeControlFrames() throws IOException {
+        ByteBuffer frame;
+        while ((frame = controlFrames.peek()) != null) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            controlFrames.poll();
+        }
+    }
+
+    /**
+     * Forgets a stream once both of its directions are finished.
+     *
+     * @param streamId The stream to forget.
+     */
+    void removeStream(int streamId) {
+        streams.remove(streamId);
+        if (goingAway && streams.isEmpty()) close();
+    }
+
+    /**
+     * Tells the peer with a {@link #GOAWAY} that this side is draining: it opens or accepts no new streams on the
+     * link, and the peer closes it once the streams on it are finished. Does nothing if already sent.
+     */
+    void goAway() {
+        if (goAwaySent || closed) return;
+        goAwaySent = true;
+        try {
+            writeFrame(GOAWAY, 0, new byte[0], 0, 0);
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * @param listener Runs on the reader thread when the peer sends {@link #GOAWAY}, before the link closes.
+     */
+    void onGoAway(Runnable listener) {
+        this.goAwayListener = listener;
+    }
+
+    /**
+     * @return True if either side sent {@link #GOAWAY}, so the link takes no new streams.
+     */
+    boolean isGoingAway() {
+        return goingAway || goAwaySent;
+    }
+
+    /**
+     * @return The number of streams currently open on this link.
+     */
+    int getActiveStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Runs on the heartbeat timer: closes the link if the peer has been silent for too long,
+     * otherwise sends a PING unless the previous one is still unanswered. The PING is written on the
+     * shared executor, so a link whose socket buffer is full cannot hold up the heartbeats of the others.
+     */
+    private void checkHeartbeat() {
+        if (closed) return;
+        long silence = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceived);
+        if (silence >= HEARTBEAT_TIMEOUT_MILLIS) {
+            Log.warn("link.silent", "link", getName(), "silentMillis", silence);
+            Metrics.error("heartbeat_timeout");
+            close();
+            return;
+        }
+        if (!pinging.compareAndSet(false, true)) return;
+        Threads.start(() -> {
+            ByteBuffer payload = ByteBuffer.allocate(8);
+            payload.putLong(0, System.nanoTime());
+            try {
+                writeFrame(PING, 0, payload);
+            } catch (IOException e) {
+                pinging.set(false);
+            }
+        });
+    }
+
+    /**
+     * @return The daemon thread timing the heartbeats of every link, started on first use.
+     */
+    private static synchronized ScheduledExecutorService heartbeats() {
+        if (heartbeats == null) {
+            heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "warpdrive-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return heartbeats;
+    }
+
+    /**
+     * Folds a PING round-trip time into the moving average, with a weight of 1/8 for the new sample.
+     *
+     * @param nanos The time between sending the PING and receiving the PONG.
+     */
+    void recordRoundTrip(long nanos) {
+        Metrics.LINK_RTT.record(nanos);
+        roundTrip.accumulateAndGet(Math.max(1, nanos), (average, sample) -> average == 0 ? sample : average + (sample - average) / 8);
+    }
+
+    /**
+     * @return The moving average of the PING round-trip time in nanoseconds, 0 if no PONG has arrived yet.
+     */
+    long getRoundTrip() {
+        return roundTrip.get();
+    }
+
+    /**
+     * Records the acknowledgement time of an OPEN and clears the failure count. The time includes the ExitPoint's
+     * connect to the target, so it is only reported, not used to balance links; see {@link #getRoundTrip()}.
+     *
+     * @param nanos The time between sending the OPEN and receiving the acknowledgement.
+     */
+    void recordOpenLatency(long nanos) {
+        Metrics.TUNNEL_OPEN.record(nanos);
+        openFailures.set(0);
+    }
+
+    /**
+     * Records an OPEN the peer did not answer in time. After {@link #MAX_OPEN_FAILURES} in a row,
+     * the link is suspended for {@link #SUSPEND_MILLIS} so new streams go to other links.
+     */
+    void recordOpenFailure() {
+        Metrics.error("open_timeout");
+        if (openFailures.incrementAndGet() >= MAX_OPEN_FAILURES) {
+            suspendedUntil = System.currentTimeMillis() + SUSPEND_MILLIS;
+            openFailures.set(0);
+            Log.warn("link.suspended", "link", getName(), "suspendMillis", SUSPEND_MILLIS);
+        }
+    }
+
+    /**
+     * @return True if the link is open, not suspended or going away, and has heard from the peer within two
+     *         heartbeat intervals, so it may be given new streams.
+     */
+    boolean isHealthy() {
+        if (closed || isGoingAway() || System.currentTimeMillis() < suspendedUntil) return false;
+        return HEARTBEAT_INTERVAL_MILLIS <= 0
+                || System.nanoTime() - lastReceived < TimeUnit.MILLISECONDS.toNanos(2 * HEARTBEAT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @return The remote address of the link as text, fixed at construction, for logs and metric labels.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return The IP address of the peer, e.g. "10.0.0.5", which {@link ExitBalancer} weights are keyed by.
+     */
+    String getRemoteHost() {
+        SocketAddress address = channel.socket().getRemoteSocketAddress();
+        if (address instanceof InetSocketAddress) return ((InetSocketAddress) address).getAddress().getHostAddress();
+        return String.valueOf(address);
+    }
+
+    /**
+     * @return The remote address of the underlying socket.
+     */
+    SocketAddress getRemoteSocketAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * @return True if the link has been closed.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the link and resets every stream still open on it.
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        ScheduledFuture<?> heartbeat = this.heartbeat;
+        if (heartbeat != null) heartbeat.cancel(false);
+        NioEngine.closeQuietly(channel);
+        for (TunnelStream stream : streams.values()) {
+            stream.onLinkClosed();
+        }
+        streams.clear();
+        if (deflating != null && writeLock.tryLock()) {
+            try {
+                deflating.end(); // otherwise left to the garbage collector, a writer still holds it
+                deflating = null;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package id.levelapp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TunnelStream is one logical tunnel carried over a {@link TunnelLink}.
+ * It exposes a blocking channel so it can be relayed like a socket, or
+ * delivers its events to a {@link Listener} when driven by an {@link EventLoop}.
+ */
+final class TunnelStream {
+    /** How long to wait for the peer to acknowledge a newly opened stream. */
+    static final long OPEN_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Receives stream events as they arrive instead of queueing them for {@link #getChannel()}.
+     * Callbacks run on the link's reader thread while the stream is locked, so implementations
+     * must only hand the event off and never block.
+     */
+    interface Listener {
+        /** Called when the peer acknowledges a stream opened by this side. */
+        void onOpen();
+
+        /**
+         * Called when the peer sends data. The listener returns the credit with {@link #consumed(int)}
+         * once the bytes have been delivered.
+         *
+         * @param payload The received bytes.
+         */
+        void onData(byte[] payload);
+
+        /** Called when the peer half-closes the stream. */
+        void onClose();
+
+        /**
+         * Called when the stream is aborted by the peer or the link goes away.
+         *
+         * @param reason A short description of why the stream was aborted.
+         */
+        void onReset(String reason);
+
+        /** Called when the peer grants more send credit. */
+        void onWritable();
+    }
+
+    private final TunnelLink link;
+    private final int streamId;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private final ByteChannel channel = new StreamChannel();
+    private final long createdNanos = System.nanoTime();
+    /** Decides whether the frames this side sends are deflated, if the link compresses. */
+    private final Compression.Probe probe = new Compression.Probe();
+
+    private Listener listener;
+    private int receivedOffset;
+    private int receivedBytes;
+    private int consumedBytes;
+    private int sendWindow = TunnelLink.INITIAL_WINDOW;
+    private boolean opened;
+    private boolean localClosed;
+    private boolean remoteClosed;
+    private boolean unanswered;
+    private String resetReason;
+
+    /**
+     * Constructs a TunnelStream.
+     *
+     * @param link     The link carrying this stream.
+     * @param streamId The identifier of this stream on the link.
+     * @param opened   True if the stream was opened by the peer and needs no acknowledgement.
+     */
+    TunnelStream(TunnelLink link, int streamId, boolean opened) {
+        this.link = link;
+        this.streamId = streamId;
+        this.opened = opened;
+    }
+
+    /**
+     * @return The identifier of this stream on its link.
+     */
+    int getId() {
+        return streamId;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the stream was created, i.e. its OPEN was sent.
+     */
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * @return True once the peer has acknowledged the stream.
+     */
+    boolean isOpened() {
+        lock.lock();
+        try {
+            return opened;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return True if the link closed before the peer acknowledged or rejected the stream,
+     *         so the same target can be tried through another link.
+     */
+    boolean isUnanswered() {
+        lock.lock();
+        try {
+            return unanswered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return A blocking channel reading the bytes received from the peer and sending bytes to it.
+     *         Closing the channel half-closes the tunnel, like {@link #closeOutput()}.
+     */
+    ByteChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return True if both directions are still open and no received data is waiting to be read,
+     *         so the stream can carry another exchange.
+     */
+    boolean isIdle() {
+        lock.lock();
+        try {
+            return resetReason == null && !localClosed && !remoteClosed && received.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches the stream to push mode: events are delivered to the listener, starting with any
+     * data that was queued before the listener was attached.
+     *
+     * @param listener The listener receiving the stream events.
+     */
+    void setListener(Listener listener) {
+        lock.lock();
+        try {
+            this.listener = listener;
+            while (!received.isEmpty()) {
+                byte[] head = received.poll();
+                if (receivedOffset > 0) {
+                    head = Arrays.copyOfRange(head, receivedOffset, head.length);
+                    receivedOffset = 0;
+                }
+                listener.onData(head);
+            }
+            if (resetReason != null) {
+                listener.onReset(resetReason);
+            } else if (remoteClosed) {
+                listener.onClose();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns credit to the peer for received bytes that have been delivered.
+     *
+     * @param count The number of bytes delivered.
+     */
+    void consumed(int count) {
+        int credit = 0;
+        lock.lock();
+        try {
+            receivedBytes -= count;
+            consumedBytes += count;
+            if (consumedBytes >= TunnelLink.INITIAL_WINDOW / 2 && !remoteClosed && resetReason == null) {
+                credit = consumedBytes;
+                consumedBytes = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (credit > 0) {
+            try {
+                link.sendWindowUpdate(streamId, credit);
+            } catch (IOException ignored) {} // link failure resets the stream
+        }
+    }
+
+    /**
+     * Sends as many bytes as the current send window allows without waiting, up to {@link TunnelLink#MAX_WRITE_SIZE},
+     * as DATA frames written together.
+     *
+     * @param source The data to send; its position advances past the bytes sent.
+     * @return The number of bytes sent, 0 if the send window is exhausted.
+     * @throws IOException If the stream is closed or reset, or the link fails.
+     */
+    int trySend(ByteBuffer source) throws IOException {
+        int n;
+        lock.lock();
+        try {
+            if (resetReason != null) throw new IOException("Stream reset: " + resetReason);
+            if (localClosed) throw new IOException("Stream closed");
+            n = Math.min(Math.min(source.remaining(), sendWindow), TunnelLink.MAX_WRITE_SIZE);
+            if (n <= 0) return 0;
+            sendWindow -= n;
+        } finally {
+            lock.unlock();
+        }
+        link.writeData(streamId, source, n, probe);
+        return n;
+    }
+
+    /**
+     * Half-closes the stream: tells the peer that no more data will be sent.
+     *
+     * @throws IOException If the CLOSE frame cannot be written.
+     */
+    void closeOutput() throws IOException {
+        boolean finished;
+        lock.lock();
+        try {
+            if (localClosed || resetReason != null) return;
+            localClosed = true;
+            finished = remoteClosed;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (finished) link.removeStream(streamId);
+        link.writeFrame(TunnelLink.CLOSE, streamId, new byte[0], 0, 0);
+    }
+
+    /**
+     * Acknowledges a stream opened by the peer, once its target is connected.
+     *
+     * @throws IOException If the acknowledgement cannot be sent.
+     */
+    void accept() throws IOException {
+        link.writeFrame(TunnelLink.OPEN, streamId, new byte[0], 0, 0);
+    }
+
+    /**
+     * Aborts the stream in both directions and tells the peer why.
+     *
+     * @param reason A short description of why the stream was aborted.
+     */
+    void reset(String reason) {
+        lock.lock();
+        try {
+            if (resetReason != null || (localClosed && remoteClosed)) return;
+            resetReason = reason;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        link.removeStream(streamId);
+        link.sendReset(streamId, reason);
+    }
+
+    /**
+     * Waits until the peer acknowledges or rejects this stream.
+     *
+     * @throws IOException If the peer rejects the stream or does not answer in time.
+     */
+    void awaitOpen() throws IOException {
+        lock.lock();
+        try {
+            long deadline = System.currentTimeMillis() + OPEN_TIMEOUT_MILLIS;
+            while (!opened && resetReason == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                waitOnLock(remaining);
+            }
+            if (resetReason != null) throw new IOException(resetReason);
+            if (opened) return;
+        } finally {
+            lock.unlock();
+        }
+        link.recordOpenFailure();
+        reset("Open timed out");
+        throw new IOException("Timed out waiting for stream " + streamId + " to open");
+    }
+
+    /** Called by the link when the peer acknowledges the stream. */
+    void onOpened() {
+        lock.lock();
+        try {
+            opened = true;
+            changed.signalAll();
+            if (listener != null) listener.onOpen();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the link when the peer sends data.
+     *
+     * @param payload The received bytes.
+     */
+    void onData(byte[] payload) {
+        boolean overflow;
+        lock.lock();
+        try {
+            if (resetReason != null || remoteClosed) return;
+            overflow = receivedBytes + payload.length > TunnelLink.INITIAL_WINDOW;
+            if (!overflow && payload.length > 0) {
+                receivedBytes += payload.length;
+                if (listener != null) {
+                    listener.onData(payload);
+                } else {
+                    received.add(payload);
+                    changed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) reset("Flow control window exceeded");
+    }
+
+    /** Called by the link when the peer half-closes the stream. */
+    void onRemoteClose() {
+        boolean finished;
+        lock.lock();
+        try {
+            remoteClosed = true;
+            finished = localClosed;
+            changed.signalAll();
+            if (listener != null) listener.onClose();
+        } finally {
+            lock.unlock();
+        }
+        if (finished) link.removeStream(streamId);
+    }
+
+    /**
+     * Called by the link when the peer aborts the stream or the link goes away.
+     *
+     * @param reason A short description of why the stream was aborted.
+     */
+    void onReset(String reason) {
+        lock.lock();
+        try {
+            if (resetReason != null) return;
+            resetReason = reason;
+            changed.signalAll();
+            if (listener != null) listener.onReset(reason);
+        } finally {
+            lock.unlock();
+        }
+        link.removeStream(streamId);
+    }
+
+    /** Called by the link when it closes, before any reset of its own is delivered. */
+    void onLinkClosed() {
+        lock.lock();
+        try {
+            unanswered = !opened && resetReason == null;
+        } finally {
+            lock.unlock();
+        }
+        onReset("Link closed");
+    }
+
+    /**
+     * Called by the link when the peer grants more send credit.
+     *
+     * @param increment The number of bytes that may additionally be sent.
+     */
+    void onWindowUpdate(int increment) {
+        lock.lock();
+        try {
+            sendWindow += increment;
+            changed.signalAll();
+            if (listener != null) listener.onWritable();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the stream state to change, restoring the interrupt flag if interrupted.
+     * The stream uses a ReentrantLock rather than a monitor so that waiting virtual threads
+     * release their carrier thread.
+     *
+     * @param millis The maximum time to wait, or 0 to wait until signalled.
+     * @throws InterruptedIOException If the waiting thread is interrupted.
+     */
+    private void waitOnLock(long millis) throws InterruptedIOException {
+        try {
+            if (millis > 0) {
+                changed.await(millis, TimeUnit.MILLISECONDS);
+            } else {
+                changed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on stream " + streamId);
+        }
+    }
+
+    /**
+     * Reads the bytes received from the peer, returning the consumed credit to it, and sends bytes
+     * as DATA frames, waiting for send credit when the window is exhausted.
+     */
+    private class StreamChannel implements ByteChannel {
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            if (!destination.hasRemaining()) return 0;
+            int count = 0;
+            lock.lock();
+            try {
+                while (received.isEmpty() && !remoteClosed && resetReason == null) {
+                    waitOnLock(0);
+                }
+                if (received.isEmpty()) {
+                    if (resetReason != null) throw new IOException("Stream reset: " + resetReason);
+                    return -1;
+                }
+                while (destination.hasRemaining() && !received.isEmpty()) {
+                    byte[] head = received.peek();
+                    int n = Math.min(destination.remaining(), head.length - receivedOffset);
+                    destination.put(head, receivedOffset, n);
+                    count += n;
+                    receivedOffset += n;
+                    if (receivedOffset == head.length) {
+                        received.poll();
+                        receivedOffset = 0;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            consumed(count);
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int count = 0;
+            while (source.hasRemaining()) {
+                lock.lock();
+                try {
+                    while (sendWindow <= 0 && resetReason == null && !localClosed) {
+                        waitOnLock(0);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                count += trySend(source);
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            lock.lock();
+            try {
+                return !localClosed && resetReason == null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeOutput();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package id.levelapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watchdog bounds how long each hop of a tunnel may take, so a stuck peer cannot pin a thread, a socket or
+ * a tunnel permit forever: connecting ({@link #CONNECT_TIMEOUT_MILLIS}), the client's request head and the
+ * link preface ({@link #HANDSHAKE_TIMEOUT_MILLIS}), and a tunnel relaying nothing in either direction
+ * ({@link Config.Settings#idleTimeoutSeconds}).
+ * <p>
+ * Handshakes and tunnels are guarded by a {@link Watch}. A single timer thread checks every watch each
+ * {@link #TICK_MILLIS} and runs the expiry task of the ones that ran out, on the shared executor. Relays
+ * touch their watch on every read or write, which only stores the timer's coarse clock, so the relay path
+ * never reads the system clock or takes a lock for it.
+ */
+final class Watchdog {
+    /** How long connecting to a target, or an ExitPoint connecting to the EntryPoint, may take. */
+    static int CONNECT_TIMEOUT_MILLIS = 10000;
+    /** How long a client may take to send its request head, and the two ends of a link to exchange their preface. */
+    static int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    /** How often watches are checked, which is also the resolution of every timeout. */
+    static final long TICK_MILLIS = 500;
+
+    private static final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean started = new AtomicBoolean();
+    /** The time of the last check in milliseconds, stored by {@link Watch#touch()}, so a timeout may run up to a tick late. */
+    private static volatile long clock = System.currentTimeMillis();
+
+    private Watchdog() {}
+
+    /**
+     * Starts a watch that expires once it has not been touched for the timeout.
+     *
+     * @param cause         The error counted when it expires, e.g. "idle_timeout".
+     * @param timeoutMillis The timeout, 0 or less for a watch that never expires.
+     * @param onExpiry      Runs on the shared executor when the watch expires, e.g. closing the channels it guards.
+     * @return The watch.
+     */
+    static Watch watch(String cause, long timeoutMillis, Runnable onExpiry) {
+        Watch watch = new Watch(cause, timeoutMillis, onExpiry);
+        if (timeoutMillis <= 0) return watch;
+        if (started.compareAndSet(false, true)) {
+            Threads.timers().scheduleWithFixedDelay(Watchdog::check, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        watches.add(watch);
+        return watch;
+    }
+
+    /**
+     * Starts a watch over a tunnel that expires after {@link Config.Settings#idleTimeoutSeconds} without traffic.
+     *
+     * @param onExpiry Closes the tunnel.
+     * @return The watch.
+     */
+    static Watch idle(Runnable onExpiry) {
+        return watch("idle_timeout", TimeUnit.SECONDS.toMillis(Config.settings().idleTimeoutSeconds), onExpiry);
+    }
+
+    /**
+     * Starts a watch over a handshake that expires after {@link #HANDSHAKE_TIMEOUT_MILLIS}.
+     *
+     * @param onExpiry Closes the connection.
+     * @return The watch.
+     */
+    static Watch handshake(Runnable onExpiry) {
+        return watch("handshake_timeout", HANDSHAKE_TIMEOUT_MILLIS, onExpiry);
+    }
+
+    /**
+     * Runs on the timer: advances the clock and expires the watches that ran out.
+     */
+    private static void check() {
+        long now = System.currentTimeMillis();
+        clock = now;
+        for (Watch watch : watches) {
+            if (now - watch.lastActive < watch.timeoutMillis || !watches.remove(watch)) continue;
+            Metrics.error(watch.cause);
+            Log.info("watchdog.expired", "cause", watch.cause, "timeoutMillis", watch.timeoutMillis);
+            try {
+                Threads.start(watch.onExpiry);
+            } catch (RejectedExecutionException e) {
+                watch.onExpiry.run(); // shutting down
+            }
+        }
+    }
+
+    /**
+     * Guards one handshake or tunnel.
+     */
+    static final class Watch {
+        private final String cause;
+        private final long timeoutMillis;
+        private final Runnable onExpiry;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        private Watch(String cause, long timeoutMillis, Runnable onExpiry) {
+            this.cause = cause;
+            this.timeoutMillis = timeoutMillis;
+            this.onExpiry = onExpiry;
+        }
+
+        /**
+         * Records activity, restarting the timeout.
+         */
+        void touch() {
+            long now = clock;
+            if (now > lastActive) lastActive = now;
+        }
+
+        /**
+         * Stops the watch.
+         *
+         * @return True if it was stopped in time, false if it has expired or was stopped before.
+         */
+        boolean cancel() {
+            return watches.remove(this) || timeoutMillis <= 0;
+        }
+
+        /**
+         * Wraps a channel so every write to it touches the watch, for the blocking relays.
+         *
+         * @param output The channel to write to.
+         * @return The wrapped channel.
+         */
+        WritableByteChannel touching(WritableByteChannel output) {
+            if (timeoutMillis <= 0) return output;
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer source) throws IOException {
+                    touch();
+                    return output.write(source);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return output.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    output.close();
+                }
+            };
+        }
+    }
+}
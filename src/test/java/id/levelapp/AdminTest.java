@@ -0,0 +1,51 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the bearer token check of {@link Admin}.
+ */
+class AdminTest {
+
+    private String token;
+
+    @BeforeEach
+    void setUp() {
+        token = Admin.TOKEN;
+        Admin.TOKEN = "s3cret";
+    }
+
+    @AfterEach
+    void tearDown() {
+        Admin.TOKEN = token;
+    }
+
+    @Test
+    void acceptsBearerToken() {
+        assertTrue(Admin.isAuthorized("Bearer s3cret"));
+        assertTrue(Admin.isAuthorized("bearer s3cret "));
+    }
+
+    @Test
+    void rejectsMissingOrWrongToken() {
+        assertFalse(Admin.isAuthorized(null));
+        assertFalse(Admin.isAuthorized(""));
+        assertFalse(Admin.isAuthorized("s3cret"));
+        assertFalse(Admin.isAuthorized("Basic s3cret"));
+        assertFalse(Admin.isAuthorized("Bearer "));
+        assertFalse(Admin.isAuthorized("Bearer s3cre"));
+        assertFalse(Admin.isAuthorized("Bearer s3crets"));
+    }
+
+    @Test
+    void rejectsEveryTokenWithoutOne() {
+        Admin.TOKEN = "";
+        assertFalse(Admin.isAuthorized("Bearer "));
+        assertFalse(Admin.isAuthorized("Bearer"));
+    }
+}
@@ -0,0 +1,97 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the deflate stream of a link direction and the {@link Compression.Probe} deciding what is deflated.
+ */
+class CompressionTest {
+    private int level;
+
+    @BeforeEach
+    void enable() {
+        level = Compression.LEVEL;
+        Compression.LEVEL = 6;
+    }
+
+    @AfterEach
+    void restore() {
+        Compression.LEVEL = level;
+    }
+
+    @Test
+    void inflatesFramesInOrder() throws IOException {
+        Compression.Deflating deflating = new Compression.Deflating();
+        Compression.Inflating inflating = new Compression.Inflating();
+        try {
+            for (int i = 0; i < 3; i++) {
+                byte[] payload = ("{\"frame\":" + i + ",\"body\":\"" + new String(new char[500]).replace('\0', 'x') + "\"}")
+                        .getBytes(StandardCharsets.US_ASCII);
+                ByteBuffer deflated = deflating.deflate(ByteBuffer.wrap(payload), 0);
+                byte[] frame = new byte[deflated.remaining()];
+                deflated.get(frame);
+                assertTrue(frame.length < payload.length / 4, "frame " + i + " deflated to " + frame.length);
+                assertArrayEquals(payload, inflating.inflate(frame));
+            }
+        } finally {
+            deflating.end();
+            inflating.end();
+        }
+    }
+
+    @Test
+    void rejectsCorruptFrame() {
+        Compression.Inflating inflating = new Compression.Inflating();
+        try {
+            assertThrows(IOException.class, () -> inflating.inflate(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}));
+        } finally {
+            inflating.end();
+        }
+    }
+
+    @Test
+    void skipsSmallPayloads() {
+        Compression.Probe probe = new Compression.Probe();
+        assertFalse(probe.shouldDeflate(ByteBuffer.allocate(Compression.MIN_SIZE - 1)));
+        assertTrue(probe.shouldDeflate(ByteBuffer.allocate(Compression.MIN_SIZE)));
+    }
+
+    @Test
+    void neverDeflatesCompressedFormats() {
+        byte[][] starts = {
+                {0x16, 0x03, 0x01}, // TLS handshake
+                {0x1F, (byte) 0x8B, 0x08}, // gzip
+                {(byte) 0x89, 'P', 'N'}, // PNG
+                {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, // JPEG
+        };
+        for (byte[] start : starts) {
+            Compression.Probe probe = new Compression.Probe();
+            ByteBuffer payload = ByteBuffer.allocate(4096);
+            payload.put(start).clear();
+            assertFalse(probe.shouldDeflate(payload));
+            assertFalse(probe.shouldDeflate(ByteBuffer.allocate(4096)), "decided by the first frame");
+        }
+    }
+
+    @Test
+    void bypassesDataThatDoesNotShrink() {
+        Compression.Probe probe = new Compression.Probe();
+        byte[] noise = new byte[Compression.SAMPLE_BYTES];
+        new Random(1).nextBytes(noise);
+        assertTrue(probe.shouldDeflate(ByteBuffer.wrap(noise)));
+        probe.record(noise.length, noise.length);
+        assertFalse(probe.shouldDeflate(ByteBuffer.allocate(4096)));
+    }
+}
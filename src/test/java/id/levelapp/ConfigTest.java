@@ -0,0 +1,138 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests how {@link Config} applies a reloaded file: changed entries only, role-specific keys, and invalid
+ * files and values rejected without changing anything.
+ */
+class ConfigTest {
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = directory.resolve("warpdrive.properties");
+        write("");
+        Config.FILE = file.toString();
+        Config.reload(); // forgets the entries of earlier tests
+        Config.init("entry");
+    }
+
+    @AfterEach
+    void tearDown() {
+        Config.FILE = null;
+        Config.init(null);
+        EntryPoint.applyBalancer(Config.settings());
+    }
+
+    @Test
+    void appliesChangedEntriesOnly() throws Exception {
+        write("logLevel=warn\nmaxTunnels=5\nbalancer=ewma\n");
+        assertEquals("balancer logLevel maxTunnels", Config.reload());
+        Config.Settings settings = Config.settings();
+        assertEquals(Log.WARN, settings.logLevel);
+        assertEquals(5, settings.maxTunnels);
+        assertEquals("ewma", settings.balancer);
+
+        write("logLevel=warn\nmaxTunnels=6\nbalancer=ewma\n");
+        assertEquals("maxTunnels", Config.reload());
+        assertEquals(6, Config.settings().maxTunnels);
+        assertEquals("", Config.reload());
+    }
+
+    @Test
+    void keepsRemovedEntries() throws Exception {
+        write("exitWait=100\n");
+        Config.reload();
+        write("");
+        Config.reload();
+        assertEquals(100, Config.settings().exitWaitMillis);
+    }
+
+    @Test
+    void leavesRestartOnlyKeysAlone() throws Exception {
+        write("proxyPort=9000\nidleTimeout=60\n");
+        assertEquals("idleTimeout proxyPort", Config.reload());
+        assertEquals(60, Config.settings().idleTimeoutSeconds);
+    }
+
+    @Test
+    void rejectsInvalidFileAsWhole() throws Exception {
+        Config.Settings before = Config.settings();
+        for (String invalid : new String[] {"logRate=-1", "logLevel=loud", "balancer=fastest", "shapeClient=1.5m",
+                "exitWeights=10.0.0.5=x", "drainTimeout=soon"}) {
+            write("maxTunnels=7\n" + invalid + "\n");
+            assertThrows(IllegalArgumentException.class, Config::reload, invalid);
+            assertSame(before, Config.settings(), invalid);
+        }
+        write("maxTunnels=7\n");
+        Config.reload();
+        assertEquals(7, Config.settings().maxTunnels);
+    }
+
+    @Test
+    void ignoresEntryOnlyKeysOnExit() throws Exception {
+        Config.init("exit");
+        write("balancer=round-robin\nshapeClient=1m\nmaxTunnels=3\n");
+        Config.reload();
+        Config.Settings settings = Config.settings();
+        assertEquals("p2c", settings.balancer);
+        assertEquals(0, settings.shapeClient);
+        assertEquals(3, settings.maxTunnels);
+        assertThrows(IllegalArgumentException.class, () -> Shaper.configure("client=1m"));
+    }
+
+    @Test
+    void refusesEntryOnlyPropertiesOnExit() {
+        System.setProperty("warpdrive.exitQueue", "10");
+        try {
+            assertThrows(IllegalArgumentException.class, () -> Config.init("exit"));
+            Config.init("entry");
+            assertEquals(10, Config.settings().exitQueue);
+        } finally {
+            System.clearProperty("warpdrive.exitQueue");
+        }
+    }
+
+    @Test
+    void swapsWholeSnapshots() {
+        Config.Settings before = Config.settings();
+        Map<String, String> changed = new HashMap<>();
+        changed.put("shapeGlobal", "10m");
+        changed.put("shapeInteractive", "0");
+        Config.update(changed);
+        Config.Settings after = Config.settings();
+        assertEquals(10L << 20, after.shapeGlobal);
+        assertEquals(0, after.shapeInteractive);
+        assertEquals(0, before.shapeGlobal, "a snapshot never changes");
+        assertEquals(8192, before.shapeInteractive);
+
+        changed.put("shapeTarget", "-1");
+        assertThrows(IllegalArgumentException.class, () -> Config.update(changed));
+        assertSame(after, Config.settings());
+        Config.update(Collections.<String, String>emptyMap());
+        assertSame(after, Config.settings());
+    }
+
+    private void write(String content) throws Exception {
+        Files.write(file, content.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,57 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how {@link ExitBalancer} parses the weights of ExitPoint hosts.
+ */
+class ExitBalancerTest {
+
+    @Test
+    void parsesWeights() {
+        Map<String, Integer> weights = ExitBalancer.parseWeights("10.0.0.5=3, 10.0.0.6 = 0,,10.0.0.7=" + ExitBalancer.MAX_WEIGHT);
+        assertEquals(3, weights.size());
+        assertEquals(3, weights.get("10.0.0.5"));
+        assertEquals(0, weights.get("10.0.0.6"));
+        assertEquals(ExitBalancer.MAX_WEIGHT, weights.get("10.0.0.7"));
+    }
+
+    @Test
+    void parsesEmptySpec() {
+        assertTrue(ExitBalancer.parseWeights("").isEmpty());
+        assertTrue(ExitBalancer.parseWeights(" , ").isEmpty());
+    }
+
+    @Test
+    void keysIpv6HostsBeforeLastEquals() {
+        Map<String, Integer> weights = ExitBalancer.parseWeights("0:0:0:0:0:0:0:1=2,fe80::1=5");
+        assertEquals(2, weights.get("0:0:0:0:0:0:0:1"));
+        assertEquals(5, weights.get("fe80::1"));
+    }
+
+    @Test
+    void rejectsMalformedPairs() {
+        assertThrows(IllegalArgumentException.class, () -> ExitBalancer.parseWeights("10.0.0.5"));
+        assertThrows(IllegalArgumentException.class, () -> ExitBalancer.parseWeights("=3"));
+        assertThrows(IllegalArgumentException.class, () -> ExitBalancer.parseWeights("10.0.0.5="));
+        assertThrows(IllegalArgumentException.class, () -> ExitBalancer.parseWeights("10.0.0.5=heavy"));
+    }
+
+    @Test
+    void rejectsWeightsOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> ExitBalancer.parseWeights("10.0.0.5=-1"));
+        assertThrows(IllegalArgumentException.class, () -> ExitBalancer.parseWeights("10.0.0.5=" + (ExitBalancer.MAX_WEIGHT + 1)));
+    }
+
+    @Test
+    void returnsUnmodifiableWeights() {
+        Map<String, Integer> weights = ExitBalancer.parseWeights("10.0.0.5=3");
+        assertThrows(UnsupportedOperationException.class, () -> weights.put("10.0.0.6", 1));
+    }
+}
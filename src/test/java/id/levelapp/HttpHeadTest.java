@@ -0,0 +1,83 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how {@link HttpHead} parses, inspects and rewrites message heads.
+ */
+class HttpHeadTest {
+
+    @Test
+    void parsesRequestHead() throws Exception {
+        HttpHead head = HttpHead.parse("GET http://example.com/a?b HTTP/1.1\r\nHost: example.com\nAccept:  */* ");
+        assertEquals("GET", head.method());
+        assertEquals("http://example.com/a?b", head.target());
+        assertEquals("HTTP/1.1", head.version());
+        assertEquals("example.com", head.header("host"));
+        assertEquals("*/*", head.header("Accept"));
+        assertNull(head.header("Content-Length"));
+    }
+
+    @Test
+    void parsesStatus() throws Exception {
+        assertEquals(404, HttpHead.parse("HTTP/1.1 404 Not Found").status());
+        assertEquals(200, HttpHead.parse("HTTP/1.0 200").status());
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("GET / HTTP/1.1").status());
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("HTTP/1.1 OK").status());
+    }
+
+    @Test
+    void rejectsMalformedHeads() {
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("GET"));
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("GET / HTTP/1.1\r\nNo colon"));
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("GET / HTTP/1.1\r\n: empty"));
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("GET / HTTP/1.1\r\nName : space"));
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("GET / HTTP/1.1\r\n folded: line"));
+    }
+
+    @Test
+    void detectsChunkedBodies() throws Exception {
+        assertTrue(HttpHead.parse("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, Chunked").isChunked());
+        assertTrue(HttpHead.parse("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip\r\ntransfer-encoding: chunked").isChunked());
+        assertFalse(HttpHead.parse("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunkedish").isChunked());
+    }
+
+    @Test
+    void validatesContentLength() throws Exception {
+        assertEquals(-1, HttpHead.parse("HTTP/1.1 200 OK").contentLength());
+        assertEquals(12, HttpHead.parse("HTTP/1.1 200 OK\r\nContent-Length: 12").contentLength());
+        assertEquals(12, HttpHead.parse("HTTP/1.1 200 OK\r\nContent-Length: 12\r\nContent-Length: 12").contentLength());
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("HTTP/1.1 200 OK\r\nContent-Length: 12\r\nContent-Length: 13").contentLength());
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("HTTP/1.1 200 OK\r\nContent-Length: -1").contentLength());
+        assertThrows(ProtocolException.class, () -> HttpHead.parse("HTTP/1.1 200 OK\r\nContent-Length: 1e3").contentLength());
+    }
+
+    @Test
+    void removesHopByHopHeaders() throws Exception {
+        HttpHead head = HttpHead.parse("GET / HTTP/1.1\r\nHost: a\r\nConnection: keep-alive, X-Trace\r\nX-Trace: 1\r\n"
+                + "Keep-Alive: timeout=5\r\nProxy-Connection: keep-alive\r\nProxy-Authorization: Basic eA==\r\nTE: trailers\r\nUpgrade: h2c\r\nAccept: */*");
+        head.removeHopByHop();
+        assertEquals("GET / HTTP/1.1\r\nHost: a\r\nAccept: */*\r\n\r\n", serialize(head));
+    }
+
+    @Test
+    void rewritesInPlace() throws Exception {
+        HttpHead head = HttpHead.parse("GET http://a/x HTTP/1.1\r\nHost: a\r\nX-One: 1\r\nx-one: 2");
+        head.target("/x");
+        head.set("X-One", "3");
+        assertEquals("GET /x HTTP/1.1\r\nHost: a\r\nX-One: 3\r\n\r\n", serialize(head));
+    }
+
+    private static String serialize(HttpHead head) {
+        return StandardCharsets.ISO_8859_1.decode(head.toBuffer()).toString();
+    }
+}
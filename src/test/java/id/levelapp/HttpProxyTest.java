@@ -0,0 +1,115 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the pool of idle upstream connections of {@link HttpProxy}: reuse, its size limit and eviction.
+ * The upstreams are direct connections to a local server socket.
+ */
+class HttpProxyTest {
+
+    private boolean forward;
+    private boolean allowLoopback;
+    private int maxIdle;
+    private int idleTimeout;
+    private ServerSocket server;
+    private String host;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        forward = EntryPoint.IS_FORWARD;
+        allowLoopback = TargetPool.ALLOW_LOOPBACK;
+        maxIdle = HttpProxy.MAX_IDLE_PER_TARGET;
+        idleTimeout = TargetPool.IDLE_TIMEOUT_SECONDS;
+        EntryPoint.IS_FORWARD = false;
+        TargetPool.ALLOW_LOOPBACK = true;
+        server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        host = InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.close();
+        EntryPoint.IS_FORWARD = forward;
+        TargetPool.ALLOW_LOOPBACK = allowLoopback;
+        HttpProxy.MAX_IDLE_PER_TARGET = maxIdle;
+        TargetPool.IDLE_TIMEOUT_SECONDS = idleTimeout;
+    }
+
+    @Test
+    void reusesReleasedConnection() throws Exception {
+        HttpProxy.Upstream first = HttpProxy.Upstream.acquire(host, server.getLocalPort());
+        try (Socket peer = accept()) {
+            HttpProxy.Upstream.release(first);
+            HttpProxy.Upstream second = HttpProxy.Upstream.acquire(host, server.getLocalPort());
+            assertSame(first, second);
+            second.close();
+        }
+    }
+
+    @Test
+    void closesConnectionsBeyondLimit() throws Exception {
+        HttpProxy.MAX_IDLE_PER_TARGET = 1;
+        HttpProxy.Upstream first = HttpProxy.Upstream.acquire(host, server.getLocalPort());
+        HttpProxy.Upstream second = HttpProxy.Upstream.acquire(host, server.getLocalPort());
+        try (Socket firstPeer = accept(); Socket secondPeer = accept()) {
+            HttpProxy.Upstream.release(first);
+            HttpProxy.Upstream.release(second);
+            assertEquals(-1, read(secondPeer), "the second idle connection is closed");
+            assertSame(first, HttpProxy.Upstream.acquire(host, server.getLocalPort()));
+            first.close();
+        }
+    }
+
+    @Test
+    void skipsConnectionClosedByTarget() throws Exception {
+        HttpProxy.Upstream first = HttpProxy.Upstream.acquire(host, server.getLocalPort());
+        accept().close();
+        HttpProxy.Upstream.release(first);
+        Thread.sleep(100); // lets the FIN arrive
+        HttpProxy.Upstream second = HttpProxy.Upstream.acquire(host, server.getLocalPort());
+        try (Socket peer = accept()) {
+            assertNotSame(first, second);
+            second.close();
+        }
+    }
+
+    @Test
+    void evictsExpiredConnections() throws Exception {
+        TargetPool.IDLE_TIMEOUT_SECONDS = 0;
+        HttpProxy.Upstream first = HttpProxy.Upstream.acquire(host, server.getLocalPort());
+        try (Socket peer = accept()) {
+            HttpProxy.Upstream.release(first);
+            Thread.sleep(10);
+            HttpProxy.Upstream.evict();
+            assertEquals(-1, read(peer), "the expired connection is closed");
+            HttpProxy.Upstream second = HttpProxy.Upstream.acquire(host, server.getLocalPort());
+            accept().close();
+            assertNotSame(first, second);
+            second.close();
+        }
+    }
+
+    private Socket accept() throws Exception {
+        server.setSoTimeout(5000);
+        Socket socket = server.accept();
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static int read(Socket socket) throws Exception {
+        InputStream input = socket.getInputStream();
+        return input.read();
+    }
+}
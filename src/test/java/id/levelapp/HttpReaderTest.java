@@ -0,0 +1,149 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how {@link HttpReader} frames messages: pipelined heads, bodies of known length and chunked bodies,
+ * whether the bytes arrive at once or one at a time.
+ */
+class HttpReaderTest {
+
+    private static final String CHUNKED = "4;name=value\r\nWiki\r\n5\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\nExpires: never\r\n\r\n";
+
+    @Test
+    void readsPipelinedHeads() throws Exception {
+        HttpReader reader = reader("GET /a HTTP/1.1\r\nHost: a\r\n\r\nGET /b HTTP/1.1\nHost: b\n\n", false);
+        assertEquals("GET /a HTTP/1.1\r\nHost: a", reader.readHead());
+        assertEquals("GET /b HTTP/1.1\nHost: b", reader.readHead());
+        assertNull(reader.readHead());
+        reader.release();
+    }
+
+    @Test
+    void skipsEmptyLinesBetweenMessages() throws Exception {
+        HttpReader reader = reader("\r\n\r\nHTTP/1.1 204 No Content\r\n\r\n\r\nHTTP/1.1 304 Not Modified\r\n\r\n", true);
+        assertEquals("HTTP/1.1 204 No Content", reader.readHead());
+        assertEquals("HTTP/1.1 304 Not Modified", reader.readHead());
+        assertNull(reader.readHead());
+        reader.release();
+    }
+
+    @Test
+    void readsPipelinedRequests() throws Exception {
+        HttpReader reader = reader("GET http://a/ HTTP/1.1\r\n\r\nPOST http://b/ HTTP/1.1\r\nContent-Length: 3\r\n\r\nabcGET http://c/ HTTP/1.1\r\n\r\n", true);
+        RequestParser parser = new RequestParser();
+        assertTrue(reader.readRequest(parser));
+        assertEquals("http://a/", HttpHead.parse(reader.takeHead(parser)).target());
+        assertTrue(reader.readRequest(parser));
+        HttpHead post = HttpHead.parse(reader.takeHead(parser));
+        assertEquals(3, post.contentLength());
+        assertEquals("abc", copy(reader, 3));
+        assertTrue(reader.readRequest(parser));
+        assertEquals("http://c/", HttpHead.parse(reader.takeHead(parser)).target());
+        assertFalse(reader.readRequest(parser));
+        reader.release();
+    }
+
+    @Test
+    void copiesChunkedBodyVerbatim() throws Exception {
+        for (boolean trickle : new boolean[] {false, true}) {
+            HttpReader reader = reader("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" + CHUNKED + "HTTP/1.1 204 No Content\r\n\r\n", trickle);
+            assertTrue(HttpHead.parse(reader.readHead()).isChunked());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            reader.copyChunked(Channels.newChannel(body));
+            assertEquals(CHUNKED, body.toString("ISO-8859-1"), trickle ? "one byte per read" : "all at once");
+            assertEquals("HTTP/1.1 204 No Content", reader.readHead(), "the next response stays buffered");
+            reader.release();
+        }
+    }
+
+    @Test
+    void copiesEmptyChunkedBody() throws Exception {
+        HttpReader reader = reader("0\r\n\r\n", false);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        reader.copyChunked(Channels.newChannel(body));
+        assertEquals("0\r\n\r\n", body.toString("ISO-8859-1"));
+        assertFalse(reader.hasBuffered());
+        reader.release();
+    }
+
+    @Test
+    void rejectsMalformedChunks() {
+        assertThrows(ProtocolException.class, () -> copyChunked("z\r\nabc\r\n0\r\n\r\n"));
+        assertThrows(ProtocolException.class, () -> copyChunked("-1\r\n\r\n"));
+        assertThrows(ProtocolException.class, () -> copyChunked("3\r\nabcdef\r\n0\r\n\r\n"));
+        assertThrows(EOFException.class, () -> copyChunked("5\r\nab"));
+        assertThrows(EOFException.class, () -> copyChunked("0\r\nTrailer: x\r\n"));
+    }
+
+    @Test
+    void rejectsTruncatedMessages() {
+        HttpReader head = reader("GET / HTTP/1.1\r\nHost: a\r\n", false);
+        assertThrows(EOFException.class, head::readHead);
+        head.release();
+        HttpReader body = reader("ab", false);
+        assertThrows(EOFException.class, () -> copy(body, 3));
+        body.release();
+    }
+
+    private static void copyChunked(String body) throws Exception {
+        HttpReader reader = reader(body, false);
+        try {
+            reader.copyChunked(Channels.newChannel(new ByteArrayOutputStream()));
+        } finally {
+            reader.release();
+        }
+    }
+
+    private static String copy(HttpReader reader, long length) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(output);
+        reader.copy(length, channel);
+        return output.toString("ISO-8859-1");
+    }
+
+    /**
+     * @param trickle True to hand out one byte per read, so every message straddles reads.
+     */
+    private static HttpReader reader(String input, boolean trickle) {
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.ISO_8859_1)));
+        if (!trickle) return new HttpReader(channel);
+        return new HttpReader(new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (!dst.hasRemaining()) return 0;
+                ByteBuffer one = ByteBuffer.allocate(1);
+                int n = channel.read(one);
+                if (n > 0) dst.put(one.get(0));
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests which events {@link Log} writes: the level filter and the per-event rate limit with its suppressed count.
+ * Each test captures standard output and only looks at its own event names.
+ */
+class LogTest {
+
+    private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    private PrintStream out;
+
+    @BeforeEach
+    void setUp() {
+        out = System.out;
+        System.setOut(new PrintStream(captured, true));
+    }
+
+    @AfterEach
+    void tearDown() {
+        Log.flush(1000);
+        System.setOut(out);
+        Config.init(null);
+    }
+
+    @Test
+    void limitsLinesPerEventAndSecond() throws Exception {
+        Config.update(Collections.singletonMap("logRate", "3"));
+        awaitStartOfSecond();
+        for (int i = 0; i < 10; i++) {
+            Log.info("test.limited", "i", i);
+            Log.info("test.other", "i", i);
+        }
+        awaitStartOfSecond();
+        Log.info("test.limited", "i", 10);
+        List<String> limited = lines("test.limited");
+        assertEquals(4, limited.size(), limited.toString());
+        assertTrue(limited.get(2).endsWith(" i=2"), limited.get(2));
+        assertTrue(limited.get(3).endsWith(" i=10 suppressed=7"), limited.get(3));
+        assertEquals(3, lines("test.other").size(), "each event name has its own limit");
+    }
+
+    @Test
+    void writesEverythingWithoutLimit() {
+        Config.update(Collections.singletonMap("logRate", "0"));
+        for (int i = 0; i < 200; i++) {
+            Log.info("test.unlimited", "i", i);
+        }
+        assertEquals(200, lines("test.unlimited").size());
+    }
+
+    @Test
+    void discardsEventsBelowLevel() {
+        Config.update(Collections.singletonMap("logLevel", "warn"));
+        Log.info("test.level");
+        Log.debug("test.level");
+        assertEquals(0, lines("test.level").size());
+        assertTrue(!Log.isEnabled(Log.INFO) && Log.isEnabled(Log.WARN));
+    }
+
+    /**
+     * Waits until a new second has just begun, so a burst of events falls within one second of the limiter.
+     */
+    private static void awaitStartOfSecond() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        Thread.sleep(1000 - now % 1000 + 10);
+    }
+
+    private List<String> lines(String event) {
+        Log.flush(1000);
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(captured.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (line.contains(" INFO " + event + " ") || line.endsWith(" " + event)) lines.add(line.trim());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,95 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the bucket boundaries of {@link Metrics.Histogram}, both at full resolution and as scraped.
+ */
+class MetricsTest {
+
+    @Test
+    void countsSmallValuesExactly() {
+        for (long micros = 0; micros < 4; micros++) {
+            assertEquals(micros + 1, bound(micros), micros + " us");
+        }
+    }
+
+    @Test
+    void splitsPowersOfTwoIntoFourBuckets() {
+        assertEquals(5, bound(4));
+        assertEquals(8, bound(7));
+        assertEquals(10, bound(8));
+        assertEquals(10, bound(9));
+        assertEquals(12, bound(10));
+        assertEquals(1024, bound(1023));
+        assertEquals(1280, bound(1024));
+        assertEquals(1280, bound(1279));
+        assertEquals(1536, bound(1280));
+    }
+
+    @Test
+    void boundsEveryValueWithinAQuarter() {
+        for (long micros = 4; micros < 1L << 31; micros = micros * 5 / 4 + 1) {
+            long bound = bound(micros);
+            assertTrue(bound > micros && bound <= micros + micros / 4 + 1, micros + " us in a bucket ending at " + bound);
+            assertTrue(bound(bound - 1) == bound && bound(bound) > bound, "the bucket ends at " + bound);
+        }
+    }
+
+    @Test
+    void putsHugeValuesInTheLastBucket() {
+        long last = bound((1L << 33) - 1);
+        assertEquals(1L << 33, last);
+        assertEquals(last, bound(1L << 40));
+        assertEquals(last, bound(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    void reportsQuantilesAndMean() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        assertEquals(0, histogram.quantile(0.5));
+        for (long micros = 1; micros <= 100; micros++) {
+            histogram.record(micros * 1000);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(50.5, histogram.mean(), 1e-9);
+        assertEquals(56, histogram.quantile(0.5));
+        assertEquals(112, histogram.quantile(1));
+        histogram.reset();
+        assertEquals(0, histogram.count());
+    }
+
+    @Test
+    void scrapesCumulativeBucketsAtPowersOfTwo() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(3_000);
+        histogram.record(1_000_000);
+        histogram.record(1_024_000);
+        histogram.record(Long.MAX_VALUE);
+        StringBuilder out = new StringBuilder();
+        histogram.writeTo(out, "test_seconds", "Test.");
+        List<String> lines = Arrays.asList(out.toString().split("\n"));
+        assertTrue(lines.contains("test_seconds_bucket{le=\"2.0E-6\"} 0"), out.toString());
+        assertTrue(lines.contains("test_seconds_bucket{le=\"4.0E-6\"} 1"), out.toString());
+        assertTrue(lines.contains("test_seconds_bucket{le=\"0.001024\"} 2"), out.toString());
+        assertTrue(lines.contains("test_seconds_bucket{le=\"0.002048\"} 3"), out.toString());
+        assertTrue(lines.contains("test_seconds_bucket{le=\"4294.967296\"} 3"), out.toString());
+        assertTrue(lines.contains("test_seconds_bucket{le=\"+Inf\"} 4"), out.toString());
+        assertTrue(lines.contains("test_seconds_count 4"), out.toString());
+    }
+
+    /**
+     * @return The upper bound of the bucket a single sample of the given microseconds lands in.
+     */
+    private static long bound(long micros) {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(micros * 1000);
+        return histogram.quantile(1);
+    }
+}
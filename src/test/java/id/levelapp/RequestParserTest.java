@@ -0,0 +1,172 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the request head validation of {@link RequestParser}: the size limits, CONNECT targets and line endings.
+ */
+class RequestParserTest {
+
+    private final RequestParser parser = new RequestParser();
+
+    @Test
+    void parsesConnect() throws Exception {
+        String head = "CONNECT example.com:443 HTTP/1.1\r\nHost: example.com:443\r\n\r\n";
+        assertTrue(parse(head));
+        assertTrue(parser.isConnect());
+        assertEquals("example.com", parser.host());
+        assertEquals(443, parser.port());
+        assertEquals("example.com:443", parser.authority());
+        assertEquals(head.length(), parser.length());
+    }
+
+    @Test
+    void parsesIpv6Connect() throws Exception {
+        assertTrue(parse("CONNECT [::1]:8443 HTTP/1.1\r\nHost: [::1]:8443\r\n\r\n"));
+        assertEquals("[::1]", parser.host());
+        assertEquals(8443, parser.port());
+        assertEquals("[::1]:8443", parser.authority());
+
+        parser.reset();
+        assertTrue(parse("CONNECT [2001:db8::a:1]:443 HTTP/1.1\r\n\r\n"));
+        assertEquals("[2001:db8::a:1]", parser.host());
+        assertEquals(443, parser.port());
+    }
+
+    @Test
+    void rejectsMalformedConnectTargets() {
+        assertStatus("400", "CONNECT [::1:443 HTTP/1.1\r\n\r\n");
+        assertStatus("400", "CONNECT ::1:443 HTTP/1.1\r\n\r\n");
+        assertStatus("400", "CONNECT example.com HTTP/1.1\r\n\r\n");
+        assertStatus("400", "CONNECT example.com: HTTP/1.1\r\n\r\n");
+        assertStatus("400", "CONNECT example.com:0 HTTP/1.1\r\n\r\n");
+        assertStatus("400", "CONNECT example.com:65536 HTTP/1.1\r\n\r\n");
+        assertStatus("400", "CONNECT exa$mple.com:443 HTTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    void parsesPlainRequest() throws Exception {
+        assertTrue(parse("get http://example.com/ HTTP/1.0\r\nHost: example.com\r\n\r\n"));
+        assertFalse(parser.isConnect());
+    }
+
+    @Test
+    void acceptsMixedLineEndings() throws Exception {
+        String head = "GET http://example.com/ HTTP/1.1\nHost: example.com\r\nAccept: */*\n\r\n";
+        assertTrue(parse(head));
+        assertEquals(head.length(), parser.length());
+
+        parser.reset();
+        head = "GET http://example.com/ HTTP/1.1\r\nHost: example.com\n\n";
+        assertTrue(parse(head));
+        assertEquals(head.length(), parser.length());
+    }
+
+    @Test
+    void rejectsCarriageReturnWithoutLineFeed() {
+        assertStatus("400", "GET / HTTP/1.1\r\rHost: example.com\r\n\r\n");
+        assertStatus("400", "GET / HTTP/1.1\r\nHost: example.com\r\n\rX");
+    }
+
+    @Test
+    void skipsEmptyLinesBeforeRequest() throws Exception {
+        assertFalse(parse("\r\n\n"));
+        assertTrue(parser.isEmpty());
+        parser.reset();
+        assertTrue(parse("\r\n\nGET / HTTP/1.1\r\n\r\n"));
+        assertEquals(3, parser.headStart());
+    }
+
+    @Test
+    void resumesAcrossReads() throws Exception {
+        String head = "CONNECT example.com:443 HTTP/1.1\r\nUser-Agent: test\r\n\r\n";
+        byte[] bytes = (head + "\u0016\u0003\u0001").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int end = 1; end < head.length(); end++) {
+            assertFalse(parser.parse(buffer, 0, end), "complete after " + end + " bytes");
+        }
+        assertTrue(parser.parse(buffer, 0, bytes.length));
+        assertEquals(head.length(), parser.length());
+        assertEquals("example.com:443", parser.authority());
+        assertEquals(0, buffer.position());
+        assertEquals(bytes.length, buffer.limit());
+    }
+
+    @Test
+    void honoursStartOffset() throws Exception {
+        String head = "CONNECT example.com:443 HTTP/1.1\r\n\r\n";
+        byte[] bytes = ("xxxx" + head).getBytes(StandardCharsets.US_ASCII);
+        assertTrue(parser.parse(ByteBuffer.wrap(bytes), 4, bytes.length));
+        assertEquals(head.length(), parser.length());
+        assertEquals("example.com", parser.host());
+    }
+
+    @Test
+    void rejectsLongRequestLine() {
+        assertStatus("414", "GET /" + repeat('a', RequestParser.MAX_REQUEST_LINE) + " HTTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    void rejectsLargeHead() {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        String value = repeat('v', 200);
+        for (int i = 0; head.length() <= RequestParser.MAX_HEAD_SIZE; i++) {
+            head.append("X-Field-").append(i).append(": ").append(value).append("\r\n");
+        }
+        assertStatus("431", head.append("\r\n").toString());
+    }
+
+    @Test
+    void rejectsTooManyHeaders() throws Exception {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < RequestParser.MAX_HEADERS; i++) {
+            head.append("X-").append(i).append(": y\r\n");
+        }
+        assertTrue(parse(head + "\r\n"));
+        parser.reset();
+        assertStatus("431", head.append("X-Last: y\r\n\r\n").toString());
+    }
+
+    @Test
+    void rejectsUnsupportedVersion() {
+        assertStatus("505", "GET / HTTP/2.0\r\n\r\n");
+        assertStatus("505", "GET / HTTP/1.2\r\n\r\n");
+        assertStatus("505", "GET / HTTPS/1\r\n\r\n");
+        assertStatus("400", "GET / HTTP/1.1.1\r\n\r\n");
+    }
+
+    @Test
+    void rejectsMalformedRequests() {
+        assertStatus("400", "G(T / HTTP/1.1\r\n\r\n");
+        assertStatus("400", "GET /a\u0001b HTTP/1.1\r\n\r\n");
+        assertStatus("400", "GET / HTTP/1.1\r\nBad Name: x\r\n\r\n");
+        assertStatus("400", "GET / HTTP/1.1\r\n: x\r\n\r\n");
+        assertStatus("400", "GET / HTTP/1.1\r\nName: a\u0000b\r\n\r\n");
+    }
+
+    private boolean parse(String head) throws RequestParser.BadRequest {
+        byte[] bytes = head.getBytes(StandardCharsets.US_ASCII);
+        return parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    private void assertStatus(String status, String head) {
+        parser.reset();
+        RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class, () -> parse(head));
+        assertTrue(e.status.startsWith(status + " "), "expected " + status + " but was " + e.status);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,73 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the lookup cache of {@link Resolver}. Hosts are literal addresses, and malformed literals for failed
+ * lookups, so no test depends on a name server.
+ */
+class ResolverTest {
+
+    private int ttl;
+    private int negativeTtl;
+
+    @BeforeEach
+    void setUp() {
+        ttl = Resolver.TTL_SECONDS;
+        negativeTtl = Resolver.NEGATIVE_TTL_SECONDS;
+    }
+
+    @AfterEach
+    void tearDown() {
+        Resolver.TTL_SECONDS = ttl;
+        Resolver.NEGATIVE_TTL_SECONDS = negativeTtl;
+    }
+
+    @Test
+    void cachesResolvedAddresses() throws Exception {
+        Resolver.TTL_SECONDS = 60;
+        assertNull(Resolver.cached("192.0.2.11"));
+        InetAddress address = Resolver.resolve("192.0.2.11");
+        assertEquals(InetAddress.getByName("192.0.2.11"), address);
+        assertEquals(address, Resolver.cached("192.0.2.11"));
+    }
+
+    @Test
+    void skipsCacheWithoutTtl() throws Exception {
+        Resolver.TTL_SECONDS = 0;
+        Resolver.resolve("192.0.2.12");
+        assertNull(Resolver.cached("192.0.2.12"));
+    }
+
+    @Test
+    void remembersFailedLookups() throws Exception {
+        Resolver.NEGATIVE_TTL_SECONDS = 10;
+        assertThrows(UnknownHostException.class, () -> Resolver.resolve("[192.0.2.13]"));
+        assertThrows(UnknownHostException.class, () -> Resolver.cached("[192.0.2.13]"));
+    }
+
+    @Test
+    void retriesFailedLookupsWithoutNegativeTtl() throws Exception {
+        Resolver.NEGATIVE_TTL_SECONDS = 0;
+        assertThrows(UnknownHostException.class, () -> Resolver.resolve("[192.0.2.14]"));
+        assertNull(Resolver.cached("[192.0.2.14]"));
+    }
+
+    @Test
+    void expiresEntries() throws Exception {
+        Resolver.TTL_SECONDS = 1;
+        Resolver.resolve("192.0.2.15");
+        assertEquals(InetAddress.getByName("192.0.2.15"), Resolver.cached("192.0.2.15"));
+        Thread.sleep(1100);
+        assertNull(Resolver.cached("192.0.2.15"));
+    }
+}
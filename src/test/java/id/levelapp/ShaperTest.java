@@ -0,0 +1,106 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how {@link Shaper} parses rates, applies limits changed at runtime and charges its token buckets.
+ */
+class ShaperTest {
+
+    @AfterEach
+    void restoreLimits() {
+        Config.init(null);
+    }
+
+    @Test
+    void parsesRates() {
+        assertEquals(0, Shaper.parseRate("0"));
+        assertEquals(500000, Shaper.parseRate("500000"));
+        assertEquals(512L << 10, Shaper.parseRate("512k"));
+        assertEquals(20L << 20, Shaper.parseRate("20M"));
+        assertEquals(1L << 30, Shaper.parseRate("1g"));
+        assertEquals(10L << 20, Shaper.parseRate(" 10 m "));
+    }
+
+    @Test
+    void rejectsMalformedRates() {
+        assertThrows(NumberFormatException.class, () -> Shaper.parseRate(""));
+        assertThrows(NumberFormatException.class, () -> Shaper.parseRate("k"));
+        assertThrows(NumberFormatException.class, () -> Shaper.parseRate("10x"));
+        assertThrows(NumberFormatException.class, () -> Shaper.parseRate("1.5m"));
+        assertThrows(NumberFormatException.class, () -> Shaper.parseRate("10kb"));
+    }
+
+    @Test
+    void configuresLimits() {
+        Shaper.configure("global=10m&client=512k&&target=0&interactive=16384");
+        assertEquals(10L << 20, Config.settings().shapeGlobal);
+        assertEquals(512L << 10, Config.settings().shapeClient);
+        assertEquals(0, Config.settings().shapeTarget);
+        assertEquals(16384, Config.settings().shapeInteractive);
+        assertEquals("global=10485760 client=524288 target=0 interactive=16384", Shaper.describe());
+    }
+
+    @Test
+    void keepsLimitsLeftOut() {
+        Shaper.configure("client=1m");
+        Shaper.configure("target=2m");
+        assertEquals(1L << 20, Config.settings().shapeClient);
+        assertEquals(2L << 20, Config.settings().shapeTarget);
+    }
+
+    @Test
+    void rejectsInvalidQueryAsWhole() {
+        Shaper.configure("client=1m");
+        assertThrows(IllegalArgumentException.class, () -> Shaper.configure("global=5m&client=fast"));
+        assertThrows(IllegalArgumentException.class, () -> Shaper.configure("global=5m&client=-1"));
+        assertThrows(IllegalArgumentException.class, () -> Shaper.configure("global=5m&burst=1m"));
+        assertThrows(IllegalArgumentException.class, () -> Shaper.configure("global=5m&client"));
+        assertThrows(IllegalArgumentException.class, () -> Shaper.configure("global=5m&interactive=4g"));
+        assertEquals(0, Config.settings().shapeGlobal);
+        assertEquals(1L << 20, Config.settings().shapeClient);
+        assertEquals(8192, Config.settings().shapeInteractive);
+    }
+
+    @Test
+    void leavesFlowsUnshapedWithoutRates() throws Exception {
+        Shaper.Flow flow = Shaper.flow(InetAddress.getByName("10.1.0.1"), "example.com");
+        assertNull(flow.upstream);
+        assertNull(flow.downstream);
+    }
+
+    @Test
+    void delaysBeyondBurst() throws Exception {
+        Shaper.configure("client=1m&interactive=0");
+        Shaper.Flow flow = Shaper.flow(InetAddress.getByName("10.1.0.2"), "example.com");
+        long wait = TimeUnit.NANOSECONDS.toMillis(flow.upstream.charge(1L << 20));
+        assertTrue(wait > 800 && wait <= 900, "waits " + wait + " ms");
+        assertEquals(0, flow.downstream.charge(1L << 10), "directions have separate buckets");
+    }
+
+    @Test
+    void sharesBucketsPerClient() throws Exception {
+        Shaper.configure("client=1m&interactive=0");
+        InetAddress client = InetAddress.getByName("10.1.0.3");
+        Shaper.flow(client, "a.example.com").upstream.charge(1L << 20);
+        assertTrue(Shaper.flow(client, "b.example.com").upstream.charge(1L << 10) > 0);
+        assertEquals(0, Shaper.flow(InetAddress.getByName("10.1.0.4"), "a.example.com").upstream.charge(1L << 10));
+    }
+
+    @Test
+    void neverDelaysInteractiveBytes() throws Exception {
+        Shaper.configure("target=1k&interactive=8192");
+        Shaper.Flow flow = Shaper.flow(InetAddress.getByName("10.1.0.5"), "slow.example.com");
+        assertEquals(0, flow.upstream.charge(4096));
+        assertTrue(flow.upstream.charge(8192) > 0);
+    }
+}
@@ -0,0 +1,76 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how {@link SocketTuning} parses socket option profiles and sets them on a socket.
+ */
+class SocketTuningTest {
+    private static final SocketTuning DEFAULTS = new SocketTuning(0, 0, true, true, -1);
+
+    @Test
+    void parsesOptions() {
+        SocketTuning tuning = SocketTuning.parse(" sndbuf=4m, rcvbuf=256k ,nodelay=false,KEEPALIVE=False,linger=0", DEFAULTS);
+        assertEquals(4 << 20, tuning.sendBuffer);
+        assertEquals(256 << 10, tuning.receiveBuffer);
+        assertFalse(tuning.noDelay);
+        assertFalse(tuning.keepAlive);
+        assertEquals(0, tuning.linger);
+    }
+
+    @Test
+    void keepsDefaultsLeftOut() {
+        SocketTuning base = new SocketTuning(1024, 2048, false, true, 5);
+        SocketTuning tuning = SocketTuning.parse("rcvbuf=4096", base);
+        assertEquals(1024, tuning.sendBuffer);
+        assertEquals(4096, tuning.receiveBuffer);
+        assertFalse(tuning.noDelay);
+        assertTrue(tuning.keepAlive);
+        assertEquals(5, tuning.linger);
+        assertEquals(base.toString(), SocketTuning.parse("", base).toString());
+    }
+
+    @Test
+    void treatsBareNameAsTrue() {
+        assertTrue(SocketTuning.parse("nodelay", new SocketTuning(0, 0, false, false, -1)).noDelay);
+    }
+
+    @Test
+    void rejectsInvalidOptions() {
+        assertThrows(IllegalArgumentException.class, () -> SocketTuning.parse("sndbuf=big", DEFAULTS));
+        assertThrows(IllegalArgumentException.class, () -> SocketTuning.parse("rcvbuf=-1", DEFAULTS));
+        assertThrows(IllegalArgumentException.class, () -> SocketTuning.parse("sndbuf=4g", DEFAULTS));
+        assertThrows(IllegalArgumentException.class, () -> SocketTuning.parse("nodelay=yes", DEFAULTS));
+        assertThrows(IllegalArgumentException.class, () -> SocketTuning.parse("linger=-2", DEFAULTS));
+        assertThrows(IllegalArgumentException.class, () -> SocketTuning.parse("cork=true", DEFAULTS));
+    }
+
+    @Test
+    void appliesOptions() throws Exception {
+        try (SocketChannel channel = SocketChannel.open()) {
+            SocketTuning.parse("rcvbuf=64k,nodelay=false,keepalive=true,linger=0", DEFAULTS).apply(channel);
+            assertFalse(channel.getOption(StandardSocketOptions.TCP_NODELAY));
+            assertTrue(channel.getOption(StandardSocketOptions.SO_KEEPALIVE));
+            assertEquals(0, (int) channel.getOption(StandardSocketOptions.SO_LINGER));
+            assertTrue(channel.getOption(StandardSocketOptions.SO_RCVBUF) > 0);
+        }
+    }
+
+    @Test
+    void leavesBufferSizesToSystem() throws Exception {
+        try (SocketChannel tuned = SocketChannel.open(); SocketChannel plain = SocketChannel.open()) {
+            DEFAULTS.apply(tuned);
+            assertEquals(plain.getOption(StandardSocketOptions.SO_RCVBUF), tuned.getOption(StandardSocketOptions.SO_RCVBUF));
+            assertSame(Boolean.TRUE, tuned.getOption(StandardSocketOptions.TCP_NODELAY));
+        }
+    }
+}
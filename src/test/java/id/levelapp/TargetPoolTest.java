@@ -0,0 +1,135 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests {@link TargetPool}: which targets it refuses, and how it keeps and hands out warm sockets.
+ */
+class TargetPoolTest {
+
+    private boolean allowLoopback;
+    private int maxIdle;
+
+    @BeforeEach
+    void setUp() {
+        allowLoopback = TargetPool.ALLOW_LOOPBACK;
+        maxIdle = TargetPool.MAX_IDLE_PER_TARGET;
+        TargetPool.ALLOW_LOOPBACK = false;
+    }
+
+    @AfterEach
+    void tearDown() {
+        TargetPool.ALLOW_LOOPBACK = allowLoopback;
+        TargetPool.MAX_IDLE_PER_TARGET = maxIdle;
+    }
+
+    @Test
+    void refusesLoopbackTargets() {
+        assertThrows(ConnectException.class, () -> TargetPool.checkTarget(InetAddress.getByName("127.0.0.1"), 80));
+        assertThrows(ConnectException.class, () -> TargetPool.checkTarget(InetAddress.getByName("127.1.2.3"), 80));
+        assertThrows(ConnectException.class, () -> TargetPool.checkTarget(InetAddress.getByName("::1"), 80));
+        assertThrows(ConnectException.class, () -> TargetPool.checkTarget(InetAddress.getByName("0.0.0.0"), 80));
+        assertThrows(ConnectException.class, () -> TargetPool.checkTarget(InetAddress.getByName("::"), 80));
+        assertThrows(ConnectException.class, () -> TargetPool.checkTarget(InetAddress.getByName("::ffff:127.0.0.1"), 80));
+    }
+
+    @Test
+    void acceptsRemoteTargets() {
+        assertDoesNotThrow(() -> TargetPool.checkTarget(InetAddress.getByName("192.0.2.10"), 443));
+        assertDoesNotThrow(() -> TargetPool.checkTarget(InetAddress.getByName("2001:db8::1"), 443));
+    }
+
+    @Test
+    void allowsLoopbackWhenEnabledButNeverOwnPorts() throws Exception {
+        TargetPool.ALLOW_LOOPBACK = true;
+        assertDoesNotThrow(() -> TargetPool.checkTarget(InetAddress.getByName("127.0.0.1"), 80));
+        TargetPool.listening(65432);
+        assertThrows(ConnectException.class, () -> TargetPool.checkTarget(InetAddress.getByName("127.0.0.1"), 65432));
+        assertThrows(ConnectException.class, () -> TargetPool.checkTarget(InetAddress.getByName("0.0.0.0"), 65432));
+        assertDoesNotThrow(() -> TargetPool.checkTarget(InetAddress.getByName("192.0.2.10"), 65432));
+    }
+
+    @Test
+    void handsOutWarmSockets() throws Exception {
+        TargetPool.ALLOW_LOOPBACK = true;
+        TargetPool.MAX_IDLE_PER_TARGET = 2;
+        try (ServerSocket server = listen()) {
+            String host = server.getInetAddress().getHostAddress();
+            assertNull(TargetPool.poll(host, server.getLocalPort()), "the first use only starts the refill");
+            try (Socket first = server.accept(); Socket second = server.accept()) {
+                SocketChannel channel = await(host, server.getLocalPort());
+                assertFalse(channel.isBlocking());
+                assertTrue(channel.isConnected());
+                channel.close();
+                try (Socket refilled = server.accept()) {
+                    assertTrue(refilled.isConnected(), "a taken socket is replaced");
+                }
+            }
+        }
+    }
+
+    @Test
+    void dropsWarmSocketsClosedByTarget() throws Exception {
+        TargetPool.ALLOW_LOOPBACK = true;
+        TargetPool.MAX_IDLE_PER_TARGET = 1;
+        try (ServerSocket server = listen()) {
+            String host = server.getInetAddress().getHostAddress();
+            assertNull(TargetPool.poll(host, server.getLocalPort()));
+            server.accept().close();
+            Thread.sleep(100); // lets the refill queue the socket and the FIN arrive
+            assertNull(TargetPool.poll(host, server.getLocalPort()));
+        }
+    }
+
+    @Test
+    void detectsDeadAndTalkativePeers() throws Exception {
+        try (ServerSocket server = listen()) {
+            SocketChannel quiet = SocketChannel.open(server.getLocalSocketAddress());
+            try (Socket peer = server.accept()) {
+                assertTrue(TargetPool.isAlive(quiet));
+                peer.getOutputStream().write('x');
+                Thread.sleep(100);
+                assertFalse(TargetPool.isAlive(quiet), "a greeting cannot be handed on");
+            }
+            quiet.close();
+            SocketChannel closed = SocketChannel.open(server.getLocalSocketAddress());
+            server.accept().close();
+            Thread.sleep(100);
+            assertFalse(TargetPool.isAlive(closed));
+            closed.close();
+        }
+    }
+
+    private static ServerSocket listen() throws Exception {
+        ServerSocket server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(5000);
+        return server;
+    }
+
+    /**
+     * Polls until the refill has queued a warm socket.
+     */
+    private static SocketChannel await(String host, int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            SocketChannel channel = TargetPool.poll(host, port);
+            if (channel != null) return channel;
+            Thread.sleep(10);
+        }
+        throw new AssertionError("no warm socket");
+    }
+}
@@ -0,0 +1,393 @@
+package id.levelapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the frame encoding and decoding of {@link TunnelLink} against a peer that speaks the raw wire format
+ * over a loopback connection.
+ */
+class TunnelLinkTest {
+    private static final byte[] PREFACE = "WARPDRIVE/1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final BlockingQueue<TunnelStream> accepted = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> targets = new LinkedBlockingQueue<>();
+    private long heartbeatInterval;
+    private long heartbeatTimeout;
+    private int compressionLevel;
+    private Socket peer;
+    private DataInputStream peerInput;
+    private DataOutputStream peerOutput;
+    private TunnelLink link;
+    private Thread reader;
+
+    @BeforeEach
+    void connect() throws IOException {
+        heartbeatInterval = TunnelLink.HEARTBEAT_INTERVAL_MILLIS;
+        heartbeatTimeout = TunnelLink.HEARTBEAT_TIMEOUT_MILLIS;
+        compressionLevel = Compression.LEVEL;
+        TunnelLink.HEARTBEAT_INTERVAL_MILLIS = 0;
+        Compression.LEVEL = 6;
+        connect((stream, target) -> {
+            accepted.add(stream);
+            targets.add(target);
+        });
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        link.close();
+        peer.close();
+        reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        TunnelLink.HEARTBEAT_INTERVAL_MILLIS = heartbeatInterval;
+        TunnelLink.HEARTBEAT_TIMEOUT_MILLIS = heartbeatTimeout;
+        Compression.LEVEL = compressionLevel;
+    }
+
+    @Test
+    void encodesFrameHeader() throws IOException {
+        byte[] payload = {1, 2, 3, 4};
+        link.writeFrame(TunnelLink.WINDOW, 0x01020304, payload, 0, payload.length);
+        assertEquals(TunnelLink.WINDOW, peerInput.readByte());
+        assertEquals(0, peerInput.readByte());
+        assertEquals(0x01020304, peerInput.readInt());
+        assertEquals(payload.length, peerInput.readInt());
+        byte[] received = new byte[payload.length];
+        peerInput.readFully(received);
+        assertArrayEquals(payload, received);
+    }
+
+    @Test
+    void encodesEmptyFrame() throws IOException {
+        link.writeFrame(TunnelLink.CLOSE, 9, new byte[0], 0, 0);
+        Frame frame = readFrame();
+        assertEquals(TunnelLink.CLOSE, frame.type);
+        assertEquals(9, frame.streamId);
+        assertEquals(0, frame.payload.length);
+    }
+
+    @Test
+    void splitsDataIntoFrames() throws IOException {
+        byte[] data = new byte[2 * TunnelLink.MAX_FRAME_SIZE + 100];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31);
+        ByteBuffer source = ByteBuffer.allocateDirect(data.length + 10);
+        source.put(data).flip();
+        link.writeData(5, source, data.length, new Compression.Probe());
+        assertEquals(data.length, source.position());
+
+        ByteBuffer received = ByteBuffer.allocate(data.length);
+        for (int expected : new int[] {TunnelLink.MAX_FRAME_SIZE, TunnelLink.MAX_FRAME_SIZE, 100}) {
+            Frame frame = readFrame();
+            assertEquals(TunnelLink.DATA, frame.type);
+            assertEquals(0, frame.flags);
+            assertEquals(5, frame.streamId);
+            assertEquals(expected, frame.payload.length);
+            received.put(frame.payload);
+        }
+        assertArrayEquals(data, received.array());
+    }
+
+    @Test
+    void deflatesDataOnceAgreed() throws Exception {
+        writeFrame(TunnelLink.SETTINGS, (byte) 0, 0, "deflate".getBytes(StandardCharsets.US_ASCII));
+        Frame answer = readFrame();
+        assertEquals(TunnelLink.SETTINGS, answer.type);
+        assertEquals("deflate", new String(answer.payload, StandardCharsets.US_ASCII));
+        assertTrue(link.isCompressing());
+
+        byte[] text = repeat("{\"id\":1,\"name\":\"warpdrive\"}", 200);
+        Compression.Inflating inflating = new Compression.Inflating();
+        Compression.Probe probe = new Compression.Probe();
+        for (int round = 0; round < 2; round++) {
+            link.writeData(3, ByteBuffer.wrap(text), text.length, probe);
+            Frame frame = readFrame();
+            assertEquals(TunnelLink.DATA, frame.type);
+            assertEquals(TunnelLink.FLAG_DEFLATE, frame.flags);
+            assertTrue(frame.payload.length < text.length / 4, "deflated to " + frame.payload.length);
+            assertArrayEquals(text, inflating.inflate(frame.payload));
+        }
+        inflating.end();
+    }
+
+    @Test
+    void declinesCompressionWhenDisabled() throws Exception {
+        Compression.LEVEL = 0;
+        writeFrame(TunnelLink.SETTINGS, (byte) 0, 0, "deflate".getBytes(StandardCharsets.US_ASCII));
+        Frame answer = readFrame();
+        assertEquals(TunnelLink.SETTINGS, answer.type);
+        assertEquals("none", new String(answer.payload, StandardCharsets.US_ASCII));
+        assertFalse(link.isCompressing());
+    }
+
+    @Test
+    void opensStreamOnceAcknowledged() throws Exception {
+        BlockingQueue<Object> opened = new LinkedBlockingQueue<>();
+        Thread opener = new Thread(() -> {
+            try {
+                opened.add(link.openStream("example.com:443"));
+            } catch (IOException e) {
+                opened.add(e);
+            }
+        });
+        opener.start();
+        Frame open = readFrame();
+        assertEquals(TunnelLink.OPEN, open.type);
+        assertEquals("example.com:443", new String(open.payload, StandardCharsets.UTF_8));
+        writeFrame(TunnelLink.OPEN, (byte) 0, open.streamId, new byte[0]);
+        Object stream = opened.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(stream instanceof TunnelStream, "opened " + stream);
+        assertEquals(open.streamId, ((TunnelStream) stream).getId());
+    }
+
+    @Test
+    void failsOpenOnReset() throws Exception {
+        BlockingQueue<Object> opened = new LinkedBlockingQueue<>();
+        Thread opener = new Thread(() -> {
+            try {
+                opened.add(link.openStream("example.com:443"));
+            } catch (IOException e) {
+                opened.add(e);
+            }
+        });
+        opener.start();
+        Frame open = readFrame();
+        writeFrame(TunnelLink.RST, (byte) 0, open.streamId, "Connection refused".getBytes(StandardCharsets.UTF_8));
+        Object result = opened.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(result instanceof IOException, "opened " + result);
+        assertEquals("Connection refused", ((IOException) result).getMessage());
+    }
+
+    @Test
+    void decodesOpenAndData() throws Exception {
+        writeFrame(TunnelLink.OPEN, (byte) 0, 1, "[::1]:443".getBytes(StandardCharsets.UTF_8));
+        assertEquals("[::1]:443", targets.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        TunnelStream stream = accepted.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(stream);
+        assertEquals(1, stream.getId());
+
+        byte[] first = "first frame ".getBytes(StandardCharsets.US_ASCII);
+        byte[] second = "second frame".getBytes(StandardCharsets.US_ASCII);
+        writeFrame(TunnelLink.DATA, (byte) 0, 1, first);
+        writeFrame(TunnelLink.DATA, (byte) 0, 1, second);
+        writeFrame(TunnelLink.CLOSE, (byte) 0, 1, new byte[0]);
+
+        byte[] expected = new byte[first.length + second.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, readAll(stream));
+    }
+
+    @Test
+    void inflatesDeflatedData() throws Exception {
+        writeFrame(TunnelLink.OPEN, (byte) 0, 1, "example.com:80".getBytes(StandardCharsets.UTF_8));
+        TunnelStream stream = accepted.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(stream);
+
+        byte[] plain = "plain frame ".getBytes(StandardCharsets.US_ASCII);
+        byte[] text = repeat("deflated frame ", 100);
+        Compression.Deflating deflating = new Compression.Deflating();
+        ByteBuffer deflated = deflating.deflate(ByteBuffer.wrap(text), 0);
+        byte[] compressed = new byte[deflated.remaining()];
+        deflated.get(compressed);
+        deflating.end();
+        writeFrame(TunnelLink.DATA, (byte) 0, 1, plain);
+        writeFrame(TunnelLink.DATA, TunnelLink.FLAG_DEFLATE, 1, compressed);
+        writeFrame(TunnelLink.CLOSE, (byte) 0, 1, new byte[0]);
+
+        byte[] expected = new byte[plain.length + text.length];
+        System.arraycopy(plain, 0, expected, 0, plain.length);
+        System.arraycopy(text, 0, expected, plain.length, text.length);
+        assertArrayEquals(expected, readAll(stream));
+    }
+
+    @Test
+    void answersPingWithPong() throws IOException {
+        byte[] payload = ByteBuffer.allocate(8).putLong(0x1122334455667788L).array();
+        writeFrame(TunnelLink.PING, (byte) 0, 0, payload);
+        Frame pong = readFrame();
+        assertEquals(TunnelLink.PONG, pong.type);
+        assertEquals(0, pong.streamId);
+        assertArrayEquals(payload, pong.payload);
+    }
+
+    @Test
+    void answersPingsInOrder() throws IOException {
+        for (long i = 0; i < 100; i++) {
+            writeFrame(TunnelLink.PING, (byte) 0, 0, ByteBuffer.allocate(8).putLong(i).array());
+        }
+        for (long i = 0; i < 100; i++) {
+            Frame pong = readFrame();
+            assertEquals(TunnelLink.PONG, pong.type);
+            assertEquals(i, ByteBuffer.wrap(pong.payload).getLong());
+        }
+    }
+
+    @Test
+    void measuresRoundTripFromPongs() throws Exception {
+        close();
+        TunnelLink.HEARTBEAT_INTERVAL_MILLIS = 50;
+        connect(null);
+        Frame ping = readFrame();
+        assertEquals(TunnelLink.PING, ping.type);
+        assertEquals(8, ping.payload.length);
+        writeFrame(TunnelLink.PONG, (byte) 0, 0, ping.payload);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (link.getRoundTrip() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(link.getRoundTrip() > 0);
+    }
+
+    @Test
+    void closesSilentLink() throws Exception {
+        close();
+        TunnelLink.HEARTBEAT_INTERVAL_MILLIS = 50;
+        TunnelLink.HEARTBEAT_TIMEOUT_MILLIS = 200;
+        connect(null);
+        reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertTrue(link.isClosed());
+    }
+
+    @Test
+    void sendsGoAwayOnce() throws IOException {
+        link.goAway();
+        link.goAway();
+        link.writeFrame(TunnelLink.CLOSE, 1, new byte[0], 0, 0);
+        assertEquals(TunnelLink.GOAWAY, readFrame().type);
+        assertEquals(TunnelLink.CLOSE, readFrame().type);
+    }
+
+    @Test
+    void closesIdleLinkOnGoAway() throws Exception {
+        BlockingQueue<Boolean> notified = new LinkedBlockingQueue<>();
+        link.onGoAway(() -> notified.add(true));
+        writeFrame(TunnelLink.GOAWAY, (byte) 0, 0, new byte[0]);
+        assertEquals(Boolean.TRUE, notified.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertTrue(link.isGoingAway());
+        assertTrue(link.isClosed());
+    }
+
+    @Test
+    void resetsUnknownStreamsWithoutAcceptor() throws Exception {
+        close();
+        connect(null);
+        writeFrame(TunnelLink.OPEN, (byte) 0, 7, "example.com:80".getBytes(StandardCharsets.UTF_8));
+        Frame reset = readFrame();
+        assertEquals(TunnelLink.RST, reset.type);
+        assertEquals(7, reset.streamId);
+    }
+
+    @Test
+    void rejectsPeerWithoutPreface() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             Socket other = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort())) {
+            TunnelLink stranger = new TunnelLink(server.accept(), null);
+            other.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertThrows(IOException.class, stranger::handshake);
+            assertTrue(stranger.isClosed());
+        }
+    }
+
+    @Test
+    void closesOnOversizedFrame() throws Exception {
+        peerOutput.writeByte(TunnelLink.DATA);
+        peerOutput.writeByte(0);
+        peerOutput.writeInt(1);
+        peerOutput.writeInt(TunnelLink.MAX_FRAME_SIZE + 1);
+        peerOutput.flush();
+        reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertTrue(link.isClosed());
+    }
+
+    @Test
+    void closesOnUnknownFrameType() throws Exception {
+        writeFrame((byte) 42, (byte) 0, 0, new byte[0]);
+        reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertTrue(link.isClosed());
+    }
+
+    /**
+     * A frame as read from the wire.
+     */
+    private static final class Frame {
+        byte type;
+        byte flags;
+        int streamId;
+        byte[] payload;
+    }
+
+    private void connect(TunnelLink.StreamAcceptor acceptor) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            peer = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+            link = new TunnelLink(server.accept(), acceptor);
+        }
+        peerInput = new DataInputStream(peer.getInputStream());
+        peerOutput = new DataOutputStream(peer.getOutputStream());
+        peerOutput.write(PREFACE);
+        link.handshake();
+        byte[] preface = new byte[PREFACE.length];
+        peerInput.readFully(preface);
+        assertArrayEquals(PREFACE, preface);
+        reader = new Thread(link, "test-link-reader");
+        reader.start();
+    }
+
+    private Frame readFrame() throws IOException {
+        Frame frame = new Frame();
+        frame.type = peerInput.readByte();
+        frame.flags = peerInput.readByte();
+        frame.streamId = peerInput.readInt();
+        frame.payload = new byte[peerInput.readInt()];
+        peerInput.readFully(frame.payload);
+        return frame;
+    }
+
+    private void writeFrame(byte type, byte flags, int streamId, byte[] payload) throws IOException {
+        peerOutput.writeByte(type);
+        peerOutput.writeByte(flags);
+        peerOutput.writeInt(streamId);
+        peerOutput.writeInt(payload.length);
+        peerOutput.write(payload);
+        peerOutput.flush();
+    }
+
+    private static byte[] readAll(TunnelStream stream) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (stream.getChannel().read(buffer) >= 0) {
+            received.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return received.toByteArray();
+    }
+
+    private static byte[] repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) builder.append(text);
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}